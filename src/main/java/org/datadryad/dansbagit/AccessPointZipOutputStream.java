@@ -0,0 +1,103 @@
+package org.datadryad.dansbagit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * ZipOutputStream which can make each DEFLATED entry seekable, by forcing a full flush of the compressor
+ * at regular intervals of uncompressed data.
+ *
+ * After a full flush the compressed stream is at a byte boundary and no longer refers back to any earlier
+ * data, so inflation can start from that point with a fresh Inflater.  The uncompressed and compressed
+ * offsets of each such access point (relative to the start of the entry's data) are recorded, and can be
+ * collected once the entry has been written.  The entries remain ordinary deflate streams which any zip
+ * reader understands; the only cost is a few bytes and a slightly poorer compression ratio at each point.
+ */
+class AccessPointZipOutputStream extends ZipOutputStream
+{
+    private long spacing = 0;
+    private boolean deflating = false;
+    private long uncompressed = 0;
+    private List<long[]> points = new ArrayList<long[]>();
+
+    public AccessPointZipOutputStream(OutputStream out)
+    {
+        super(out);
+    }
+
+    /**
+     * Set the number of bytes of uncompressed data between access points.  Zero or less switches access
+     * points off.  This takes effect from the next entry
+     *
+     * @param spacing   bytes between access points
+     */
+    public void setSpacing(long spacing)
+    {
+        this.spacing = spacing;
+    }
+
+    /**
+     * @return  the access points of the most recently written entry, as pairs of uncompressed and compressed offsets
+     */
+    public List<long[]> getAccessPoints()
+    {
+        return this.points;
+    }
+
+    public void putNextEntry(ZipEntry entry)
+            throws IOException
+    {
+        super.putNextEntry(entry);
+        this.deflating = entry.getMethod() != ZipEntry.STORED;
+        this.uncompressed = 0;
+        this.points = new ArrayList<long[]>();
+    }
+
+    public synchronized void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (!this.deflating || this.spacing <= 0)
+        {
+            super.write(b, off, len);
+            return;
+        }
+
+        while (len > 0)
+        {
+            long untilPoint = this.spacing - (this.uncompressed % this.spacing);
+            int n = (int) Math.min(len, untilPoint);
+            super.write(b, off, n);
+            this.uncompressed += n;
+            off += n;
+            len -= n;
+            if (this.uncompressed % this.spacing == 0)
+            {
+                this.accessPoint();
+            }
+        }
+    }
+
+    /**
+     * Flush everything the compressor holds, resetting its history, and record the position
+     */
+    private void accessPoint()
+            throws IOException
+    {
+        int n;
+        do
+        {
+            n = this.def.deflate(this.buf, 0, this.buf.length, Deflater.FULL_FLUSH);
+            if (n > 0)
+            {
+                this.out.write(this.buf, 0, n);
+            }
+        }
+        while (n == this.buf.length);
+        this.points.add(new long[] { this.def.getBytesRead(), this.def.getBytesWritten() });
+    }
+}
@@ -0,0 +1,413 @@
+package org.datadryad.dansbagit;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Builds many bags over one shared executor, within global limits on the number of builds running at once,
+ * the bytes staged in their working directories, and the disk space they use.
+ *
+ * Each build declares the size of its payload when it is submitted, and is only started once that much
+ * staging space (and twice as much disk space, for the staged files and the zip) is free, so the builds which
+ * are running can always finish.  A bag which stages more than it declared draws the extra from the shared
+ * staging budget as it goes, waiting for other builds to give some back if there is not enough.  A build which
+ * is larger than the whole budget is run on its own.
+ *
+ * Builds are started in the order they were submitted, except that smaller builds which fit may start ahead of
+ * one which is waiting for room, so that one very large bag does not hold up the rest of the batch.  Once a build
+ * has been passed over a given number of times nothing more is started until it can run, so that it is not
+ * held up indefinitely either.
+ */
+public class BagBatch
+{
+    private static Logger log = Logger.getLogger(BagBatch.class);
+
+    /** The number of times a waiting build may be passed over before it holds back the builds behind it */
+    public static final int DEFAULT_MAX_BYPASS = 8;
+
+    /**
+     * Assembles a bag: adds its bitstreams and metadata.  The batch writes the zip and cleans up the working
+     * directory afterwards
+     */
+    public interface Builder
+    {
+        void build(DANSBag bag) throws Exception;
+    }
+
+    private ExecutorService executor;
+    private int maxBuilds;
+    private long maxStagingBytes;
+    private long maxDiskBytes;
+    private int maxBypass = DEFAULT_MAX_BYPASS;
+
+    private LinkedList<Build> queue = new LinkedList<Build>();
+    private int running = 0;
+    private int waiting = 0;
+    private long stagingBytes = 0;
+    private long diskBytes = 0;
+    private long completed = 0;
+    private long failed = 0;
+
+    /**
+     * @param executor  the executor to run the builds on; the batch does not shut it down
+     * @param maxBuilds the maximum number of builds to run at once
+     * @param maxStagingBytes   the maximum number of bytes staged across all the working directories at once
+     * @param maxDiskBytes  the maximum disk space to use at once, for staged files and zips being written
+     */
+    public BagBatch(ExecutorService executor, int maxBuilds, long maxStagingBytes, long maxDiskBytes)
+    {
+        this.executor = executor;
+        this.maxBuilds = maxBuilds;
+        this.maxStagingBytes = maxStagingBytes;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Set the number of times a waiting build may be passed over by smaller ones before it holds them back
+     *
+     * @param maxBypass the number of times
+     */
+    public synchronized void setMaxBypass(int maxBypass)
+    {
+        this.maxBypass = maxBypass;
+    }
+
+    /**
+     * Queue a bag to be built.  When there is room the builder is run on the executor, then the bag is written
+     * to its zip file and its working directory removed.  If the build fails the zip is removed too
+     *
+     * @param bag   the new bag, with its own working directory
+     * @param payloadBytes  the expected total size of the bitstreams the builder will add
+     * @param builder   assembles the bag
+     * @return  the bag, once its zip has been written
+     */
+    public Future<DANSBag> submit(DANSBag bag, long payloadBytes, Builder builder)
+    {
+        Build build = new Build(bag, payloadBytes, builder);
+        synchronized (this)
+        {
+            this.queue.add(build);
+        }
+        this.schedule();
+        return build.task;
+    }
+
+    /**
+     * @return  the number of builds running
+     */
+    public synchronized int getRunning()
+    {
+        return this.running;
+    }
+
+    /**
+     * @return  the number of builds waiting to start
+     */
+    public synchronized int getQueued()
+    {
+        return this.queue.size();
+    }
+
+    /**
+     * @return  the staging space held by the running builds
+     */
+    public synchronized long getStagingBytes()
+    {
+        return this.stagingBytes;
+    }
+
+    /**
+     * @return  the disk space held by the running builds
+     */
+    public synchronized long getDiskBytes()
+    {
+        return this.diskBytes;
+    }
+
+    /**
+     * @return  the number of bags which have been written
+     */
+    public synchronized long getCompleted()
+    {
+        return this.completed;
+    }
+
+    /**
+     * @return  the number of builds which failed
+     */
+    public synchronized long getFailed()
+    {
+        return this.failed;
+    }
+
+    /**
+     * Start as many queued builds as there is room for
+     */
+    private void schedule()
+    {
+        List<Build> starting = new ArrayList<Build>();
+        synchronized (this)
+        {
+            List<Build> passedOver = new ArrayList<Build>();
+            Iterator<Build> it = this.queue.iterator();
+
+            // builds which are already running and need more room come before new ones
+            while (it.hasNext() && this.running < this.maxBuilds && this.waiting == 0)
+            {
+                Build build = it.next();
+                if (build.task.isCancelled())
+                {
+                    it.remove();
+                }
+                else if (this.fits(build))
+                {
+                    it.remove();
+                    for (Build waiter : passedOver)
+                    {
+                        waiter.bypassed++;
+                    }
+                    this.running++;
+                    this.stagingBytes += build.reserved;
+                    this.diskBytes += build.disk;
+                    build.held = true;
+                    starting.add(build);
+                }
+                else
+                {
+                    passedOver.add(build);
+                    if (build.bypassed >= this.maxBypass)
+                    {
+                        log.debug("Holding back the batch until " + build.bag.getWorkingDir() + " can start");
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (Build build : starting)
+        {
+            log.info("Starting build of " + build.bag.getWorkingDir());
+            try
+            {
+                this.executor.execute(build.task);
+            }
+            catch (RejectedExecutionException e)
+            {
+                this.finished(build, false);
+                build.task.fail(e);
+            }
+        }
+    }
+
+    private boolean fits(Build build)
+    {
+        if (this.running == 0)
+        {
+            return true;
+        }
+        return this.stagingBytes + build.reserved <= this.maxStagingBytes && this.diskBytes + build.disk <= this.maxDiskBytes;
+    }
+
+    private void finished(Build build, boolean success)
+    {
+        synchronized (this)
+        {
+            this.running--;
+            this.stagingBytes -= build.reserved;
+            this.diskBytes -= build.disk;
+            if (success)
+            {
+                this.completed++;
+            }
+            else
+            {
+                this.failed++;
+            }
+            this.notifyAll();
+        }
+        this.schedule();
+    }
+
+    /**
+     * A bag in the batch, and its share of the budgets
+     */
+    private class Build implements Callable<DANSBag>, StagingBudget
+    {
+        private DANSBag bag;
+        private Builder builder;
+        private BuildTask task;
+        private long reserved;
+        private long disk;
+        private long staged = 0;
+        private int bypassed = 0;
+
+        /** whether the build holds a share of the batch, and whether its run or its cancellation gives it back */
+        private boolean held = false;
+        private boolean claimed = false;
+
+        public Build(DANSBag bag, long payloadBytes, Builder builder)
+        {
+            this.bag = bag;
+            this.builder = builder;
+            this.reserved = payloadBytes;
+            this.disk = 2 * payloadBytes;
+            this.task = new BuildTask(this);
+        }
+
+        public DANSBag call()
+                throws Exception
+        {
+            synchronized (BagBatch.this)
+            {
+                if (this.claimed)
+                {
+                    // cancelled just as it started, and already given back
+                    throw new CancellationException();
+                }
+                this.claimed = true;
+            }
+            boolean success = false;
+            this.bag.setStagingBudget(this);
+            try
+            {
+                this.builder.build(this.bag);
+                this.bag.writeToFile();
+                success = true;
+                return this.bag;
+            }
+            finally
+            {
+                this.bag.setStagingBudget(null);
+                try
+                {
+                    this.bag.cleanupWorkingDir();
+                }
+                catch (IOException e)
+                {
+                    log.warn("Unable to clean up the working directory of " + this.bag.getWorkingDir() + ": " + e.getMessage());
+                }
+                if (!success)
+                {
+                    this.bag.cleanupZip();
+                }
+                finished(this, success);
+            }
+        }
+
+        public void acquire(long bytes)
+                throws IOException
+        {
+            synchronized (BagBatch.this)
+            {
+                long extra = this.staged + bytes - this.reserved;
+                if (extra > 0)
+                {
+                    // wait for room, unless every other running build is waiting too, in which case no room
+                    // would ever be given back
+                    waiting++;
+                    BagBatch.this.notifyAll();
+                    try
+                    {
+                        while (stagingBytes + extra > maxStagingBytes && waiting < running)
+                        {
+                            BagBatch.this.wait();
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for staging space");
+                    }
+                    finally
+                    {
+                        waiting--;
+                    }
+                    if (stagingBytes + extra > maxStagingBytes)
+                    {
+                        log.warn(this.bag.getWorkingDir() + " is staging more than it declared, beyond the batch's staging budget");
+                    }
+                    stagingBytes += extra;
+                    this.reserved += extra;
+                }
+                this.staged += bytes;
+            }
+        }
+
+        public void release(long bytes)
+        {
+            synchronized (BagBatch.this)
+            {
+                this.staged -= bytes;
+            }
+        }
+
+        /**
+         * Give back the build's share if it was cancelled before it ran, e.g. while waiting in the executor's
+         * queue, since call() will then never do so
+         */
+        void cancelled()
+        {
+            boolean release;
+            synchronized (BagBatch.this)
+            {
+                release = this.held && !this.claimed;
+                this.claimed = true;
+            }
+            if (!release)
+            {
+                // drop it from the queue, if it is still there
+                schedule();
+                return;
+            }
+            log.info("Build of " + this.bag.getWorkingDir() + " was cancelled before it ran");
+            try
+            {
+                this.bag.cleanupWorkingDir();
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to clean up the working directory of " + this.bag.getWorkingDir() + ": " + e.getMessage());
+            }
+            finished(this, false);
+        }
+    }
+
+    /**
+     * Lets the batch fail a build which it could not start, and notices when a build is cancelled
+     */
+    private static class BuildTask extends FutureTask<DANSBag>
+    {
+        private Build build;
+
+        public BuildTask(Build build)
+        {
+            super(build);
+            this.build = build;
+        }
+
+        protected void done()
+        {
+            if (this.isCancelled())
+            {
+                this.build.cancelled();
+            }
+        }
+
+        void fail(Throwable t)
+        {
+            this.setException(t);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.datadryad.dansbagit;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything loadBag learns about a zipped bag: its name, the parsed DIM metadata, the data file
+ * mappings and the references to its bitstreams.  Once built a catalog is not modified, so the same
+ * catalog can back any number of DANSBag objects opened on the same zip: the reference store of a
+ * shared catalog is read-only, and bags copy its DIMs before handing them out.
+ *
+ * A cached catalog counts the bags using it, and releases its reference store once it has left the
+ * cache and the last of those bags has let it go.
+ *
+ * A catalog read from a bag index holds the paths of the DIM documents in the zip instead of the parsed
+ * DIMs, and leaves it to the bag to parse them when they are asked for.
+ */
+class BagCatalog
+{
+    private String name;
+    private DIM dim;
+    private Map<String, DIM> subDim;
+    private String datasetDimPath = null;
+    private Map<String, String> subDimPaths = Collections.emptyMap();
+    private Map<String, String> dataFilePaths;
+    private BagFileReferenceStore fileRefs;
+    private int users = 0;
+    private boolean cached = false;
+    private boolean closed = false;
+
+    public BagCatalog(String name, DIM dim, Map<String, DIM> subDim, Map<String, String> dataFilePaths, BagFileReferenceStore fileRefs)
+    {
+        this.name = name;
+        this.dim = dim;
+        this.subDim = Collections.unmodifiableMap(new HashMap<String, DIM>(subDim));
+        this.dataFilePaths = Collections.unmodifiableMap(new HashMap<String, String>(dataFilePaths));
+        this.fileRefs = fileRefs;
+    }
+
+    /**
+     * Create a catalog whose DIM metadata has not been parsed yet
+     *
+     * @param datasetDimPath    the path in the zip of the dataset DIM, or null if there isn't one
+     * @param subDimPaths   the paths in the zip of the data file DIMs, by data file identifier
+     */
+    public BagCatalog(String name, String datasetDimPath, Map<String, String> subDimPaths, Map<String, String> dataFilePaths, BagFileReferenceStore fileRefs)
+    {
+        this(name, (DIM) null, new HashMap<String, DIM>(), dataFilePaths, fileRefs);
+        this.datasetDimPath = datasetDimPath;
+        this.subDimPaths = Collections.unmodifiableMap(new HashMap<String, String>(subDimPaths));
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public DIM getDatasetDIM()
+    {
+        return dim;
+    }
+
+    public Map<String, DIM> getDatafileDIMs()
+    {
+        return subDim;
+    }
+
+    /**
+     * @return  the path in the zip of the dataset DIM if it has not been parsed, otherwise null
+     */
+    public String getDatasetDIMPath()
+    {
+        return datasetDimPath;
+    }
+
+    /**
+     * @return  the paths in the zip of the data file DIMs which have not been parsed, by data file identifier
+     */
+    public Map<String, String> getDatafileDIMPaths()
+    {
+        return subDimPaths;
+    }
+
+    public Map<String, String> getDataFilePaths()
+    {
+        return dataFilePaths;
+    }
+
+    public BagFileReferenceStore getFileRefs()
+    {
+        return fileRefs;
+    }
+
+    /**
+     * Note that another bag is using the catalog
+     */
+    synchronized void acquire()
+    {
+        this.users++;
+    }
+
+    /**
+     * Note that a bag has finished with the catalog, closing it if it is no longer cached or used
+     */
+    synchronized void release()
+    {
+        this.users--;
+        this.closeIfUnused();
+    }
+
+    /**
+     * Note whether the catalog is in a cache, closing it if it has left the cache and is no longer used
+     */
+    synchronized void setCached(boolean cached)
+    {
+        this.cached = cached;
+        this.closeIfUnused();
+    }
+
+    synchronized boolean isClosed()
+    {
+        return this.closed;
+    }
+
+    private void closeIfUnused()
+    {
+        if (this.users <= 0 && !this.cached && !this.closed)
+        {
+            this.closed = true;
+            this.fileRefs.close();
+        }
+    }
+
+    /**
+     * @return  a rough measure of how much the catalog holds, for deciding what to evict from a cache
+     */
+    public long weight()
+    {
+        return 1 + this.fileRefs.size() + this.subDim.size() + this.subDimPaths.size();
+    }
+}
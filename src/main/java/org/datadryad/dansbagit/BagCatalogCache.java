@@ -0,0 +1,244 @@
+package org.datadryad.dansbagit;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe, least-recently-used cache of the catalogs of loaded bags, so that opening the
+ * same zip again does not re-read its central directory and tag files or re-parse its DIM metadata.
+ *
+ * Catalogs are keyed by the canonical path of the zip together with its size and modification time, so a
+ * zip which has been replaced is loaded afresh.  The cache is bounded by the total weight of the catalogs
+ * it holds, where a catalog weighs one plus the number of bitstreams and data file DIMs in the bag.
+ *
+ * DANSBag uses the cache once it has been registered with DANSBag.setCatalogCache.  Bags loaded from the
+ * cache share its catalogs, but not in any way they can see: the bitstream references are read-only, and each
+ * bag copies a DIM before handing it out.  A catalog which is evicted is closed once the last bag using it has
+ * been cleaned up or loaded again.
+ *
+ * Catalogs whose references spill to disk spill into the cache's own directory, rather than the working
+ * directory of whichever bag happened to load them.
+ */
+public class BagCatalogCache
+{
+    private static Logger log = Logger.getLogger(BagCatalogCache.class);
+
+    /** Default maximum total weight, i.e. roughly the number of bitstreams which may be cached */
+    public static final long DEFAULT_MAX_WEIGHT = 1000000;
+
+    /**
+     * Reads the catalog of a bag when it is not in the cache
+     */
+    interface Loader
+    {
+        BagCatalog load() throws IOException;
+    }
+
+    private long maxWeight;
+    private File spillDir;
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private LinkedHashMap<String, BagCatalog> catalogs = new LinkedHashMap<String, BagCatalog>(16, 0.75f, true);
+
+    public BagCatalogCache()
+    {
+        this(DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param maxWeight the maximum total weight of the catalogs to hold
+     */
+    public BagCatalogCache(long maxWeight)
+    {
+        this(maxWeight, null);
+    }
+
+    /**
+     * @param maxWeight the maximum total weight of the catalogs to hold
+     * @param spillDir  the directory for the cached references to spill to, which should not be used for
+     *                  anything else; if null, a directory is created in the system temporary directory
+     */
+    public BagCatalogCache(long maxWeight, File spillDir)
+    {
+        this.maxWeight = maxWeight;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * @return  the directory the cached references spill to
+     * @throws IOException  if no directory was given and one cannot be created
+     */
+    public synchronized File getSpillDir()
+            throws IOException
+    {
+        if (this.spillDir == null)
+        {
+            File dir = File.createTempFile("dans-bagit-catalogs", "");
+            if (!dir.delete() || !dir.mkdir())
+            {
+                throw new IOException("Unable to create a spill directory for the catalog cache at " + dir.getAbsolutePath());
+            }
+            dir.deleteOnExit();
+            this.spillDir = dir;
+        }
+        return this.spillDir;
+    }
+
+    /**
+     * Get the catalog for the given zip, loading it if it is not cached.  The caller must release the
+     * catalog when it has finished with it
+     *
+     * @param bagFile   the zipped bag
+     * @param loader    reads the catalog from the zip on a miss, spilling into getSpillDir()
+     * @return  the catalog
+     * @throws IOException
+     */
+    BagCatalog get(File bagFile, Loader loader)
+            throws IOException
+    {
+        String key = this.key(bagFile);
+        synchronized (this)
+        {
+            BagCatalog catalog = this.catalogs.get(key);
+            if (catalog != null)
+            {
+                this.hits++;
+                catalog.acquire();
+                return catalog;
+            }
+            this.misses++;
+        }
+
+        // load outside of the lock, so that other bags can be served in the meantime
+        BagCatalog catalog = loader.load();
+        catalog.getFileRefs().setReadOnly();
+        catalog.acquire();
+        this.put(bagFile, key, catalog);
+        return catalog;
+    }
+
+    /**
+     * Remove everything from the cache.  The metrics are not reset
+     */
+    public synchronized void clear()
+    {
+        for (BagCatalog catalog : new ArrayList<BagCatalog>(this.catalogs.values()))
+        {
+            catalog.setCached(false);
+        }
+        this.catalogs.clear();
+        this.weight = 0;
+    }
+
+    /**
+     * @return  the number of catalogs in the cache
+     */
+    public synchronized int size()
+    {
+        return this.catalogs.size();
+    }
+
+    /**
+     * @return  the total weight of the catalogs in the cache
+     */
+    public synchronized long getWeight()
+    {
+        return this.weight;
+    }
+
+    public synchronized long getMaxWeight()
+    {
+        return this.maxWeight;
+    }
+
+    /**
+     * Change the maximum weight, evicting catalogs straight away if the cache is now too heavy
+     *
+     * @param maxWeight the maximum total weight of the catalogs to hold
+     */
+    public synchronized void setMaxWeight(long maxWeight)
+    {
+        this.maxWeight = maxWeight;
+        this.evict();
+    }
+
+    /**
+     * @return  the number of times a catalog was found in the cache
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * @return  the number of times a catalog had to be loaded
+     */
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * @return  the number of catalogs evicted to keep the cache within its maximum weight
+     */
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    private synchronized void put(File bagFile, String key, BagCatalog catalog)
+            throws IOException
+    {
+        // drop anything cached for earlier versions of the same zip
+        String prefix = bagFile.getCanonicalPath() + "\t";
+        Iterator<Map.Entry<String, BagCatalog>> it = this.catalogs.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, BagCatalog> entry = it.next();
+            if (entry.getKey().startsWith(prefix))
+            {
+                this.weight -= entry.getValue().weight();
+                it.remove();
+                entry.getValue().setCached(false);
+            }
+        }
+
+        if (catalog.weight() > this.maxWeight)
+        {
+            log.debug("Not caching the catalog of " + bagFile.getAbsolutePath() + " as it is larger than the cache");
+            return;
+        }
+        this.catalogs.put(key, catalog);
+        catalog.setCached(true);
+        this.weight += catalog.weight();
+        this.evict();
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, BagCatalog>> it = this.catalogs.entrySet().iterator();
+        while (this.weight > this.maxWeight && it.hasNext())
+        {
+            Map.Entry<String, BagCatalog> eldest = it.next();
+            log.debug("Evicting the catalog of " + eldest.getKey());
+            this.weight -= eldest.getValue().weight();
+            this.evictions++;
+            it.remove();
+            eldest.getValue().setCached(false);
+        }
+    }
+
+    private String key(File bagFile)
+            throws IOException
+    {
+        return bagFile.getCanonicalPath() + "\t" + bagFile.length() + "\t" + bagFile.lastModified();
+    }
+}
@@ -0,0 +1,397 @@
+package org.datadryad.dansbagit;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Compares two zipped bags using only their manifests and bitstream-size.txt, reporting which payload files
+ * have been added, removed or changed without reading any of the payload.
+ *
+ * Bags written by DANSBag list their tag files in path order, so the two manifests are walked side by side
+ * in a single streaming merge and the memory used does not grow with the size of the bags.  Bags whose tag
+ * files are not sorted (such as those written by earlier versions) are compared by reading the tag files
+ * into memory instead.
+ */
+public class BagDiff
+{
+    private static Logger log = Logger.getLogger(BagDiff.class);
+
+    /**
+     * The ways in which a payload file can differ between the two bags
+     */
+    public enum Change
+    {
+        /** the file is only in the new bag */
+        ADDED,
+        /** the file is only in the old bag */
+        REMOVED,
+        /** the file is in both bags, with different content */
+        CHANGED
+    }
+
+    /**
+     * A payload file which differs between the two bags
+     */
+    public static class Difference
+    {
+        private String path;
+        private Change change;
+        private String oldChecksum;
+        private String newChecksum;
+        private long oldSize;
+        private long newSize;
+
+        public Difference(String path, Change change, String oldChecksum, String newChecksum, long oldSize, long newSize)
+        {
+            this.path = path;
+            this.change = change;
+            this.oldChecksum = oldChecksum;
+            this.newChecksum = newChecksum;
+            this.oldSize = oldSize;
+            this.newSize = newSize;
+        }
+
+        /**
+         * @return  the path of the file, relative to the base directory of the bag
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        public Change getChange()
+        {
+            return change;
+        }
+
+        /**
+         * @return  the checksum in the old bag, or null if the file was added
+         */
+        public String getOldChecksum()
+        {
+            return oldChecksum;
+        }
+
+        /**
+         * @return  the checksum in the new bag, or null if the file was removed
+         */
+        public String getNewChecksum()
+        {
+            return newChecksum;
+        }
+
+        /**
+         * @return  the size recorded in the old bag, or -1 if it is not known
+         */
+        public long getOldSize()
+        {
+            return oldSize;
+        }
+
+        /**
+         * @return  the size recorded in the new bag, or -1 if it is not known
+         */
+        public long getNewSize()
+        {
+            return newSize;
+        }
+
+        public String toString()
+        {
+            return this.change + "\t" + this.path;
+        }
+    }
+
+    private File oldBag;
+    private File newBag;
+
+    /**
+     * @param oldBag    the zipped bag to compare from
+     * @param newBag    the zipped bag to compare to
+     */
+    public BagDiff(File oldBag, File newBag)
+    {
+        this.oldBag = oldBag;
+        this.newBag = newBag;
+    }
+
+    /**
+     * Compare the two bags.  The SHA-1 manifests are used if both bags have them, otherwise the MD5 manifests
+     *
+     * @return  the payload files which differ, in path order
+     * @throws IOException
+     */
+    public List<Difference> diff()
+            throws IOException
+    {
+        ZipFile oldZip = new ZipFile(this.oldBag);
+        ZipFile newZip = new ZipFile(this.newBag);
+        try
+        {
+            String oldRoot = this.rootOf(oldZip);
+            String newRoot = this.rootOf(newZip);
+            String manifest = "manifest-sha1.txt";
+            if (oldZip.getEntry(oldRoot + "/" + manifest) == null || newZip.getEntry(newRoot + "/" + manifest) == null)
+            {
+                manifest = "manifest-md5.txt";
+            }
+
+            try
+            {
+                return this.merge(
+                        new StreamCursor(oldZip, oldRoot + "/" + manifest), new StreamCursor(newZip, newRoot + "/" + manifest),
+                        new StreamCursor(oldZip, oldRoot + "/bitstream-size.txt"), new StreamCursor(newZip, newRoot + "/bitstream-size.txt"));
+            }
+            catch (UnsortedException e)
+            {
+                log.info("Tag files are not in path order (" + e.getMessage() + "); comparing in memory");
+                return this.merge(
+                        new TagFileCursor(oldZip, oldRoot + "/" + manifest), new TagFileCursor(newZip, newRoot + "/" + manifest),
+                        new TagFileCursor(oldZip, oldRoot + "/bitstream-size.txt"), new TagFileCursor(newZip, newRoot + "/bitstream-size.txt"));
+            }
+        }
+        finally
+        {
+            oldZip.close();
+            newZip.close();
+        }
+    }
+
+    /**
+     * Walk the two manifests side by side
+     */
+    private List<Difference> merge(Cursor oldManifest, Cursor newManifest, Cursor oldSizes, Cursor newSizes)
+            throws IOException
+    {
+        List<Difference> diffs = new ArrayList<Difference>();
+        try
+        {
+            oldManifest.advance();
+            newManifest.advance();
+            while (oldManifest.path != null || newManifest.path != null)
+            {
+                int cmp;
+                if (oldManifest.path == null)
+                {
+                    cmp = 1;
+                }
+                else if (newManifest.path == null)
+                {
+                    cmp = -1;
+                }
+                else
+                {
+                    cmp = oldManifest.path.compareTo(newManifest.path);
+                }
+
+                if (cmp < 0)
+                {
+                    diffs.add(new Difference(oldManifest.path, Change.REMOVED, oldManifest.value, null,
+                            this.size(oldSizes, oldManifest.path), -1));
+                    oldManifest.advance();
+                }
+                else if (cmp > 0)
+                {
+                    diffs.add(new Difference(newManifest.path, Change.ADDED, null, newManifest.value,
+                            -1, this.size(newSizes, newManifest.path)));
+                    newManifest.advance();
+                }
+                else
+                {
+                    long oldSize = this.size(oldSizes, oldManifest.path);
+                    long newSize = this.size(newSizes, newManifest.path);
+                    if (!oldManifest.value.equals(newManifest.value) || oldSize != newSize)
+                    {
+                        diffs.add(new Difference(oldManifest.path, Change.CHANGED, oldManifest.value, newManifest.value, oldSize, newSize));
+                    }
+                    oldManifest.advance();
+                    newManifest.advance();
+                }
+            }
+        }
+        finally
+        {
+            oldManifest.close();
+            newManifest.close();
+            oldSizes.close();
+            newSizes.close();
+        }
+        return diffs;
+    }
+
+    /**
+     * Look up the size of a file, moving the size cursor forward to it.  The manifest is walked in path order,
+     * so the size cursor never has to go back
+     */
+    private long size(Cursor sizes, String path)
+            throws IOException
+    {
+        if (sizes.path == null && !sizes.started)
+        {
+            sizes.advance();
+        }
+        while (sizes.path != null && sizes.path.compareTo(path) < 0)
+        {
+            sizes.advance();
+        }
+        if (sizes.path != null && sizes.path.equals(path))
+        {
+            return Long.parseLong(sizes.value);
+        }
+        return -1;
+    }
+
+    private String rootOf(ZipFile zf)
+            throws IOException
+    {
+        Enumeration<? extends ZipEntry> e = zf.entries();
+        while (e.hasMoreElements())
+        {
+            ZipEntry entry = e.nextElement();
+            if (!entry.isDirectory())
+            {
+                return DANSBag.getRootName(entry.getName());
+            }
+        }
+        throw new IOException(zf.getName() + " is empty");
+    }
+
+    /**
+     * A position in a tag file, moving forward through its entries in path order
+     */
+    private static abstract class Cursor
+    {
+        /** the path of the current entry, or null at the end */
+        String path = null;
+        String value = null;
+        boolean started = false;
+
+        abstract void advance() throws IOException;
+
+        abstract void close() throws IOException;
+    }
+
+    /**
+     * Reads a tag file line by line, checking as it goes that the paths are in order
+     */
+    private static class StreamCursor extends Cursor
+    {
+        private String name;
+        private BufferedReader reader = null;
+
+        public StreamCursor(ZipFile zf, String name)
+                throws IOException
+        {
+            this.name = name;
+            ZipEntry entry = zf.getEntry(name);
+            if (entry != null)
+            {
+                this.reader = new BufferedReader(new InputStreamReader(zf.getInputStream(entry), "UTF-8"));
+            }
+        }
+
+        void advance()
+                throws IOException
+        {
+            this.started = true;
+            String previous = this.path;
+            this.path = null;
+            this.value = null;
+            if (this.reader == null)
+            {
+                return;
+            }
+            String line;
+            while ((line = this.reader.readLine()) != null)
+            {
+                int lastTab = line.lastIndexOf("\t");
+                if (lastTab == -1)
+                {
+                    continue;
+                }
+                this.path = line.substring(lastTab + 1);
+                this.value = line.substring(0, lastTab);
+                if (previous != null && previous.compareTo(this.path) >= 0)
+                {
+                    throw new UnsortedException(this.name + " lists " + this.path + " after " + previous);
+                }
+                return;
+            }
+        }
+
+        void close()
+                throws IOException
+        {
+            if (this.reader != null)
+            {
+                this.reader.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a whole tag file into memory, where its entries are held in path order
+     */
+    private static class TagFileCursor extends Cursor
+    {
+        private TagFile tf = null;
+        private Iterator<String> paths = null;
+
+        public TagFileCursor(ZipFile zf, String name)
+                throws IOException
+        {
+            ZipEntry entry = zf.getEntry(name);
+            if (entry != null)
+            {
+                InputStream is = zf.getInputStream(entry);
+                try
+                {
+                    this.tf = TagFile.parse(is);
+                    this.paths = this.tf.getPaths().iterator();
+                }
+                finally
+                {
+                    is.close();
+                }
+            }
+        }
+
+        void advance()
+        {
+            this.started = true;
+            this.path = null;
+            this.value = null;
+            if (this.paths != null && this.paths.hasNext())
+            {
+                this.path = this.paths.next();
+                this.value = this.tf.getValue(this.path);
+            }
+        }
+
+        void close() {}
+    }
+
+    /**
+     * Raised when a tag file turns out not to be in path order, and so cannot be merged as it is read
+     */
+    private static class UnsortedException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public UnsortedException(String message)
+        {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.datadryad.dansbagit;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+
+/**
+ * Unpacks a zipped bag into a directory.
+ *
+ * The entries are inflated concurrently on a pool of threads, each using its own handle onto the zip.  Each
+ * target file is allocated at its full size before it is written, and the content can optionally be checked
+ * against the bag's manifests as it is extracted, so that a restore does not need a separate validation pass.
+ *
+ * A file which cannot be extracted, or whose content does not match the manifests, is removed rather than
+ * left behind half written or corrupt.  If the extraction is interrupted the report says so, and the files
+ * which were not finished are removed.
+ */
+public class BagExtractor
+{
+    private static Logger log = Logger.getLogger(BagExtractor.class);
+
+    /** Buffer size to be used when chunking through input streams */
+    private static final int BUFFER = 65536;
+
+    private File bagFile;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor = null;
+    private boolean verify = false;
+
+    /**
+     * @param bagFile   the zipped bag to extract
+     */
+    public BagExtractor(File bagFile)
+    {
+        this.bagFile = bagFile;
+    }
+
+    /**
+     * Set the number of threads (and zip handles) to use.  Defaults to the number of available processors
+     *
+     * @param threads   number of threads
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Run the extraction on the given executor rather than on a pool created for it.  The executor
+     * is not shut down afterwards.
+     *
+     * @param executor  the executor to use
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Check each file against the manifests as it is extracted
+     *
+     * @param verify    whether to verify the extracted files
+     */
+    public void setVerify(boolean verify)
+    {
+        this.verify = verify;
+    }
+
+    /**
+     * Extract the bag.  The bag's base directory is created inside the target directory, as unzip would
+     *
+     * @param targetDir the directory to extract into
+     * @return  a report of the files written, any failures, whether the extraction was interrupted, and the
+     *          throughput
+     * @throws IOException  if the zip cannot be read
+     */
+    public ExtractionReport extractTo(File targetDir)
+            throws IOException
+    {
+        long start = System.currentTimeMillis();
+        ExtractionReport report = new ExtractionReport();
+
+        BagValidator.BagContents contents = new BagValidator(this.bagFile).scan();
+        File baseDir = new File(targetDir, contents.root);
+        String basePath = baseDir.getCanonicalPath() + File.separator;
+
+        ExecutorService pool = this.executor;
+        if (pool == null)
+        {
+            pool = Executors.newFixedThreadPool(this.threads);
+        }
+        ZipFilePool handles = new ZipFilePool(this.bagFile, this.threads);
+        List<Future<ValidationReport.Result>> futures = new ArrayList<Future<ValidationReport.Result>>();
+
+        try
+        {
+            for (String path : contents.entries.keySet())
+            {
+                File target = new File(baseDir, path);
+                if (!target.getCanonicalPath().startsWith(basePath))
+                {
+                    report.addFailure(new ValidationReport.Result(path, ValidationReport.Status.ERROR, "path is outside of the bag"));
+                    continue;
+                }
+                Map<String, String> expected = this.verify ? contents.expected.get(path) : null;
+                futures.add(pool.submit(new Extraction(handles, contents.root, path, contents.entries.get(path), target, expected, report)));
+            }
+
+            for (Future<ValidationReport.Result> future : futures)
+            {
+                ValidationReport.Result result;
+                try
+                {
+                    result = future.get();
+                }
+                catch (CancellationException e)
+                {
+                    // the executor was shut down under us
+                    report.setInterrupted(true);
+                    continue;
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof InterruptedException)
+                    {
+                        report.setInterrupted(true);
+                        continue;
+                    }
+                    throw new IOException(e.getCause());
+                }
+                if (result != null)
+                {
+                    report.addFailure(result);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            log.warn("Extraction of " + this.bagFile.getAbsolutePath() + " interrupted");
+            report.setInterrupted(true);
+            for (Future<ValidationReport.Result> f : futures)
+            {
+                f.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            if (this.executor == null)
+            {
+                pool.shutdownNow();
+            }
+            handles.close();
+        }
+
+        report.setElapsed(System.currentTimeMillis() - start);
+        log.info("Extracted " + this.bagFile.getAbsolutePath() + " to " + targetDir.getAbsolutePath() + ": " + report);
+        return report;
+    }
+
+    /**
+     * Extract a single entry of the zip
+     */
+    private static class Extraction implements Callable<ValidationReport.Result>
+    {
+        private ZipFilePool handles;
+        private String root;
+        private String path;
+        private long size;
+        private File target;
+        private Map<String, String> expected;
+        private ExtractionReport report;
+
+        public Extraction(ZipFilePool handles, String root, String path, long size, File target,
+                          Map<String, String> expected, ExtractionReport report)
+        {
+            this.handles = handles;
+            this.root = root;
+            this.path = path;
+            this.size = size;
+            this.target = target;
+            this.expected = expected;
+            this.report = report;
+        }
+
+        /**
+         * @return  null if the entry was extracted successfully, or the reason it was not
+         */
+        public ValidationReport.Result call()
+                throws Exception
+        {
+            File parent = this.target.getParentFile();
+            if (!parent.exists() && !parent.mkdirs() && !parent.exists())
+            {
+                return new ValidationReport.Result(this.path, ValidationReport.Status.ERROR, "unable to create directory " + parent.getAbsolutePath());
+            }
+
+            ZipFile zf = this.handles.acquire();
+            RandomAccessFile raf = null;
+            boolean complete = false;
+            try
+            {
+                InputStream is = zf.getInputStream(zf.getEntry(this.root + "/" + this.path));
+                if (this.expected != null)
+                {
+                    is = new FixityInputStream(is, this.path, this.expected);
+                }
+
+                raf = new RandomAccessFile(this.target, "rw");
+                if (this.size > 0)
+                {
+                    // allocate the whole file up front, so the file system can lay it out in one go
+                    raf.setLength(this.size);
+                }
+
+                long total = 0;
+                int count;
+                byte[] data = new byte[BUFFER];
+                try
+                {
+                    while ((count = is.read(data, 0, BUFFER)) != -1)
+                    {
+                        if (Thread.currentThread().isInterrupted())
+                        {
+                            throw new InterruptedException("Extraction of " + this.path + " cancelled");
+                        }
+                        raf.write(data, 0, count);
+                        total += count;
+                    }
+                }
+                finally
+                {
+                    is.close();
+                }
+                if (total != raf.length())
+                {
+                    raf.setLength(total);
+                }
+                this.report.addFile(total);
+                complete = true;
+                return null;
+            }
+            catch (FixityException e)
+            {
+                return new ValidationReport.Result(this.path, ValidationReport.Status.CHECKSUM_MISMATCH, e.getMessage() + "; file removed");
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to extract " + this.path, e);
+                return new ValidationReport.Result(this.path, ValidationReport.Status.ERROR, e.getMessage() + "; file removed");
+            }
+            finally
+            {
+                if (raf != null)
+                {
+                    raf.close();
+                    if (!complete && !this.target.delete())
+                    {
+                        log.warn("Unable to remove incomplete file " + this.target.getAbsolutePath());
+                    }
+                }
+                this.handles.release(zf);
+            }
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package org.datadryad.dansbagit;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact store for the information the bag holds about each of its payload bitstreams.
+ *
+ * Each reference is kept as a fixed-width binary record: strings are replaced by ids into a
+ * string table (with the low-cardinality values such as payload directories, data file
+ * identifiers, bundles and formats interned), sizes are primitive longs and checksums are held
+ * as raw digest bytes rather than hex strings.  The records, the string table and the offsets of
+ * the strings each spill to memory-mapped files in the working directory once they pass a
+ * configurable threshold, so the number of files a bag can hold is limited by disk rather than heap.
+ *
+ * References can be looked up by data file, bundle and filename through a hash table of record indexes,
+ * built the first time it is needed; it costs at most 16 bytes of heap per reference and holds no strings.
+ */
+class BagFileReferenceStore
+{
+    /** Default number of bytes of records (and separately of strings and of string offsets) to hold on the heap */
+    public static final long DEFAULT_SPILL_THRESHOLD = 64L * 1024 * 1024;
+
+    /** Maximum number of distinct values we will remember for interning */
+    private static final int INTERN_LIMIT = 65536;
+
+    public static final int MD5_LENGTH = 16;
+    public static final int SHA1_LENGTH = 20;
+
+    // record layout
+    private static final int PAYLOAD_DIR = 0;
+    private static final int FILENAME = 4;
+    private static final int DATA_FILE_IDENT = 8;
+    private static final int BUNDLE = 12;
+    private static final int DESCRIPTION = 16;
+    private static final int FORMAT = 20;
+    private static final int SIZE = 24;
+    private static final int FLAGS = 32;
+    private static final int MD5 = 33;
+    private static final int SHA1 = MD5 + MD5_LENGTH;
+    private static final int ROOT = SHA1 + SHA1_LENGTH;
+    private static final int RECORD_SIZE = 72;
+
+    private static final byte HAS_MD5 = 1;
+    private static final byte HAS_SHA1 = 2;
+
+    private SpillableBuffer records;
+    private SpillableBuffer strings;
+    private SpillableBuffer stringOffsets;
+    private int stringCount = 0;
+    private Map<String, Integer> interned = new HashMap<String, Integer>();
+    private int count = 0;
+    private volatile boolean readOnly = false;
+
+    // open addressing hash table of record index + 1, with 0 for an empty slot
+    private int[] lookup = null;
+
+    /**
+     * Create a new empty store
+     *
+     * @param spillDir  directory in which spill files will be created if needed
+     * @param spillThreshold    number of bytes of records, strings or string offsets to hold on the heap before spilling
+     */
+    public BagFileReferenceStore(File spillDir, long spillThreshold)
+    {
+        this.records = new SpillableBuffer(spillDir, "refs", spillThreshold);
+        this.strings = new SpillableBuffer(spillDir, "strings", spillThreshold);
+        this.stringOffsets = new SpillableBuffer(spillDir, "offsets", spillThreshold);
+    }
+
+    private BagFileReferenceStore(SpillableBuffer records, SpillableBuffer strings, SpillableBuffer stringOffsets,
+                                  int stringCount, int count)
+    {
+        this.records = records;
+        this.strings = strings;
+        this.stringOffsets = stringOffsets;
+        this.stringCount = stringCount;
+        this.count = count;
+    }
+
+    /**
+     * Open a read-only store over a region of a file previously written by writeTo.  The references and
+     * strings are memory-mapped rather than read, as are the offsets of the strings, so the store is ready as
+     * soon as the header is read
+     *
+     * @param file  the file holding the store
+     * @param offset    the offset in the file at which writeTo started writing
+     * @return  the store
+     * @throws IOException
+     */
+    public static BagFileReferenceStore map(File file, long offset)
+            throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new ZipIndex.RangeInputStream(file, offset, 24)));
+        try
+        {
+            int count = in.readInt();
+            int stringCount = in.readInt();
+            long recordsLength = in.readLong();
+            long stringsLength = in.readLong();
+
+            long recordsOffset = offset + 24 + 8L * stringCount;
+            SpillableBuffer stringOffsets = SpillableBuffer.map(file, offset + 24, 8L * stringCount);
+            SpillableBuffer records = SpillableBuffer.map(file, recordsOffset, recordsLength);
+            SpillableBuffer strings = SpillableBuffer.map(file, recordsOffset + recordsLength, stringsLength);
+            return new BagFileReferenceStore(records, strings, stringOffsets, stringCount, count);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the whole store to the given stream, in a form which can be opened again with map
+     *
+     * @param out   the stream to write to
+     * @throws IOException
+     */
+    public void writeTo(DataOutputStream out)
+            throws IOException
+    {
+        out.writeInt(this.count);
+        out.writeInt(this.stringCount);
+        out.writeLong(this.records.length());
+        out.writeLong(this.strings.length());
+        this.stringOffsets.writeTo(out);
+        this.records.writeTo(out);
+        this.strings.writeTo(out);
+    }
+
+    /**
+     * Stop the store from being modified, for when it is shared between bags.  Any attempt to add or change
+     * a reference afterwards, or to change the spill threshold, throws an IllegalStateException
+     */
+    public void setReadOnly()
+    {
+        this.readOnly = true;
+    }
+
+    public boolean isReadOnly()
+    {
+        return this.readOnly;
+    }
+
+    /**
+     * Change the spill threshold, spilling immediately if the store is already larger
+     *
+     * @param spillThreshold    number of bytes of records, strings or string offsets to hold on the heap
+     * @throws IOException
+     */
+    public void setSpillThreshold(long spillThreshold)
+            throws IOException
+    {
+        this.checkWritable();
+        this.records.setThreshold(spillThreshold);
+        this.strings.setThreshold(spillThreshold);
+        this.stringOffsets.setThreshold(spillThreshold);
+    }
+
+    /**
+     * @return  true if any part of the store has moved to disk
+     */
+    public boolean isSpilled()
+    {
+        return this.records.isSpilled() || this.strings.isSpilled() || this.stringOffsets.isSpilled();
+    }
+
+    /**
+     * @return  the number of references in the store
+     */
+    public int size()
+    {
+        return this.count;
+    }
+
+    /**
+     * Add a reference to the store
+     *
+     * @param payloadDir    the directory part of the payload path, including the trailing separator
+     * @param filename  the filename part of the payload path
+     * @param dataFileIdent the identifier of the data file
+     * @param bundle    the DSpace bundle
+     * @param description   the bitstream description (may be null)
+     * @param format    the bitstream format (may be null)
+     * @param size  size in bytes, or -1 if not known
+     * @param md5   raw md5 digest (may be null)
+     * @param sha1  raw sha-1 digest (may be null)
+     * @return  the index of the new reference
+     * @throws IOException
+     */
+    public int add(String payloadDir, String filename, String dataFileIdent, String bundle,
+                   String description, String format, long size, byte[] md5, byte[] sha1)
+            throws IOException
+    {
+        this.checkWritable();
+        long base = (long) this.count * RECORD_SIZE;
+        byte[] record = new byte[RECORD_SIZE];
+        this.records.write(base, record, 0, RECORD_SIZE);
+
+        this.records.writeInt(base + PAYLOAD_DIR, this.intern(payloadDir));
+        this.records.writeInt(base + FILENAME, this.addString(filename));
+        this.records.writeInt(base + DATA_FILE_IDENT, this.intern(dataFileIdent));
+        this.records.writeInt(base + BUNDLE, this.intern(bundle));
+        this.records.writeInt(base + DESCRIPTION, this.intern(description));
+        this.records.writeInt(base + FORMAT, this.intern(format));
+        this.records.writeLong(base + SIZE, size);
+
+        int index = this.count;
+        this.count++;
+
+        this.setMd5(index, md5);
+        this.setSha1(index, sha1);
+
+        synchronized (this)
+        {
+            if (this.lookup != null)
+            {
+                this.insert(index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Find a reference.  If more than one matches, the first to be added is found
+     *
+     * @param dataFileIdent the identifier of the data file
+     * @param bundle    the DSpace bundle
+     * @param filename  the filename part of the payload path
+     * @return  the index of the reference, or -1 if there is none
+     */
+    public synchronized int find(String dataFileIdent, String bundle, String filename)
+    {
+        if (this.lookup == null)
+        {
+            this.lookup = new int[this.tableSize(this.count)];
+            for (int i = 0; i < this.count; i++)
+            {
+                this.insert(i);
+            }
+        }
+
+        int mask = this.lookup.length - 1;
+        for (int slot = this.hash(dataFileIdent, bundle, filename) & mask; this.lookup[slot] != 0; slot = (slot + 1) & mask)
+        {
+            int i = this.lookup[slot] - 1;
+            if (filename.equals(this.getFilename(i)) && bundle.equals(this.getBundle(i)) &&
+                    dataFileIdent.equals(this.getDataFileIdent(i)))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getPayloadDir(int i)
+    {
+        return this.stringField(i, PAYLOAD_DIR);
+    }
+
+    public String getFilename(int i)
+    {
+        return this.stringField(i, FILENAME);
+    }
+
+    public String getPayloadPath(int i)
+    {
+        return this.getPayloadDir(i) + this.getFilename(i);
+    }
+
+    public String getDataFileIdent(int i)
+    {
+        return this.stringField(i, DATA_FILE_IDENT);
+    }
+
+    public String getBundle(int i)
+    {
+        return this.stringField(i, BUNDLE);
+    }
+
+    public String getDescription(int i)
+    {
+        return this.stringField(i, DESCRIPTION);
+    }
+
+    public String getFormat(int i)
+    {
+        return this.stringField(i, FORMAT);
+    }
+
+    public long getSize(int i)
+    {
+        return this.records.readLong((long) i * RECORD_SIZE + SIZE);
+    }
+
+    /**
+     * @return  the raw md5 digest of the reference, or null if it is not known
+     */
+    public byte[] getMd5(int i)
+    {
+        return this.digestField(i, MD5, MD5_LENGTH, HAS_MD5);
+    }
+
+    /**
+     * @return  the raw sha-1 digest of the reference, or null if it is not known
+     */
+    public byte[] getSha1(int i)
+    {
+        return this.digestField(i, SHA1, SHA1_LENGTH, HAS_SHA1);
+    }
+
+    public void setMd5(int i, byte[] md5)
+            throws IOException
+    {
+        this.checkWritable();
+        this.setDigestField(i, MD5, MD5_LENGTH, HAS_MD5, md5);
+    }
+
+    public void setSha1(int i, byte[] sha1)
+            throws IOException
+    {
+        this.checkWritable();
+        this.setDigestField(i, SHA1, SHA1_LENGTH, HAS_SHA1, sha1);
+    }
+
+    /**
+     * @return  the position of the staging root the bitstream was staged in, 0 being the working directory
+     */
+    public int getRoot(int i)
+    {
+        return this.records.readByte((long) i * RECORD_SIZE + ROOT) & 0xff;
+    }
+
+    public void setRoot(int i, int root)
+            throws IOException
+    {
+        this.checkWritable();
+        this.records.writeByte((long) i * RECORD_SIZE + ROOT, (byte) root);
+    }
+
+    /**
+     * Release all heap and disk resources held by the store
+     */
+    public void close()
+    {
+        this.records.close();
+        this.strings.close();
+        this.stringOffsets.close();
+        this.interned = null;
+        this.lookup = null;
+    }
+
+    private void checkWritable()
+    {
+        if (this.readOnly)
+        {
+            throw new IllegalStateException("The bitstream references are shared and cannot be modified");
+        }
+    }
+
+    /**
+     * Add a reference to the lookup table, growing it if it would be more than half full
+     */
+    private void insert(int i)
+    {
+        if (2L * (i + 1) > this.lookup.length)
+        {
+            // re-place the references in the order they were added, so that the first of any duplicates
+            // is still found first
+            this.lookup = new int[this.tableSize(i + 1)];
+            for (int j = 0; j < i; j++)
+            {
+                this.place(j);
+            }
+        }
+        this.place(i);
+    }
+
+    private void place(int i)
+    {
+        int mask = this.lookup.length - 1;
+        int slot = this.hash(this.getDataFileIdent(i), this.getBundle(i), this.getFilename(i)) & mask;
+        while (this.lookup[slot] != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+        this.lookup[slot] = i + 1;
+    }
+
+    private int tableSize(int entries)
+    {
+        int size = 16;
+        while (size < 2L * entries)
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private int hash(String dataFileIdent, String bundle, String filename)
+    {
+        int h = dataFileIdent == null ? 0 : dataFileIdent.hashCode();
+        h = 31 * h + (bundle == null ? 0 : bundle.hashCode());
+        h = 31 * h + (filename == null ? 0 : filename.hashCode());
+        return h ^ (h >>> 16);
+    }
+
+    private String stringField(int i, int field)
+    {
+        int id = this.records.readInt((long) i * RECORD_SIZE + field);
+        return this.getString(id);
+    }
+
+    private byte[] digestField(int i, int field, int length, byte flag)
+    {
+        long base = (long) i * RECORD_SIZE;
+        if ((this.records.readByte(base + FLAGS) & flag) == 0)
+        {
+            return null;
+        }
+        byte[] digest = new byte[length];
+        this.records.read(base + field, digest, 0, length);
+        return digest;
+    }
+
+    private void setDigestField(int i, int field, int length, byte flag, byte[] digest)
+            throws IOException
+    {
+        if (digest == null)
+        {
+            return;
+        }
+        if (digest.length != length)
+        {
+            throw new IllegalArgumentException("Expected a digest of " + length + " bytes but got " + digest.length);
+        }
+        long base = (long) i * RECORD_SIZE;
+        this.records.write(base + field, digest, 0, length);
+        this.records.writeByte(base + FLAGS, (byte) (this.records.readByte(base + FLAGS) | flag));
+    }
+
+    /**
+     * Add a string to the string table, reusing an existing id if we have seen the value before
+     */
+    private int intern(String value)
+            throws IOException
+    {
+        if (value == null)
+        {
+            return -1;
+        }
+        Integer existing = this.interned.get(value);
+        if (existing != null)
+        {
+            return existing;
+        }
+        int id = this.addString(value);
+        if (this.interned.size() < INTERN_LIMIT)
+        {
+            this.interned.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * Add a string to the string table without attempting to share it
+     */
+    private int addString(String value)
+            throws IOException
+    {
+        if (value == null)
+        {
+            return -1;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        long offset = this.strings.length();
+        this.strings.writeInt(offset, bytes.length);
+        this.strings.write(offset + 4, bytes, 0, bytes.length);
+        this.stringOffsets.writeLong(8L * this.stringCount, offset);
+        return this.stringCount++;
+    }
+
+    private String getString(int id)
+    {
+        if (id == -1)
+        {
+            return null;
+        }
+        long offset = this.stringOffsets.readLong(8L * id);
+        int length = this.strings.readInt(offset);
+        byte[] bytes = new byte[length];
+        this.strings.read(offset + 4, bytes, 0, length);
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.datadryad.dansbagit;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * Binary index of a bag, written as the first entry of the zip so that loadBag can be ready after
+ * reading one file rather than classifying every entry and parsing the tag files.
+ *
+ * The index is STORED (uncompressed), so the bitstream references inside it are memory-mapped straight
+ * out of the zip in the same fixed-width format that BagFileReferenceStore uses in memory.  It holds the
+ * data file mappings and notes which DIM documents exist; the DIMs themselves are only parsed when they
+ * are asked for.
+ *
+ * Layout: the magic number and version, the bag name, whether there is a dataset DIM, the data files
+ * (payload directory, identifier, and whether it has a DIM), and then the reference store.
+ *
+ * The index does not hold the offsets of the entries in the zip.  It is written before any of them, so their
+ * offsets are not yet known, and ranged reads still find a bitstream's data through ZipIndex, which reads the
+ * central directory once per bag.
+ */
+class BagIndex
+{
+    private static Logger log = Logger.getLogger(BagIndex.class);
+
+    /** The name of the index in the base directory of the bag */
+    public static final String FILENAME = "bag-index.bin";
+
+    private static final int MAGIC = 0x44424958;
+    private static final int VERSION = 1;
+
+    private String name;
+    private boolean datasetDim;
+    private Map<String, String> dataFilePaths;
+    private Set<String> dimDirs;
+    private BagFileReferenceStore fileRefs;
+
+    /**
+     * @param name  the name of the bag
+     * @param datasetDim    whether the bag has a dataset DIM
+     * @param dataFilePaths map of data file payload directory (data/[dir]/) to data file identifier
+     * @param dimDirs   the payload directories of the data files which have a DIM
+     * @param fileRefs  the references, as loadBag would read them from the tag files
+     */
+    public BagIndex(String name, boolean datasetDim, Map<String, String> dataFilePaths, Set<String> dimDirs, BagFileReferenceStore fileRefs)
+    {
+        this.name = name;
+        this.datasetDim = datasetDim;
+        this.dataFilePaths = dataFilePaths;
+        this.dimDirs = dimDirs;
+        this.fileRefs = fileRefs;
+    }
+
+    /**
+     * Write the index to a file
+     *
+     * @param file  the file to write
+     * @throws IOException
+     */
+    public void writeTo(File file)
+            throws IOException
+    {
+        Map<String, String> dirs = new HashMap<String, String>(this.dataFilePaths);
+        for (String dir : this.dimDirs)
+        {
+            if (!dirs.containsKey(dir))
+            {
+                dirs.put(dir, null);
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(this.name);
+            out.writeBoolean(this.datasetDim);
+            out.writeInt(dirs.size());
+            for (String dir : dirs.keySet())
+            {
+                String ident = dirs.get(dir);
+                out.writeUTF(dir);
+                out.writeBoolean(ident != null);
+                out.writeUTF(ident == null ? "" : ident);
+                out.writeBoolean(this.dimDirs.contains(dir));
+            }
+            this.fileRefs.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Release the references held by the index
+     */
+    public void close()
+    {
+        this.fileRefs.close();
+    }
+
+    /**
+     * Read the index of a bag, if it has one
+     *
+     * @param bagFile   the zipped bag
+     * @return  the catalog of the bag, or null if the bag does not start with an index
+     * @throws IOException
+     */
+    public static BagCatalog read(File bagFile)
+            throws IOException
+    {
+        ZipIndex.Entry entry = ZipIndex.readLocalHeader(bagFile, 0);
+        if (entry == null || entry.method != ZipEntry.STORED || !entry.name.endsWith("/" + FILENAME))
+        {
+            return null;
+        }
+        String root = entry.name.substring(0, entry.name.length() - FILENAME.length() - 1);
+        log.debug("Loading " + bagFile.getAbsolutePath() + " from its index");
+
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(
+                new ZipIndex.RangeInputStream(bagFile, entry.dataOffset, entry.size), 65536));
+        DataInputStream in = new DataInputStream(counter);
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                log.warn("Ignoring index of unknown version in " + bagFile.getAbsolutePath());
+                return null;
+            }
+            String name = in.readUTF();
+            String datasetDimPath = in.readBoolean() ? root + "/data/metadata.xml" : null;
+
+            Map<String, String> dataFilePaths = new HashMap<String, String>();
+            Map<String, String> dimPaths = new HashMap<String, String>();
+            int dirs = in.readInt();
+            for (int i = 0; i < dirs; i++)
+            {
+                String dir = in.readUTF();
+                boolean hasIdent = in.readBoolean();
+                String ident = in.readUTF();
+                if (!hasIdent)
+                {
+                    ident = null;
+                }
+                else
+                {
+                    dataFilePaths.put(dir, ident);
+                }
+                if (in.readBoolean())
+                {
+                    dimPaths.put(ident, root + "/" + dir + "metadata.xml");
+                }
+            }
+
+            BagFileReferenceStore fileRefs = BagFileReferenceStore.map(bagFile, entry.dataOffset + counter.getByteCount());
+            return new BagCatalog(name, datasetDimPath, dimPaths, dataFilePaths, fileRefs);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
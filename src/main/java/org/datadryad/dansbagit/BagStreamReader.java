@@ -0,0 +1,252 @@
+package org.datadryad.dansbagit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * One-pass reader for a zipped DANS bag arriving as a stream (for example an HTTP response body),
+ * which does not require the zip to be on local disk.
+ *
+ * Bitstreams are handed to a callback as they stream past, with the same metadata that
+ * {@link DANSBag#loadBag()} would give them.  Only the tag files and the DIM documents are buffered.
+ *
+ * Bags written by this library carry all of the tag files that describe the bitstreams ahead of the
+ * payload, so every bitstream can be delivered straight from the stream.  In older bags those tag files
+ * come at the end of the zip; any bitstreams which arrive before them are spooled to the working directory
+ * and delivered once the metadata has been read.
+ */
+public class BagStreamReader
+{
+    private static Logger log = Logger.getLogger(BagStreamReader.class);
+
+    /**
+     * Callback which receives each bitstream in the bag
+     */
+    public interface BitstreamHandler
+    {
+        /**
+         * Handle a bitstream.  The bitstream's input stream is only valid until this method returns, and
+         * does not need to be closed
+         *
+         * @param bitstream the bitstream and its metadata
+         * @throws IOException
+         */
+        void bitstream(BaggedBitstream bitstream) throws IOException;
+    }
+
+    /** The tag files we buffer from the stream; all of these are in the path-to-value tag file format */
+    private static final List<String> TAG_FILES = Arrays.asList(
+            "bitstream-description.txt", "bitstream-format.txt", "bitstream-size.txt", "ident-datafiles.txt",
+            "manifest-md5.txt", "manifest-sha1.txt", "tagmanifest-md5.txt");
+
+    private InputStream inputStream;
+    private File workingDir;
+
+    private String name = null;
+    private Map<String, TagFile> tagFiles = new HashMap<String, TagFile>();
+    private DIM dim = null;
+    private Map<String, DIM> dfDims = new HashMap<String, DIM>();
+    private Map<String, DIM> subDim = new HashMap<String, DIM>();
+    private Set<String> dataFileIdents = new HashSet<String>();
+
+    /**
+     * Create a reader around the given stream of zip content
+     *
+     * @param is    stream of the zipped bag
+     * @param workingDir    directory in which bitstreams may be spooled if the bag does not carry its metadata first
+     */
+    public BagStreamReader(InputStream is, File workingDir)
+    {
+        this.inputStream = is;
+        this.workingDir = workingDir;
+    }
+
+    /**
+     * Read through the bag, passing each bitstream to the handler
+     *
+     * @param handler   callback to receive the bitstreams
+     * @throws IOException
+     */
+    public void read(BitstreamHandler handler)
+            throws IOException
+    {
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(this.inputStream));
+        List<File> spooled = new ArrayList<File>();
+        List<String> spooledPaths = new ArrayList<String>();
+
+        try
+        {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null)
+            {
+                String path = entry.getName();
+                if (this.name == null)
+                {
+                    this.name = DANSBag.getRootName(path);
+                }
+
+                if (DANSBag.pathIsDatasetDIM(path))
+                {
+                    this.dim = DIM.parse(new CloseShieldInputStream(zis));
+                }
+                else if (DANSBag.pathIsDataFileDIM(path))
+                {
+                    this.dfDims.put(DANSBag.getPayloadDataFileIdent(path), DIM.parse(new CloseShieldInputStream(zis)));
+                }
+                else if (DANSBag.pathIsDryadTagFile(path))
+                {
+                    String tagName = path.substring(path.lastIndexOf("/") + 1);
+                    if (TAG_FILES.contains(tagName))
+                    {
+                        this.tagFiles.put(tagName, TagFile.parse(new CloseShieldInputStream(zis)));
+                    }
+                }
+                else if (DANSBag.pathIsBitstream(path))
+                {
+                    if (this.tagFiles.containsKey("ident-datafiles.txt"))
+                    {
+                        handler.bitstream(this.bitstream(path, new CloseShieldInputStream(zis)));
+                    }
+                    else
+                    {
+                        // the metadata hasn't arrived yet, so we have to hold on to this one
+                        if (!this.workingDir.exists())
+                        {
+                            this.workingDir.mkdirs();
+                        }
+                        File spool = File.createTempFile("bitstream", ".spool", this.workingDir);
+                        log.debug("Spooling " + path + " to " + spool.getAbsolutePath() + " until the bag metadata has been read");
+                        OutputStream os = new FileOutputStream(spool);
+                        IOUtils.copy(zis, os);
+                        os.close();
+                        spooled.add(spool);
+                        spooledPaths.add(path);
+                    }
+                }
+            }
+
+            if (!this.tagFiles.containsKey("ident-datafiles.txt"))
+            {
+                throw new RuntimeException("Bag File does not contain a ident-datafiles.txt - cannot parse");
+            }
+
+            for (int i = 0; i < spooled.size(); i++)
+            {
+                InputStream is = new FileInputStream(spooled.get(i));
+                try
+                {
+                    handler.bitstream(this.bitstream(spooledPaths.get(i), is));
+                }
+                finally
+                {
+                    is.close();
+                }
+            }
+
+            TagFile dataFileIdents = this.tagFiles.get("ident-datafiles.txt");
+            for (String dfPathBit : this.dfDims.keySet())
+            {
+                String dataFileIdent = dataFileIdents.getValue("data/" + dfPathBit + File.separator);
+                this.subDim.put(dataFileIdent, this.dfDims.get(dfPathBit));
+            }
+        }
+        finally
+        {
+            for (File spool : spooled)
+            {
+                spool.delete();
+            }
+        }
+    }
+
+    /**
+     * @return  the name of the bag (the top level directory inside the zip)
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public DIM getDatasetDIM()
+    {
+        return this.dim;
+    }
+
+    public DIM getDatafileDIM(String dataFileIdent)
+    {
+        return this.subDim.get(dataFileIdent);
+    }
+
+    public Set<String> dataFileIdents()
+    {
+        return this.dataFileIdents;
+    }
+
+    /**
+     * Get one of the tag files which was read from the bag
+     *
+     * @param filename  the name of the tag file, e.g. manifest-md5.txt
+     * @return  the tag file, or null if the bag did not contain it
+     */
+    public TagFile getTagFile(String filename)
+    {
+        return this.tagFiles.get(filename);
+    }
+
+    private BaggedBitstream bitstream(String path, final InputStream is)
+    {
+        String dfPathBit = DANSBag.getPayloadDataFileIdent(path);
+        String bundle = DANSBag.getPayloadBundle(path);
+        String filename = DANSBag.getFilename(path);
+
+        String dataFileIdent = this.tagFiles.get("ident-datafiles.txt").getValue("data/" + dfPathBit + File.separator);
+        this.dataFileIdents.add(dataFileIdent);
+
+        String payloadPath = "data" + File.separator + Files.sanitizeFilename(dataFileIdent) + File.separator +
+                bundle + File.separator + filename;
+        String description = this.tagValue("bitstream-description.txt", payloadPath);
+        String format = this.tagValue("bitstream-format.txt", payloadPath);
+
+        String size = this.tagValue("bitstream-size.txt", payloadPath);
+        String md5 = this.tagValue("manifest-md5.txt", payloadPath);
+        String sha1 = this.tagValue("manifest-sha1.txt", payloadPath);
+
+        BaggedBitstream.StreamSource source = new BaggedBitstream.StreamSource()
+        {
+            public InputStream open()
+            {
+                return is;
+            }
+        };
+        return new BaggedBitstream(source, filename, format, description, dataFileIdent, bundle,
+                size == null ? -1 : Long.parseLong(size), md5, sha1);
+    }
+
+    private String tagValue(String tagFile, String payloadPath)
+    {
+        TagFile tf = this.tagFiles.get(tagFile);
+        if (tf == null)
+        {
+            return null;
+        }
+        return tf.getValue(payloadPath);
+    }
+}
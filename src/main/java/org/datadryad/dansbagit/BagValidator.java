@@ -0,0 +1,500 @@
+package org.datadryad.dansbagit;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Validates a zipped bag against its manifests.
+ *
+ * A full validation checks every payload file against manifest-md5.txt and manifest-sha1.txt and every
+ * tag file against tagmanifest-md5.txt.  The checks run concurrently on a pool of threads, each using its
+ * own handle onto the zip, and can optionally stop at the first failure.
+ *
+ * A quick validation only checks that the bag is complete, using the sizes in the zip's central directory,
+ * and does not read any of the payload.
+ */
+public class BagValidator
+{
+    private static Logger log = Logger.getLogger(BagValidator.class);
+
+    /** Buffer size to be used when chunking through input streams */
+    private static final int BUFFER = 65536;
+
+    /** The payload manifests, and the digest algorithm each one uses */
+    private static final Map<String, String> PAYLOAD_MANIFESTS = new LinkedHashMap<String, String>();
+    static
+    {
+        PAYLOAD_MANIFESTS.put("manifest-md5.txt", "MD5");
+        PAYLOAD_MANIFESTS.put("manifest-sha1.txt", "SHA-1");
+    }
+
+    private File bagFile;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor = null;
+    private boolean failFast = false;
+
+    /**
+     * @param bagFile   the zipped bag to validate
+     */
+    public BagValidator(File bagFile)
+    {
+        this.bagFile = bagFile;
+    }
+
+    /**
+     * Set the number of threads (and zip handles) to use.  Defaults to the number of available processors
+     *
+     * @param threads   number of threads
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Run the checks on the given executor rather than on a pool created for this validation.  The executor
+     * is not shut down afterwards.
+     *
+     * @param executor  the executor to use
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Stop, and cancel all outstanding checks, as soon as the first problem is found
+     *
+     * @param failFast  whether to fail fast
+     */
+    public void setFailFast(boolean failFast)
+    {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Validate the bag
+     *
+     * @return  a report of the result for each file in the bag
+     * @throws IOException  if the zip or its manifests cannot be read
+     */
+    public ValidationReport validate()
+            throws IOException
+    {
+        long start = System.currentTimeMillis();
+        ValidationReport report = new ValidationReport();
+
+        BagContents contents = this.scan();
+        this.checkCompleteness(contents, report);
+        String root = contents.root;
+        Map<String, Map<String, String>> expected = contents.expected;
+        Map<String, Long> entries = contents.entries;
+
+        if (this.failFast && !report.getFailures().isEmpty())
+        {
+            report.setCancelled(true);
+            report.setElapsed(System.currentTimeMillis() - start);
+            return report;
+        }
+
+        // fixity: check each entry's checksums concurrently
+        ExecutorService pool = this.executor;
+        if (pool == null)
+        {
+            pool = Executors.newFixedThreadPool(this.threads);
+        }
+        ZipFilePool handles = new ZipFilePool(this.bagFile, this.threads);
+        CompletionService<ValidationReport.Result> cs = new ExecutorCompletionService<ValidationReport.Result>(pool);
+        List<Future<ValidationReport.Result>> futures = new ArrayList<Future<ValidationReport.Result>>();
+
+        try
+        {
+            for (String path : expected.keySet())
+            {
+                if (entries.containsKey(path))
+                {
+                    futures.add(cs.submit(new FixityCheck(handles, root, path, expected.get(path), report)));
+                }
+            }
+
+            for (int i = 0; i < futures.size(); i++)
+            {
+                ValidationReport.Result result;
+                try
+                {
+                    result = cs.take().get();
+                }
+                catch (ExecutionException e)
+                {
+                    throw new IOException(e.getCause());
+                }
+                report.addResult(result);
+
+                if (this.failFast && result.getStatus() != ValidationReport.Status.VALID)
+                {
+                    log.info("Validation failed on " + result.getPath() + ", cancelling remaining checks");
+                    for (Future<ValidationReport.Result> f : futures)
+                    {
+                        f.cancel(true);
+                    }
+                    report.setCancelled(i < futures.size() - 1);
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            for (Future<ValidationReport.Result> f : futures)
+            {
+                f.cancel(true);
+            }
+            report.setCancelled(true);
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            if (this.executor == null)
+            {
+                pool.shutdownNow();
+            }
+            handles.close();
+        }
+
+        report.setElapsed(System.currentTimeMillis() - start);
+        log.info("Validated " + this.bagFile.getAbsolutePath() + " in " + report.getElapsed() + "ms; valid=" + report.isValid());
+        return report;
+    }
+
+    /**
+     * Quickly check the bag for completeness without reading any of the payload.
+     *
+     * The paths and uncompressed sizes in the zip's central directory are compared with the manifests,
+     * bitstream-size.txt and the Payload-Oxum in bag-info.txt.  Only those small tag files are decompressed.
+     *
+     * @return  a report of the result for each file in the bag
+     * @throws IOException  if the zip or its tag files cannot be read
+     */
+    public ValidationReport quickValidate()
+            throws IOException
+    {
+        long start = System.currentTimeMillis();
+        ValidationReport report = new ValidationReport();
+
+        BagContents contents = this.scan();
+        this.checkCompleteness(contents, report);
+
+        // sizes recorded for the individual bitstreams
+        Set<String> sizeFailures = new HashSet<String>();
+        if (contents.sizes != null)
+        {
+            for (String path : contents.sizes.getPaths())
+            {
+                Long actual = contents.entries.get(path);
+                if (actual == null)
+                {
+                    if (!contents.expected.containsKey(path))
+                    {
+                        report.addResult(new ValidationReport.Result(path, ValidationReport.Status.MISSING, "listed in bitstream-size.txt but not present in the bag"));
+                    }
+                    sizeFailures.add(path);
+                    continue;
+                }
+                long recorded = Long.parseLong(contents.sizes.getValue(path).trim());
+                if (actual != -1 && actual != recorded)
+                {
+                    report.addResult(new ValidationReport.Result(path, ValidationReport.Status.SIZE_MISMATCH,
+                            "bitstream-size.txt records " + recorded + " bytes but the zip holds " + actual));
+                    sizeFailures.add(path);
+                }
+            }
+        }
+
+        // the total size and file count of the payload
+        if (contents.oxum != null)
+        {
+            long octets = 0;
+            long streams = 0;
+            for (String path : contents.entries.keySet())
+            {
+                if (path.startsWith("data/"))
+                {
+                    octets += contents.entries.get(path);
+                    streams++;
+                }
+            }
+            String actual = octets + "." + streams;
+            if (!actual.equals(contents.oxum))
+            {
+                report.addResult(new ValidationReport.Result("bag-info.txt", ValidationReport.Status.SIZE_MISMATCH,
+                        "Payload-Oxum is " + contents.oxum + " but the payload is " + actual));
+            }
+        }
+
+        for (String path : contents.entries.keySet())
+        {
+            if ((contents.expected.containsKey(path) || (contents.sizes != null && contents.sizes.getValue(path) != null))
+                    && !sizeFailures.contains(path))
+            {
+                report.addResult(new ValidationReport.Result(path, ValidationReport.Status.VALID, null));
+            }
+        }
+
+        report.setElapsed(System.currentTimeMillis() - start);
+        log.info("Quick validated " + this.bagFile.getAbsolutePath() + " in " + report.getElapsed() + "ms; valid=" + report.isValid());
+        return report;
+    }
+
+    /**
+     * What the zip's central directory and tag files say about the bag
+     */
+    static class BagContents
+    {
+        /** the base directory of the bag */
+        public String root = null;
+
+        /** the uncompressed size of every file in the zip, by path relative to the base directory */
+        public Map<String, Long> entries = new LinkedHashMap<String, Long>();
+
+        /** the checksums listed for each file, by path and then algorithm */
+        public Map<String, Map<String, String>> expected = new LinkedHashMap<String, Map<String, String>>();
+
+        /** the paths listed in the payload manifests */
+        public Set<String> payloadListed = new HashSet<String>();
+
+        /** bitstream-size.txt, if present */
+        public TagFile sizes = null;
+
+        /** the Payload-Oxum from bag-info.txt, if present */
+        public String oxum = null;
+    }
+
+    /**
+     * Read the central directory and the tag files of the zip
+     */
+    BagContents scan()
+            throws IOException
+    {
+        BagContents contents = new BagContents();
+        ZipFile zf = new ZipFile(this.bagFile);
+        try
+        {
+            Enumeration<? extends ZipEntry> e = zf.entries();
+            while (e.hasMoreElements())
+            {
+                ZipEntry entry = e.nextElement();
+                if (entry.isDirectory())
+                {
+                    continue;
+                }
+                if (contents.root == null)
+                {
+                    contents.root = DANSBag.getRootName(entry.getName());
+                }
+                contents.entries.put(entry.getName().substring(contents.root.length() + 1), entry.getSize());
+            }
+
+            for (String manifest : PAYLOAD_MANIFESTS.keySet())
+            {
+                TagFile tf = this.readTagFile(zf, contents.root, manifest);
+                if (tf != null)
+                {
+                    this.addExpected(contents.expected, tf, PAYLOAD_MANIFESTS.get(manifest));
+                    contents.payloadListed.addAll(tf.getPaths());
+                }
+            }
+            TagFile tagManifest = this.readTagFile(zf, contents.root, "tagmanifest-md5.txt");
+            if (tagManifest != null)
+            {
+                this.addExpected(contents.expected, tagManifest, "MD5");
+            }
+
+            contents.sizes = this.readTagFile(zf, contents.root, "bitstream-size.txt");
+
+            ZipEntry bagInfo = zf.getEntry(contents.root + "/bag-info.txt");
+            if (bagInfo != null)
+            {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(zf.getInputStream(bagInfo), "UTF-8"));
+                try
+                {
+                    String line;
+                    while ((line = reader.readLine()) != null)
+                    {
+                        if (line.startsWith("Payload-Oxum:"))
+                        {
+                            contents.oxum = line.substring("Payload-Oxum:".length()).trim();
+                        }
+                    }
+                }
+                finally
+                {
+                    reader.close();
+                }
+            }
+        }
+        finally
+        {
+            zf.close();
+        }
+        return contents;
+    }
+
+    /**
+     * Check that everything listed in the manifests is in the zip, and every payload file in the zip is listed
+     */
+    private void checkCompleteness(BagContents contents, ValidationReport report)
+    {
+        for (String path : contents.expected.keySet())
+        {
+            if (!contents.entries.containsKey(path))
+            {
+                report.addResult(new ValidationReport.Result(path, ValidationReport.Status.MISSING, "listed in a manifest but not present in the bag"));
+            }
+        }
+        for (String path : contents.entries.keySet())
+        {
+            if (path.startsWith("data/") && !contents.payloadListed.contains(path))
+            {
+                report.addResult(new ValidationReport.Result(path, ValidationReport.Status.UNLISTED, "payload file not listed in any manifest"));
+            }
+        }
+    }
+
+    private TagFile readTagFile(ZipFile zf, String root, String name)
+            throws IOException
+    {
+        ZipEntry entry = zf.getEntry(root + "/" + name);
+        if (entry == null)
+        {
+            return null;
+        }
+        InputStream is = zf.getInputStream(entry);
+        try
+        {
+            return TagFile.parse(is);
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    private void addExpected(Map<String, Map<String, String>> expected, TagFile manifest, String algorithm)
+    {
+        for (String path : manifest.getPaths())
+        {
+            Map<String, String> checksums = expected.get(path);
+            if (checksums == null)
+            {
+                checksums = new LinkedHashMap<String, String>();
+                expected.put(path, checksums);
+            }
+            checksums.put(algorithm, manifest.getValue(path));
+        }
+    }
+
+    /**
+     * Check a single entry in the zip against all of the checksums we have for it, reading it only once
+     */
+    private static class FixityCheck implements Callable<ValidationReport.Result>
+    {
+        private ZipFilePool handles;
+        private String root;
+        private String path;
+        private Map<String, String> checksums;
+        private ValidationReport report;
+
+        public FixityCheck(ZipFilePool handles, String root, String path, Map<String, String> checksums, ValidationReport report)
+        {
+            this.handles = handles;
+            this.root = root;
+            this.path = path;
+            this.checksums = checksums;
+            this.report = report;
+        }
+
+        public ValidationReport.Result call()
+                throws Exception
+        {
+            ZipFile zf = this.handles.acquire();
+            try
+            {
+                Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+                InputStream is = zf.getInputStream(zf.getEntry(this.root + "/" + this.path));
+                for (String algorithm : this.checksums.keySet())
+                {
+                    MessageDigest md = MessageDigest.getInstance(algorithm);
+                    digests.put(algorithm, md);
+                    is = new DigestInputStream(is, md);
+                }
+
+                long total = 0;
+                int count;
+                byte[] data = new byte[BUFFER];
+                try
+                {
+                    while ((count = is.read(data, 0, BUFFER)) != -1)
+                    {
+                        if (Thread.currentThread().isInterrupted())
+                        {
+                            throw new InterruptedException("Validation of " + this.path + " cancelled");
+                        }
+                        total += count;
+                    }
+                }
+                finally
+                {
+                    is.close();
+                }
+                this.report.addBytesChecked(total);
+
+                for (String algorithm : digests.keySet())
+                {
+                    String actual = Files.digestToString(digests.get(algorithm));
+                    String expect = this.checksums.get(algorithm);
+                    if (!actual.equalsIgnoreCase(expect))
+                    {
+                        return new ValidationReport.Result(this.path, ValidationReport.Status.CHECKSUM_MISMATCH,
+                                algorithm + " expected " + expect + " but was " + actual);
+                    }
+                }
+                return new ValidationReport.Result(this.path, ValidationReport.Status.VALID, null);
+            }
+            catch (IOException e)
+            {
+                return new ValidationReport.Result(this.path, ValidationReport.Status.ERROR, e.getMessage());
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                return new ValidationReport.Result(this.path, ValidationReport.Status.ERROR, e.getMessage());
+            }
+            finally
+            {
+                this.handles.release(zf);
+            }
+        }
+    }
+}
@@ -1,11 +1,24 @@
 package org.datadryad.dansbagit;
 
+import java.io.IOException;
 import java.io.InputStream;
 import org.apache.log4j.Logger;
 
 public class BaggedBitstream
 {
+    /**
+     * Something which can open the content of a bitstream on demand
+     */
+    public interface StreamSource
+    {
+        InputStream open() throws IOException;
+    }
+
     private InputStream inputStream;
+    private StreamSource source;
+    private long size = -1;
+    private String md5;
+    private String sha1;
     private String filename;
     private String format;
     private String description;
@@ -25,16 +38,101 @@ public class BaggedBitstream
         this.bundle = bundle;
     }
 
+    /**
+     * Create a bitstream whose content is only opened when it is first asked for, so that listing
+     * bitstreams does not cost any I/O
+     *
+     * @param source    source of the bitstream content
+     * @param size  size in bytes, or -1 if not known
+     * @param md5   hex md5 of the content, or null if not known
+     * @param sha1  hex sha-1 of the content, or null if not known
+     */
+    public BaggedBitstream(StreamSource source, String filename, String format, String description, String dataFileIdent, String bundle,
+                           long size, String md5, String sha1)
+    {
+        this(null, filename, format, description, dataFileIdent, bundle);
+        this.source = source;
+        this.size = size;
+        this.md5 = md5;
+        this.sha1 = sha1;
+    }
+
+    /**
+     * Get the content of the bitstream, opening it if this has not already been done
+     *
+     * @return  the input stream, or null if the bitstream has no content
+     */
     public InputStream getInputStream()
     {
+        if (this.inputStream == null && this.source != null)
+        {
+            try
+            {
+                this.inputStream = this.source.open();
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
         return inputStream;
     }
 
+    /**
+     * @return  true if the content of the bitstream has been opened
+     */
+    public boolean isOpen()
+    {
+        return this.inputStream != null;
+    }
+
+    /**
+     * Close the content of the bitstream, if it was opened.  A lazily opened bitstream may be opened again afterwards
+     *
+     * @throws IOException
+     */
+    public void close()
+            throws IOException
+    {
+        if (this.inputStream != null)
+        {
+            this.inputStream.close();
+            if (this.source != null)
+            {
+                this.inputStream = null;
+            }
+        }
+    }
+
     public void setInputStream(InputStream inputStream)
     {
         this.inputStream = inputStream;
     }
 
+    /**
+     * @return  the size of the bitstream in bytes, or -1 if it is not known
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return  the hex md5 of the bitstream, or null if it is not known
+     */
+    public String getMd5()
+    {
+        return md5;
+    }
+
+    /**
+     * @return  the hex sha-1 of the bitstream, or null if it is not known
+     */
+    public String getSha1()
+    {
+        return sha1;
+    }
+
     public String getFilename()
     {
         return filename;
@@ -0,0 +1,359 @@
+package org.datadryad.dansbagit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent, content-addressed store of bitstreams, shared between bag builds so that content which has
+ * been bagged before does not have to be fetched, staged and hashed again.
+ *
+ * Content is keyed by its MD5 and size, which is what DSpace records for each bitstream, and the SHA-1 is
+ * kept alongside it.  A bag with a store registered through DANSBag.setContentStore adds everything it stages
+ * to the store, and when a bitstream is added with its checksum already known, the stored copy is linked into
+ * the working directory instead of the bitstream being read.  Where the file system supports it the working
+ * directory and the store share the file through a hard link; otherwise the file is copied.
+ *
+ * The store is bounded by the total size of the content it holds, evicting the least recently used content
+ * first.  The order of use survives restarts, as each file's modification time is updated when it is used.
+ *
+ * Linking or copying content in and out of the store happens outside of its lock, so that bags sharing a store
+ * do not wait on each other's copies; content which is being staged out is not evicted until it is done.
+ */
+public class ContentStore
+{
+    private static Logger log = Logger.getLogger(ContentStore.class);
+
+    private static final String SHA1_SUFFIX = ".sha1";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private File dir;
+    private long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long bytesSaved = 0;
+    private LinkedHashMap<String, Long> contents = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    // content being staged out, with the number of bags staging it, which must not be evicted
+    private Map<String, Integer> pinned = new HashMap<String, Integer>();
+
+    // content being put into the store
+    private Set<String> pending = new HashSet<String>();
+
+    /**
+     * Open a store, creating its directory if necessary.  Any content already in the directory is taken into
+     * the store, and evicted straight away if it is over the budget
+     *
+     * @param dir   the directory of the store
+     * @param maxBytes  the maximum total size of the content to hold
+     */
+    public ContentStore(File dir, long maxBytes)
+    {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.dir.mkdirs();
+        this.scan();
+    }
+
+    /**
+     * Link the stored content with the given MD5 and size to the target file
+     *
+     * @param md5   the MD5 of the content, as hex
+     * @param size  the size of the content
+     * @param target    the file to create
+     * @return  the SHA-1 of the content, as hex, or null if the store does not hold it
+     * @throws IOException
+     */
+    String stageTo(String md5, long size, File target)
+            throws IOException
+    {
+        String key = this.key(md5, size);
+        File stored = this.file(key);
+        String sha1;
+        synchronized (this)
+        {
+            File sha1File = new File(stored.getPath() + SHA1_SUFFIX);
+            if (this.contents.get(key) == null || !stored.exists() || !sha1File.exists())
+            {
+                this.misses++;
+                return null;
+            }
+            sha1 = FileUtils.readFileToString(sha1File, "UTF-8").trim();
+            Integer pins = this.pinned.get(key);
+            this.pinned.put(key, pins == null ? 1 : pins + 1);
+        }
+
+        boolean staged = false;
+        try
+        {
+            link(stored, target);
+            staged = true;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                int pins = this.pinned.get(key);
+                if (pins == 1)
+                {
+                    this.pinned.remove(key);
+                }
+                else
+                {
+                    this.pinned.put(key, pins - 1);
+                }
+                if (staged)
+                {
+                    stored.setLastModified(System.currentTimeMillis());
+                    this.hits++;
+                    this.bytesSaved += size;
+                }
+                this.evict();
+            }
+        }
+        return sha1;
+    }
+
+    /**
+     * Add the content of a staged file to the store, if it is not already there
+     *
+     * @param staged    the file holding the content
+     * @param md5   the MD5 of the content, as hex
+     * @param sha1  the SHA-1 of the content, as hex
+     * @param size  the size of the content
+     * @throws IOException
+     */
+    void put(File staged, String md5, String sha1, long size)
+            throws IOException
+    {
+        String key = this.key(md5, size);
+        File stored = this.file(key);
+        synchronized (this)
+        {
+            if ((this.contents.get(key) != null && stored.exists()) || this.pending.contains(key))
+            {
+                return;
+            }
+            if (size > this.maxBytes)
+            {
+                log.debug("Not storing " + staged.getAbsolutePath() + " as it is larger than the store");
+                return;
+            }
+            this.pending.add(key);
+        }
+
+        try
+        {
+            // move the content into place only once it is complete, so that an interrupted put leaves nothing behind
+            stored.getParentFile().mkdirs();
+            File temp = new File(stored.getPath() + TEMP_SUFFIX);
+            temp.delete();
+            link(staged, temp);
+            FileUtils.writeStringToFile(new File(stored.getPath() + SHA1_SUFFIX), sha1, "UTF-8");
+            synchronized (this)
+            {
+                stored.delete();
+                if (!temp.renameTo(stored))
+                {
+                    temp.delete();
+                    throw new IOException("Unable to move " + temp.getAbsolutePath() + " into the content store");
+                }
+                this.contents.put(key, size);
+                this.bytes += size;
+                this.evict();
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                this.pending.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return  the number of items of content in the store
+     */
+    public synchronized int size()
+    {
+        return this.contents.size();
+    }
+
+    /**
+     * @return  the total size of the content in the store
+     */
+    public synchronized long getBytes()
+    {
+        return this.bytes;
+    }
+
+    public synchronized long getMaxBytes()
+    {
+        return this.maxBytes;
+    }
+
+    /**
+     * Change the maximum total size, evicting content straight away if the store is now too large
+     *
+     * @param maxBytes  the maximum total size of the content to hold
+     */
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        this.evict();
+    }
+
+    /**
+     * @return  the number of times content was found in the store
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * @return  the number of times content was looked for and not found
+     */
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * @return  the proportion of lookups which found their content, or 0 if there have been none
+     */
+    public synchronized double getHitRate()
+    {
+        long lookups = this.hits + this.misses;
+        return lookups == 0 ? 0 : (double) this.hits / lookups;
+    }
+
+    /**
+     * @return  the number of items of content evicted to keep the store within its maximum size
+     */
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    /**
+     * @return  the number of bytes which were served from the store rather than read from their source
+     */
+    public synchronized long getBytesSaved()
+    {
+        return this.bytesSaved;
+    }
+
+    /**
+     * Link a file to another path, copying it if a link cannot be made
+     *
+     * @param existing  the file to link to
+     * @param link  the path of the new file
+     * @throws IOException
+     */
+    static void link(File existing, File link)
+            throws IOException
+    {
+        try
+        {
+            java.nio.file.Files.createLink(link.toPath(), existing.toPath());
+            return;
+        }
+        catch (IOException e)
+        {
+            // e.g. the two paths are on different file systems
+            log.debug("Unable to link " + link.getAbsolutePath() + " to " + existing.getAbsolutePath() + ", copying instead: " + e);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            log.debug("Hard links are not supported for " + link.getAbsolutePath() + ", copying instead");
+        }
+        FileUtils.copyFile(existing, link);
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Long>> it = this.contents.entrySet().iterator();
+        while (this.bytes > this.maxBytes && it.hasNext())
+        {
+            Map.Entry<String, Long> eldest = it.next();
+            if (this.pinned.containsKey(eldest.getKey()))
+            {
+                continue;
+            }
+            log.debug("Evicting " + eldest.getKey() + " from the content store");
+            File stored = this.file(eldest.getKey());
+            stored.delete();
+            new File(stored.getPath() + SHA1_SUFFIX).delete();
+            this.bytes -= eldest.getValue();
+            this.evictions++;
+            it.remove();
+        }
+    }
+
+    /**
+     * Take in the content already in the directory, in the order it was last used
+     */
+    private void scan()
+    {
+        List<File> found = new ArrayList<File>();
+        File[] subdirs = this.dir.listFiles();
+        for (int i = 0; subdirs != null && i < subdirs.length; i++)
+        {
+            File[] files = subdirs[i].listFiles();
+            for (int j = 0; files != null && j < files.length; j++)
+            {
+                String name = files[j].getName();
+                if (name.endsWith(TEMP_SUFFIX))
+                {
+                    files[j].delete();
+                }
+                else if (!name.endsWith(SHA1_SUFFIX))
+                {
+                    found.add(files[j]);
+                }
+            }
+        }
+
+        Collections.sort(found, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : found)
+        {
+            this.contents.put(file.getName(), file.length());
+            this.bytes += file.length();
+        }
+        log.debug("Opened content store " + this.dir.getAbsolutePath() + " holding " + Files.humanReadableSize(this.bytes));
+        this.evict();
+    }
+
+    private String key(String md5, long size)
+    {
+        return md5.toLowerCase() + "-" + size;
+    }
+
+    private File file(String key)
+    {
+        return new File(new File(this.dir, key.substring(0, 2)), key);
+    }
+}
@@ -2,15 +2,27 @@ package org.datadryad.dansbagit;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -49,14 +61,34 @@ public class DANSBag
     /** Buffer size to be used when chunking through input streams */
     private static final int BUFFER = 8192;
 
+    /** How much of each bitstream to read ahead when writing a bag staged across several volumes */
+    private static final int READ_AHEAD_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * How to choose which staging root a bitstream is staged in, see {@link #setStagingRoots}
+     */
+    public enum StagingPolicy
+    {
+        /** each root in turn */
+        ROUND_ROBIN,
+        /** the root with the most usable space */
+        MOST_FREE
+    }
+
+    /** The reference properties which are recorded in the bitstream tag files and manifests */
+    private enum TagColumn { DESCRIPTION, FORMAT, SIZE, MD5, SHA1 }
+
     /**
      * Inner class to provide a reference to a file in the Bag.  Since the file in the bag
      * may have different types, different sources for its input stream, and different tag
      * properties, this allows us to provide a consistent wrapper for internal use.
+     *
+     * References are not held in this form; they are materialised on demand from the compact
+     * BagFileReferenceStore, see {@link DANSBag#references()}
      */
-    class BagFileReference
+    class BagFileReference implements BaggedBitstream.StreamSource
     {
-        public ZipEntry zipEntry = null;
+        public int index = -1;
         private File file = null;
 
         public String filename = null;
@@ -72,6 +104,9 @@ public class DANSBag
         public String dataFileIdent = null;
         public String bundle = null;
 
+        /** whether the bitstream is staged in memory rather than in the working directory, see MemoryStaging */
+        public boolean inMemory = false;
+
         public File getFile()
         {
             if (this.file == null) {
@@ -81,29 +116,90 @@ public class DANSBag
             return this.file;
         }
 
-        public BaggedBitstream getBaggedBitstream()
+        /**
+         * Open the content of the file, from the zip if the bag has been loaded from one, or from the working directory
+         */
+        public InputStream open()
                 throws IOException
         {
             InputStream is = null;
-            if (this.zipEntry != null)
+            if (zipFile != null)
+            {
+                is = zipFile.getInputStream(zipFile.getEntry(this.zipPath));
+                if (verifyOnRead)
+                {
+                    Map<String, String> expected = new LinkedHashMap<String, String>();
+                    if (this.md5 != null)
+                    {
+                        expected.put("MD5", this.md5);
+                    }
+                    if (this.sha1 != null)
+                    {
+                        expected.put("SHA-1", this.sha1);
+                    }
+                    if (expected.size() > 0)
+                    {
+                        is = new FixityInputStream(is, this.payloadPath, expected);
+                    }
+                }
+            }
+            else if (this.inMemory)
             {
-                is = zipFile.getInputStream(this.zipEntry);
+                is = memoryStaging.open(this.index, 0, this.size);
             }
             else
             {
                 is = new FileInputStream(this.getFile());
             }
+            return is;
+        }
 
-            BaggedBitstream bb = new BaggedBitstream(is, this.filename, this.format, this.description, this.dataFileIdent, this.bundle);
-            return bb;
+        /**
+         * Get a bitstream for this file.  Its content is not opened until it is asked for
+         */
+        public BaggedBitstream getBaggedBitstream()
+        {
+            return new BaggedBitstream(this, this.filename, this.format, this.description, this.dataFileIdent, this.bundle,
+                    this.size, this.md5, this.sha1);
         }
     }
 
+    /**
+     * Chooses which bitstreams to load from a bag
+     */
+    public interface LoadFilter
+    {
+        /**
+         * @param dataFileIdent the identifier of the data file the bitstream belongs to
+         * @param bundle    the bundle the bitstream is in
+         * @param payloadPath   the path of the bitstream in the bag, e.g. data/[data file]/[bundle]/[filename]
+         * @return  true if the bitstream should be loaded
+         */
+        boolean accept(String dataFileIdent, String bundle, String payloadPath);
+    }
+
+    private static BagCatalogCache catalogCache = null;
+
     private ZipFile zipFile = null;
     private File bagFile = null;
     private File workingDir = null;
     private String name = null;
-    private List<BagFileReference> fileRefs = new ArrayList<BagFileReference>();
+    private BagFileReferenceStore fileRefs = null;
+    private BagCatalog sharedCatalog = null;
+    private Set<DIM> sharedDims = Collections.newSetFromMap(new IdentityHashMap<DIM, Boolean>());
+    private long spillThreshold = BagFileReferenceStore.DEFAULT_SPILL_THRESHOLD;
+    private boolean verifyOnRead = false;
+    private ZipIndex zipIndex = null;
+    private long accessPointSpacing = 0;
+    private boolean writeIndex = false;
+    private ContentStore contentStore = null;
+    private boolean validateMetadata = false;
+    private StagingBudget stagingBudget = null;
+    private StagingSpace stagingSpace = null;
+    private MemoryStaging memoryStaging = null;
+    private String datasetDimPath = null;
+    private Map<String, String> subDimPaths = new HashMap<String, String>();
+    private Map<String, long[]> accessPoints = null;
     private DDM ddm = null;
     private DIM dim = null;
     private Map<String, DIM> subDim = new HashMap<String, DIM>();
@@ -149,7 +245,9 @@ public class DANSBag
     {
         this.bagFile = bagFile;
         this.workingDir = workingDir;
+        this.stagingSpace = new StagingSpace(workingDir);
         this.name = name;
+        this.fileRefs = new BagFileReferenceStore(workingDir, this.spillThreshold);
         log.debug("Creating DANSBag object around zipfile " + bagFile.getAbsolutePath() + " using working directory " + workingDir.getAbsolutePath() + " with name " + name);
 
         if (this.bagFile.exists())
@@ -160,6 +258,23 @@ public class DANSBag
         }
     }
 
+    /**
+     * Share the catalogs of loaded bags through the given cache, so that opening the same zip again does not
+     * re-read and re-parse it.  This applies to every DANSBag in the process.  Bags loaded from the cache share
+     * their DIM metadata objects, which must then be treated as read-only.
+     *
+     * @param cache the cache to use, or null to load every bag afresh (the default)
+     */
+    public static void setCatalogCache(BagCatalogCache cache)
+    {
+        catalogCache = cache;
+    }
+
+    public static BagCatalogCache getCatalogCache()
+    {
+        return catalogCache;
+    }
+
     /**
      * Get the full path to the working directory
      *
@@ -170,6 +285,217 @@ public class DANSBag
         return this.workingDir.getAbsolutePath();
     }
 
+    /**
+     * Set the number of bytes of bitstream reference data (and separately of reference strings) which
+     * will be held on the heap.  Beyond this the references are spilled to memory-mapped files in the
+     * working directory, so that bags with millions of files are limited by disk rather than heap.
+     *
+     * If the bag already holds more than this, the references are spilled immediately.  References shared
+     * through the catalog cache are left as they are.
+     *
+     * @param bytes the threshold in bytes
+     * @throws IOException
+     */
+    public void setSpillThreshold(long bytes)
+            throws IOException
+    {
+        this.spillThreshold = bytes;
+        if (this.sharedCatalog == null)
+        {
+            this.fileRefs.setSpillThreshold(bytes);
+        }
+        if (this.memoryStaging != null)
+        {
+            this.memoryStaging.setSpillThreshold(bytes);
+        }
+    }
+
+    /**
+     * Choose whether the input streams of bitstreams read from a zipped bag check their content against the
+     * manifests.  If they do, the MD5 and SHA-1 of the content are calculated as it is read, and the read which
+     * reaches the end of the stream throws a FixityException if either does not match manifest-md5.txt or
+     * manifest-sha1.txt.
+     *
+     * @param verifyOnRead  whether to verify the content of bitstreams as they are read
+     */
+    public void setVerifyOnRead(boolean verifyOnRead)
+    {
+        this.verifyOnRead = verifyOnRead;
+    }
+
+    /**
+     * Make the compressed bitstreams written by writeToFile seekable, by placing an access point in each of them
+     * every so many bytes.  The positions of the access points are recorded in bitstream-access-points.txt, and
+     * getBitstreamRange uses them to start inflating at the nearest access point in front of the range instead of
+     * at the start of the bitstream.  Access points are off by default.
+     *
+     * @param bytes the number of bytes of bitstream between access points, or 0 for none
+     */
+    public void setAccessPointSpacing(long bytes)
+    {
+        this.accessPointSpacing = bytes;
+    }
+
+    /**
+     * Choose whether writeToFile puts a binary index of the bag at the start of the zip.  A bag with an index can
+     * be loaded by reading that one entry, with the bitstream references memory-mapped out of the zip, and its DIM
+     * metadata is only parsed when it is asked for.  The index is off by default.
+     *
+     * @param writeIndex    whether to write the index
+     */
+    public void setWriteIndex(boolean writeIndex)
+    {
+        this.writeIndex = writeIndex;
+    }
+
+    /**
+     * Share staged bitstreams with other bag builds through the given store.  Everything added to the bag is put
+     * into the store, and bitstreams added with their MD5 already known are linked from the store into the
+     * working directory when it holds them, rather than being read from their source.
+     *
+     * @param store the store to use, or null for none (the default)
+     */
+    public void setContentStore(ContentStore store)
+    {
+        this.contentStore = store;
+    }
+
+    public ContentStore getContentStore()
+    {
+        return this.contentStore;
+    }
+
+    /**
+     * Stage bitstreams across several directories, usually on different volumes, as well as the working directory,
+     * so that staging them and reading them back into the zip can use the bandwidth of all of the volumes.  The bag's
+     * files go in a directory within each with the same name as the working directory, which is removed by
+     * cleanupWorkingDir.  Set the roots before adding any bitstreams
+     *
+     * @param dirs  the directories to stage in as well as the working directory
+     * @param policy    how to choose the directory for each bitstream
+     * @throws IllegalStateException    if the bag already has bitstreams, which record the roots they are staged in
+     */
+    public void setStagingRoots(List<File> dirs, StagingPolicy policy)
+    {
+        if (this.fileRefs.size() > 0)
+        {
+            throw new IllegalStateException("The staging roots must be set before any bitstreams are added");
+        }
+        this.stagingSpace.setRoots(dirs, policy);
+    }
+
+    /**
+     * Keep small bitstreams in memory rather than staging each in a file in the working directory, which for bags of
+     * many small files saves most of the time spent staging them.  Bitstreams larger than the per-file limit, or which
+     * would take the total beyond its limit, are staged on disk as usual.  Set this before adding any bitstreams
+     *
+     * @param maxFileBytes  the largest bitstream to keep in memory
+     * @param maxTotalBytes the most to keep in memory altogether
+     * @throws IllegalStateException    if the bag already has bitstreams, some of which may be held by the current buffer
+     */
+    public void setMemoryStaging(long maxFileBytes, long maxTotalBytes)
+    {
+        if (this.fileRefs.size() > 0)
+        {
+            throw new IllegalStateException("Memory staging must be set before any bitstreams are added");
+        }
+        if (this.memoryStaging != null)
+        {
+            this.memoryStaging.close();
+        }
+        this.memoryStaging = new MemoryStaging(this.workingDir, maxFileBytes, maxTotalBytes, this.spillThreshold);
+    }
+
+    /**
+     * @return  the number of bitstreams staged in memory
+     */
+    public int getMemoryStagedCount()
+    {
+        return this.memoryStaging == null ? 0 : this.memoryStaging.size();
+    }
+
+    /**
+     * @return  the total size of the bitstreams staged in memory
+     */
+    public long getMemoryStagedBytes()
+    {
+        return this.memoryStaging == null ? 0 : this.memoryStaging.getBytes();
+    }
+
+    /**
+     * Keep at least this much space free on the working directory's volume when staging bitstreams.  A bitstream
+     * which would take the space below this is staged in the overflow directory instead, if there is one with room,
+     * or else waits for space to be freed.  The default is 0, so only the size of each bitstream is checked
+     *
+     * @param bytes the space to keep free
+     */
+    public void setStagingWatermark(long bytes)
+    {
+        this.stagingSpace.setWatermark(bytes);
+    }
+
+    /**
+     * Give a directory, usually on another volume, in which to stage bitstreams when the working directory is short
+     * of space.  The bag's files go in a directory within it with the same name as the working directory, which is
+     * removed by cleanupWorkingDir
+     *
+     * @param dir   the overflow directory
+     * @param watermark the space to keep free on the overflow directory's volume
+     */
+    public void setOverflowDir(File dir, long watermark)
+    {
+        this.stagingSpace.setOverflowDir(dir, watermark);
+    }
+
+    /**
+     * Set how long to wait for space to stage a bitstream before failing with an IOException.  By default staging
+     * waits for as long as it takes
+     *
+     * @param millis    the longest time to wait, or a negative number to wait indefinitely
+     */
+    public void setSpaceWaitTimeout(long millis)
+    {
+        this.stagingSpace.setMaxWait(millis);
+    }
+
+    /**
+     * @return  the total time this bag has spent waiting for space to stage bitstreams, in milliseconds
+     */
+    public long getSpaceWaitMillis()
+    {
+        return this.stagingSpace.getWaitMillis();
+    }
+
+    /**
+     * @return  the number of bitstreams which were staged in the overflow directory
+     */
+    public long getOverflowCount()
+    {
+        return this.stagingSpace.getSpilled();
+    }
+
+    /**
+     * Account for everything this bag stages against a budget shared with other bags
+     *
+     * @param budget    the budget, or null for none
+     */
+    void setStagingBudget(StagingBudget budget)
+    {
+        this.stagingBudget = budget;
+    }
+
+    /**
+     * Choose whether writeToFile checks dataset.xml and files.xml against their bundled schemas as it writes them.
+     * If either does not conform, writeToFile fails with a SchemaValidationException (inside a RuntimeException).
+     * This is off by default
+     *
+     * @param validateMetadata  whether to validate the metadata documents
+     */
+    public void setValidateMetadata(boolean validateMetadata)
+    {
+        this.validateMetadata = validateMetadata;
+    }
+
     /**
      * Get the MD5 of the zip.  The zip must exist for this to happen, so you either need to have
      * created this object around a zip file, or have called writeFile first.  If you try to call
@@ -297,6 +623,180 @@ public class DANSBag
         return this.bagFile.length();
     }
 
+    /**
+     * Validate the zip against its manifests, using one thread per available processor.  You can only do this
+     * once the zip file exists, otherwise you will get a RuntimeException
+     *
+     * @return  a report of the result for each file in the bag
+     * @throws IOException  if the zip or its manifests cannot be read
+     */
+    public ValidationReport validate()
+            throws IOException
+    {
+        return this.validate(Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Validate the zip against its manifests.  Each payload file is checked against manifest-md5.txt and
+     * manifest-sha1.txt and each tag file against tagmanifest-md5.txt, concurrently, with each thread
+     * reading through its own handle onto the zip.
+     *
+     * You can only do this once the zip file exists, otherwise you will get a RuntimeException
+     *
+     * @param threads   the number of threads to check files on
+     * @param failFast  whether to stop and cancel the remaining checks at the first failure
+     * @return  a report of the result for each file in the bag
+     * @throws IOException  if the zip or its manifests cannot be read
+     */
+    public ValidationReport validate(int threads, boolean failFast)
+            throws IOException
+    {
+        BagValidator validator = this.validator();
+        validator.setThreads(threads);
+        validator.setFailFast(failFast);
+        return validator.validate();
+    }
+
+    /**
+     * Validate the zip against its manifests, running the checks on the given executor.  See validate(int, boolean)
+     *
+     * @param executor  the executor to run the checks on.  It will not be shut down
+     * @param threads   the maximum number of zip handles to open (normally the size of the executor's pool)
+     * @param failFast  whether to stop and cancel the remaining checks at the first failure
+     * @return  a report of the result for each file in the bag
+     * @throws IOException  if the zip or its manifests cannot be read
+     */
+    public ValidationReport validate(ExecutorService executor, int threads, boolean failFast)
+            throws IOException
+    {
+        BagValidator validator = this.validator();
+        validator.setExecutor(executor);
+        validator.setThreads(threads);
+        validator.setFailFast(failFast);
+        return validator.validate();
+    }
+
+    /**
+     * Quickly check the zip for completeness without reading any of the payload.  The zip's central directory
+     * is compared with the Payload-Oxum in bag-info.txt, the sizes in bitstream-size.txt, and the paths listed in the
+     * manifests; nothing is decompressed except those small tag files.
+     *
+     * You can only do this once the zip file exists, otherwise you will get a RuntimeException
+     *
+     * @return  a report of the result for each file in the bag
+     * @throws IOException  if the zip or its tag files cannot be read
+     */
+    public ValidationReport quickValidate()
+            throws IOException
+    {
+        return this.validator().quickValidate();
+    }
+
+    /**
+     * Check the DANS metadata documents in the zip (dataset.xml and files.xml) against their bundled schemas.
+     * Nothing else in the bag is read.
+     *
+     * You can only do this once the zip file exists, otherwise you will get a RuntimeException
+     *
+     * @return  a report of the result for each metadata document in the bag
+     * @throws IOException  if the zip cannot be read
+     */
+    public ValidationReport validateMetadata()
+            throws IOException
+    {
+        this.validator();
+        long start = System.currentTimeMillis();
+        ValidationReport report = new ValidationReport();
+        ZipFile zf = new ZipFile(this.bagFile);
+        try
+        {
+            String[][] documents = { { "dataset.xml", SchemaValidator.DDM }, { "files.xml", SchemaValidator.FILES } };
+            for (String[] document : documents)
+            {
+                Map<String, String> paths = this.paths(false, true, null, null, document[0]);
+                ZipEntry entry = zf.getEntry(paths.get("zip").replace(File.separator, "/"));
+                if (entry == null)
+                {
+                    continue;
+                }
+                InputStream is = zf.getInputStream(entry);
+                List<String> errors;
+                try
+                {
+                    errors = SchemaValidator.get(document[1]).validate(is);
+                }
+                finally
+                {
+                    is.close();
+                }
+                report.addBytesChecked(entry.getSize());
+                if (errors.isEmpty())
+                {
+                    report.addResult(new ValidationReport.Result(paths.get("payload"), ValidationReport.Status.VALID, null));
+                }
+                else
+                {
+                    report.addResult(new ValidationReport.Result(paths.get("payload"), ValidationReport.Status.SCHEMA_INVALID, errors.toString()));
+                }
+            }
+        }
+        finally
+        {
+            zf.close();
+        }
+        report.setElapsed(System.currentTimeMillis() - start);
+        return report;
+    }
+
+    /**
+     * Unpack the zipped bag into the given directory, using one thread per available processor and without
+     * checking the content against the manifests.
+     *
+     * You can only do this once the zip file exists, otherwise you will get a RuntimeException
+     *
+     * @param targetDir the directory to extract into; the bag's base directory is created inside it
+     * @return  a report of the files written and the throughput
+     * @throws IOException  if the zip cannot be read
+     */
+    public ExtractionReport extractTo(File targetDir)
+            throws IOException
+    {
+        return this.extractTo(targetDir, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Unpack the zipped bag into the given directory, inflating the files concurrently
+     *
+     * You can only do this once the zip file exists, otherwise you will get a RuntimeException
+     *
+     * @param targetDir the directory to extract into; the bag's base directory is created inside it
+     * @param threads   the number of files to extract at once
+     * @param verify    whether to check each file against the manifests as it is extracted
+     * @return  a report of the files written, any failures, and the throughput
+     * @throws IOException  if the zip cannot be read
+     */
+    public ExtractionReport extractTo(File targetDir, int threads, boolean verify)
+            throws IOException
+    {
+        if (!this.bagFile.exists())
+        {
+            throw new RuntimeException("You must writeFile before you can extract the bag");
+        }
+        BagExtractor extractor = new BagExtractor(this.bagFile);
+        extractor.setThreads(threads);
+        extractor.setVerify(verify);
+        return extractor.extractTo(targetDir);
+    }
+
+    private BagValidator validator()
+    {
+        if (!this.bagFile.exists())
+        {
+            throw new RuntimeException("You must writeFile before you can validate the bag");
+        }
+        return new BagValidator(this.bagFile);
+    }
+
     /**
      * Set the DDM metdata object for this bag
      *
@@ -315,10 +815,29 @@ public class DANSBag
     public void setDatasetDIM(DIM dim)
     {
         this.dim = dim;
+        this.datasetDimPath = null;
     }
 
     public DIM getDatasetDIM()
     {
+        DIM dim = this.datasetDIM();
+        if (dim != null && this.sharedDims.remove(dim))
+        {
+            this.dim = dim = dim.copy();
+        }
+        return dim;
+    }
+
+    /**
+     * @return  the dataset DIM, parsing it if it was left unparsed, but without copying it if it is shared
+     */
+    private DIM datasetDIM()
+    {
+        if (this.dim == null && this.datasetDimPath != null)
+        {
+            this.dim = this.parseDIM(this.datasetDimPath);
+            this.datasetDimPath = null;
+        }
         return this.dim;
     }
 
@@ -331,51 +850,367 @@ public class DANSBag
     public void addDatafileDIM(DIM dim, String dataFileIdent)
     {
         this.subDim.put(dataFileIdent, dim);
+        this.subDimPaths.remove(dataFileIdent);
     }
 
     public DIM getDatafileDIM(String dataFileIdent)
     {
-        return this.subDim.get(dataFileIdent);
+        DIM dim = this.datafileDIM(dataFileIdent);
+        if (dim != null && this.sharedDims.remove(dim))
+        {
+            dim = dim.copy();
+            this.subDim.put(dataFileIdent, dim);
+        }
+        return dim;
     }
 
+    /**
+     * @return  the identifiers of the data files which have DIMs, whether parsed yet or not
+     */
+    private Set<String> datafileDIMIdents()
+    {
+        Set<String> idents = new LinkedHashSet<String>(this.subDim.keySet());
+        idents.addAll(this.subDimPaths.keySet());
+        return idents;
+    }
 
-    public Set<String> dataFileIdents()
+    /**
+     * @return  the DIM of the data file, parsing it if it was left unparsed, but without copying it if it is shared
+     */
+    private DIM datafileDIM(String dataFileIdent)
     {
-        Set<String> idents = new HashSet<String>();
-        for (BagFileReference bfr : this.fileRefs)
+        if (!this.subDim.containsKey(dataFileIdent) && this.subDimPaths.containsKey(dataFileIdent))
         {
-            idents.add(bfr.dataFileIdent);
+            this.subDim.put(dataFileIdent, this.parseDIM(this.subDimPaths.remove(dataFileIdent)));
         }
-        return idents;
+        return this.subDim.get(dataFileIdent);
     }
 
-    public Set<String> listBundles(String dataFileIdent)
+    /**
+     * Parse a DIM document which was left unparsed when the bag was loaded from its index
+     */
+    private DIM parseDIM(String zipPath)
     {
-        Set<String> bundles = new HashSet<String>();
-        for (BagFileReference bfr : this.fileRefs)
+        try
         {
-            if (dataFileIdent.equals(bfr.dataFileIdent))
+            InputStream is = this.zipFile.getInputStream(this.zipFile.getEntry(zipPath));
+            try
+            {
+                return DIM.parse(is);
+            }
+            finally
             {
-                bundles.add(bfr.bundle);
+                is.close();
             }
         }
-        return bundles;
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    public Set<String> dataFileIdents()
+    {
+        Set<String> idents = new HashSet<String>();
+        for (int i = 0; i < this.fileRefs.size(); i++)
+        {
+            idents.add(this.fileRefs.getDataFileIdent(i));
+        }
+        return idents;
+    }
+
+    public Set<String> listBundles(String dataFileIdent)
+    {
+        Set<String> bundles = new HashSet<String>();
+        for (int i = 0; i < this.fileRefs.size(); i++)
+        {
+            if (dataFileIdent.equals(this.fileRefs.getDataFileIdent(i)))
+            {
+                bundles.add(this.fileRefs.getBundle(i));
+            }
+        }
+        return bundles;
     }
 
     public Set<BaggedBitstream> listBitstreams(String dataFileIdent, String bundle)
             throws IOException
     {
         Set<BaggedBitstream> bitstreams = new HashSet<BaggedBitstream>();
-        for (BagFileReference bfr : this.fileRefs)
+        for (int i = 0; i < this.fileRefs.size(); i++)
         {
-            if (dataFileIdent.equals(bfr.dataFileIdent) && bundle.equals(bfr.bundle))
+            if (dataFileIdent.equals(this.fileRefs.getDataFileIdent(i)) && bundle.equals(this.fileRefs.getBundle(i)))
             {
-                bitstreams.add(bfr.getBaggedBitstream());
+                bitstreams.add(this.reference(i).getBaggedBitstream());
             }
         }
         return bitstreams;
     }
 
+    /**
+     * Read part of a bitstream, without reading the parts of it in front of the range.
+     *
+     * If the bitstream is stored uncompressed in the zip, the range is read directly from its position in the
+     * zip file, so the cost does not depend on where in the bitstream the range lies.  Compressed bitstreams
+     * have to be inflated from the start, and the bytes in front of the range are discarded.
+     *
+     * @param dataFileIdent the identifier of the data file the bitstream belongs to
+     * @param bundle    the bundle the bitstream is in
+     * @param filename  the filename of the bitstream
+     * @param offset    the offset of the first byte to read
+     * @param length    the number of bytes to read; the range is truncated at the end of the bitstream
+     * @return  a stream over the range, which the caller must close
+     * @throws IOException
+     */
+    public InputStream getBitstreamRange(String dataFileIdent, String bundle, String filename, long offset, long length)
+            throws IOException
+    {
+        int i = this.findReference(dataFileIdent, bundle, filename);
+        if (i == -1)
+        {
+            throw new FileNotFoundException("No bitstream " + filename + " in bundle " + bundle + " of data file " + dataFileIdent);
+        }
+        long size = this.fileRefs.getSize(i);
+        if (offset < 0 || length < 0 || (size != -1 && offset > size))
+        {
+            throw new IllegalArgumentException("Invalid range " + offset + "+" + length + " for a bitstream of " + size + " bytes");
+        }
+        if (size != -1)
+        {
+            length = Math.min(length, size - offset);
+        }
+
+        BagFileReference bfr = this.reference(i);
+        if (this.zipFile == null)
+        {
+            // the bitstream is still in the working directory, or in memory
+            if (bfr.inMemory)
+            {
+                return this.memoryStaging.open(i, offset, length);
+            }
+            return new ZipIndex.RangeInputStream(bfr.getFile(), offset, length);
+        }
+
+        synchronized (this)
+        {
+            if (this.zipIndex == null)
+            {
+                this.zipIndex = new ZipIndex(this.bagFile);
+            }
+        }
+        ZipIndex.Entry entry = this.zipIndex.getEntry(bfr.zipPath);
+        if (entry == null)
+        {
+            throw new FileNotFoundException("No entry " + bfr.zipPath + " in " + this.bagFile.getAbsolutePath());
+        }
+        if (ZipIndex.isStored(entry))
+        {
+            return this.zipIndex.openRange(this.zipIndex.getDataOffset(entry) + offset, length);
+        }
+
+        InputStream is;
+        long remaining;
+        long[] point = this.accessPoint(bfr.payloadPath, offset);
+        if (point != null)
+        {
+            // start inflating from the nearest access point, with a fresh inflater
+            log.debug("Inflating " + bfr.zipPath + " from the access point at " + point[0] + " to reach offset " + offset);
+            long start = this.zipIndex.getDataOffset(entry) + point[1];
+            final Inflater inflater = new Inflater(true);
+            // the extra byte stands in for the dummy byte a raw inflater may ask for at the end of the data
+            is = new InflaterInputStream(this.zipIndex.openRange(start, entry.compressedSize - point[1] + 1), inflater, BUFFER)
+            {
+                public void close()
+                        throws IOException
+                {
+                    super.close();
+                    inflater.end();
+                }
+            };
+            remaining = offset - point[0];
+        }
+        else
+        {
+            log.debug("Bitstream " + bfr.zipPath + " is compressed, inflating to reach offset " + offset);
+            is = this.zipFile.getInputStream(this.zipFile.getEntry(bfr.zipPath));
+            remaining = offset;
+        }
+        while (remaining > 0)
+        {
+            long skipped = is.skip(remaining);
+            if (skipped <= 0)
+            {
+                is.close();
+                throw new IOException("Unexpected end of " + bfr.zipPath + " before offset " + offset);
+            }
+            remaining -= skipped;
+        }
+        return new ZipIndex.LimitedInputStream(is, length);
+    }
+
+    /**
+     * Find the last access point at or before the given offset in a compressed bitstream
+     *
+     * @param payloadPath   the payload path of the bitstream
+     * @param offset    the offset in the bitstream
+     * @return  the uncompressed and compressed offsets of the access point, or null if there isn't one
+     * @throws IOException
+     */
+    private synchronized long[] accessPoint(String payloadPath, long offset)
+            throws IOException
+    {
+        if (this.accessPoints == null)
+        {
+            this.accessPoints = new HashMap<String, long[]>();
+            String zipPath = this.paths(false, false, null, null, "bitstream-access-points.txt").get("zip");
+            ZipEntry entry = this.zipFile.getEntry(zipPath);
+            if (entry != null)
+            {
+                InputStream is = this.zipFile.getInputStream(entry);
+                TagFile tf = TagFile.parse(is);
+                is.close();
+                for (String path : tf.getPaths())
+                {
+                    this.accessPoints.put(path, this.parseAccessPoints(tf.getValue(path)));
+                }
+            }
+        }
+
+        long[] points = this.accessPoints.get(payloadPath);
+        if (points == null)
+        {
+            return null;
+        }
+        long[] best = null;
+        for (int i = 0; i < points.length; i += 2)
+        {
+            if (points[i] > offset)
+            {
+                break;
+            }
+            best = new long[] { points[i], points[i + 1] };
+        }
+        return best;
+    }
+
+    /**
+     * Access points are recorded as a space separated list of uncompressed:compressed offset pairs
+     */
+    private String serialiseAccessPoints(List<long[]> points)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (long[] point : points)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(" ");
+            }
+            sb.append(point[0]).append(":").append(point[1]);
+        }
+        return sb.toString();
+    }
+
+    private long[] parseAccessPoints(String value)
+    {
+        String[] bits = value.trim().split(" ");
+        long[] points = new long[bits.length * 2];
+        for (int i = 0; i < bits.length; i++)
+        {
+            String[] pair = bits[i].split(":");
+            points[i * 2] = Long.parseLong(pair[0]);
+            points[i * 2 + 1] = Long.parseLong(pair[1]);
+        }
+        return points;
+    }
+
+    /**
+     * Find a bitstream in the reference store
+     *
+     * @return  the index of the bitstream, or -1 if it is not in the bag
+     */
+    private int findReference(String dataFileIdent, String bundle, String filename)
+    {
+        return this.fileRefs.find(dataFileIdent, bundle, Files.sanitizeFilename(filename));
+    }
+
+    /**
+     * Materialise the reference at the given index of the reference store
+     *
+     * @param i index into the reference store
+     * @return  a reference to the file in the bag
+     */
+    private BagFileReference reference(int i)
+    {
+        BagFileReference bfr = new BagFileReference();
+        bfr.index = i;
+        bfr.filename = this.fileRefs.getFilename(i);
+        bfr.payloadPath = this.fileRefs.getPayloadPath(i);
+        bfr.zipPath = Files.sanitizeFilename(this.name) + File.separator + bfr.payloadPath;
+        int root = this.fileRefs.getRoot(i);
+        if (root == StagingSpace.MEMORY)
+        {
+            bfr.inMemory = true;
+        }
+        else
+        {
+            bfr.workingPath = this.stagingSpace.file(root, bfr.payloadPath).getAbsolutePath();
+        }
+        bfr.description = this.fileRefs.getDescription(i);
+        bfr.format = this.fileRefs.getFormat(i);
+        bfr.size = this.fileRefs.getSize(i);
+        byte[] md5 = this.fileRefs.getMd5(i);
+        if (md5 != null)
+        {
+            bfr.md5 = Files.toHex(md5);
+        }
+        byte[] sha1 = this.fileRefs.getSha1(i);
+        if (sha1 != null)
+        {
+            bfr.sha1 = Files.toHex(sha1);
+        }
+        bfr.dataFileIdent = this.fileRefs.getDataFileIdent(i);
+        bfr.bundle = this.fileRefs.getBundle(i);
+        return bfr;
+    }
+
+    /**
+     * Iterate over all the references in the bag, materialising each one only as it is reached
+     *
+     * @return  an iterable over the bag's file references
+     */
+    private Iterable<BagFileReference> references()
+    {
+        return new Iterable<BagFileReference>()
+        {
+            public Iterator<BagFileReference> iterator()
+            {
+                return new Iterator<BagFileReference>()
+                {
+                    private int i = 0;
+
+                    public boolean hasNext()
+                    {
+                        return this.i < fileRefs.size();
+                    }
+
+                    public BagFileReference next()
+                    {
+                        if (!this.hasNext())
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        return reference(this.i++);
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
     /**
      * Add a bitstream to the bag.  This will stage the file in the working directory.
      *
@@ -391,6 +1226,84 @@ public class DANSBag
         throws IOException
     {
         filename = Files.sanitizeFilename(filename);
+        Map<String, String> paths = this.stagingPaths(filename, format, dataFileIdent, bundle);
+        // the size is not known, so the bitstream is accounted for as it is staged
+        this.stage(is, null, 0, this.stagingBudget, paths, filename, format, description, dataFileIdent, bundle);
+    }
+
+    /**
+     * Add a bitstream whose MD5 and size are already known, e.g. from DSpace.  If the bag has a content store which
+     * holds that content it is linked into the working directory from there, and the source is never opened.
+     * Otherwise the bitstream is read from the source and staged as usual, and its MD5 is checked.
+     *
+     * @param source    where the bitstream can be read from, if it is needed
+     * @param size  the size of the bitstream
+     * @param md5   the MD5 of the bitstream, as hex
+     * @param filename  the filename
+     * @param format    the mimetype of the file
+     * @param description   a description of the file
+     * @param dataFileIdent     an identifier for the data file to which this bitstream belongs
+     * @param bundle    the DSpace bundle the bitstream came from
+     * @throws IOException
+     * @throws FixityException  if the content read from the source does not match the MD5
+     */
+    public void addBitstream(BaggedBitstream.StreamSource source, long size, String md5, String filename, String format,
+                             String description, String dataFileIdent, String bundle)
+        throws IOException
+    {
+        filename = Files.sanitizeFilename(filename);
+        Map<String, String> paths = this.stagingPaths(filename, format, dataFileIdent, bundle);
+
+        // the size is known, so wait for room before fetching anything
+        if (this.stagingBudget != null)
+        {
+            this.stagingBudget.acquire(size);
+        }
+        boolean staged = false;
+        try
+        {
+            if (this.contentStore != null)
+            {
+                int root = this.stagingSpace.locate(paths.get("payload"), size);
+                String sha1 = this.contentStore.stageTo(md5, size, this.stagingSpace.file(root, paths.get("payload")));
+                if (sha1 != null)
+                {
+                    log.info("Staged " + paths.get("payload") + " from the content store");
+                    int index = this.fileRefs.add(paths.get("payloadDir"), filename, dataFileIdent, bundle, description, format, size,
+                            Files.fromHex(md5), Files.fromHex(sha1));
+                    this.fileRefs.setRoot(index, root);
+                    staged = true;
+                    return;
+                }
+            }
+
+            InputStream is = source.open();
+            try
+            {
+                this.stage(is, md5, size, null, paths, filename, format, description, dataFileIdent, bundle);
+                staged = true;
+            }
+            finally
+            {
+                is.close();
+            }
+        }
+        finally
+        {
+            if (!staged && this.stagingBudget != null)
+            {
+                this.stagingBudget.release(size);
+            }
+        }
+    }
+
+    /**
+     * Check that the bag can take the bitstream, and prepare the directory it will be staged in
+     *
+     * @return  the paths of the bitstream, as given by {@link #paths}
+     */
+    private Map<String, String> stagingPaths(String filename, String format, String dataFileIdent, String bundle)
+    {
         log.debug("sanitized filename to " + filename);
         
         if (this.bagFile.exists())
@@ -409,15 +1322,29 @@ public class DANSBag
 
         // get the correct paths to use for the bitstream
         Map<String, String> paths = this.paths(true, false, dataFileIdent, bundle, filename);
-        String workingPath = paths.get("working");
-        String payloadPath = paths.get("payload");
-        log.info("Bistream will be temporarily staged at " + workingPath);
-        log.info("Bitstream will be written to internal zip path " + payloadPath);
+        log.info("Bistream will be temporarily staged at " + paths.get("working"));
+        log.info("Bitstream will be written to internal zip path " + paths.get("payload"));
 
-        // ensure that the target directory exists
-        String workingDir = paths.get("workingDir");
-        (new File(workingDir)).mkdirs();
+        // the directory the bitstream is staged in is only created if it is staged on disk
+        return paths;
+    }
 
+    /**
+     * Copy the bitstream into the working directory (or the overflow directory, if the working directory is short of
+     * space), hashing it as it goes, and record it in the bag
+     *
+     * @param expectedMd5   the MD5 the bitstream should have, as hex, or null if it is not known
+     * @param expectedSize  the size of the bitstream, or 0 if it is not known
+     * @param budget    the budget to account for the bitstream against as it is staged, or null if it has already
+     *                  been accounted for
+     * @return  the size of the bitstream
+     * @throws FixityException  if the bitstream does not have the expected MD5, in which case it is not recorded
+     */
+    private long stage(InputStream is, String expectedMd5, long expectedSize, StagingBudget budget, Map<String, String> paths,
+                       String filename, String format,
+                       String description, String dataFileIdent, String bundle)
+        throws IOException
+    {
         // wrap the input stream in something that can get the MD5 as we read it
         MessageDigest mdmd5 = null;
         MessageDigest mdsha1 = null;
@@ -433,24 +1360,68 @@ public class DANSBag
         DigestInputStream inner = new DigestInputStream(is, mdmd5);
         DigestInputStream dis = new DigestInputStream(inner, mdsha1);
 
-        // write the input stream to the working directory, in the appropriate folder
-        OutputStream os = new FileOutputStream(workingPath);
-        IOUtils.copy(dis, os);
+        // keep small bitstreams in memory; anything which turns out to be too big carries on to disk
+        byte[] content = null;
+        InputStream source = dis;
+        if (this.memoryStaging != null && this.memoryStaging.admits(expectedSize))
+        {
+            byte[] head = this.memoryStaging.readHead(dis);
+            if (this.memoryStaging.admits(head.length))
+            {
+                content = head;
+            }
+            else
+            {
+                source = new SequenceInputStream(new ByteArrayInputStream(head), dis);
+            }
+        }
+
+        // otherwise write the input stream to the working directory, in the appropriate folder
+        int root = StagingSpace.MEMORY;
+        File staged = null;
+        long size;
+        if (content == null)
+        {
+            root = this.stagingSpace.copy(source, paths.get("payload"), expectedSize, budget);
+            staged = this.stagingSpace.file(root, paths.get("payload"));
+            size = staged.length();
+        }
+        else
+        {
+            size = content.length;
+            if (budget != null)
+            {
+                budget.acquire(size);
+            }
+        }
 
         // add the bitstream information to our internal data structure
-        BagFileReference bfr = new BagFileReference();
-        bfr.filename = filename;
-        bfr.workingPath = workingPath;
-        bfr.payloadPath = payloadPath;
-        bfr.zipPath = paths.get("zip");
-        bfr.md5 = Files.digestToString(mdmd5);
-        bfr.sha1 = Files.digestToString(mdsha1);
-        bfr.description = description;
-        bfr.format = format;
-        bfr.size = (new File(workingPath)).length();
-        bfr.dataFileIdent = dataFileIdent;
-        bfr.bundle = bundle;
-        this.fileRefs.add(bfr);
+        byte[] md5 = mdmd5.digest();
+        byte[] sha1 = mdsha1.digest();
+        if (expectedMd5 != null && !Files.toHex(md5).equalsIgnoreCase(expectedMd5))
+        {
+            if (staged != null)
+            {
+                staged.delete();
+            }
+            if (budget != null)
+            {
+                budget.release(size);
+            }
+            throw new FixityException(paths.get("payload"), "MD5", expectedMd5, Files.toHex(md5));
+        }
+        int index = this.fileRefs.add(paths.get("payloadDir"), filename, dataFileIdent, bundle, description, format, size, md5, sha1);
+        this.fileRefs.setRoot(index, root);
+
+        if (content != null)
+        {
+            this.memoryStaging.put(index, content);
+        }
+        else if (this.contentStore != null)
+        {
+            this.contentStore.put(staged, Files.toHex(md5), Files.toHex(sha1), size);
+        }
+        return size;
     }
 
     /**
@@ -474,154 +1445,347 @@ public class DANSBag
             log.info("Writing bag to file " + this.bagFile.getAbsolutePath());
 
             // String base = Files.sanitizeFilename(this.name);
+            boolean written = false;
+            try
+            {
+                this.writeZip(new FileOutputStream(this.bagFile));
+                written = true;
+            }
+            finally
+            {
+                // a partial zip would stop the bag being written again, and could be mistaken for a whole one
+                if (!written && this.bagFile.exists() && !this.bagFile.delete())
+                {
+                    log.warn("Unable to remove the partial zip " + this.bagFile.getAbsolutePath());
+                }
+            }
+        }
+        // we need to conform to the old interface, so can only throw RuntimeExceptions
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
 
-            // prepare our zipped output stream
-            FileOutputStream dest = new FileOutputStream(this.bagFile);
-            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
+    /**
+     * Write the bag as a zip to one or more streams at once, e.g. a local copy and an upload, without writing it to
+     * the zip file given to the constructor.  Everything is written to every stream as it is produced, so the
+     * slowest of them sets the pace.  The streams are flushed but not closed.
+     *
+     * The bag can still be written again, with writeTo or writeToFile
+     *
+     * @param sinks the streams to write the zip to
+     * @return  the MD5 of the zip, as hex
+     * @throws IOException  if the bag cannot be written, or any of the streams fails
+     */
+    public String writeTo(OutputStream... sinks)
+            throws IOException
+    {
+        if (sinks.length == 0)
+        {
+            throw new IllegalArgumentException("Nowhere to write the bag to");
+        }
+        log.info("Writing bag to " + sinks.length + " stream(s)");
 
-            // prep all the metadata/tag files that we're going to need
-            TagFile descriptions = new TagFile();
-            TagFile formats = new TagFile();
-            TagFile sizes = new TagFile();
-            TagFile md5Manifest = new TagFile();
-            TagFile sha1Manifest = new TagFile();
-            TagFile tagmanifest = new TagFile();
+        MessageDigest md5;
+        try
+        {
+            md5 = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
 
-            DANSFiles dfs = new DANSFiles();
+        // the zip closes what it is written to, which must not close the caller's streams
+        OutputStream dest = new DigestOutputStream(new NullOutputStream(), md5);
+        for (OutputStream sink : sinks)
+        {
+            dest = new TeeOutputStream(dest, new CloseShieldOutputStream(sink));
+        }
+        try
+        {
+            this.writeZip(dest);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+        for (OutputStream sink : sinks)
+        {
+            sink.flush();
+        }
+        return Files.toHex(md5.digest());
+    }
 
-            // write the bitstreams, and gather their metadata for the tag files as we go through
-            for (BagFileReference bfr : this.fileRefs)
-            {
-                // add the filename to the files.xml metadata
-                dfs.addFileMetadata(bfr.payloadPath, "dcterms:title", bfr.filename);
+    /**
+     * Write the bag as a zip to one or more channels at once, e.g. a socket, without writing it to the zip file given
+     * to the constructor.  See {@link #writeTo(OutputStream...)}; the channels are not closed
+     *
+     * @param channels  the channels to write the zip to
+     * @return  the MD5 of the zip, as hex
+     * @throws IOException  if the bag cannot be written, or any of the channels fails
+     */
+    public String writeTo(WritableByteChannel... channels)
+            throws IOException
+    {
+        OutputStream[] sinks = new OutputStream[channels.length];
+        for (int i = 0; i < channels.length; i++)
+        {
+            sinks[i] = Channels.newOutputStream(channels[i]);
+        }
+        return this.writeTo(sinks);
+    }
 
-                // add the doi to the files.xml metadata
-                dfs.addFileMetadata(bfr.payloadPath, "dcterms:identifier", bfr.dataFileIdent);
+    /**
+     * Write the bag as a zip
+     *
+     * @param dest  where to write the zip, which is closed at the end
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private void writeZip(OutputStream dest)
+            throws IOException, NoSuchAlgorithmException
+    {
+        // prepare our zipped output stream
+        AccessPointZipOutputStream out = new AccessPointZipOutputStream(new BufferedOutputStream(dest));
+
+        // prep the metadata/tag files that we're going to need.  The payload entries of the
+        // bitstream tag files and manifests are streamed straight from the reference store when
+        // they are written, so these only hold the entries for the DIM metadata files
+        TagFile md5Manifest = new TagFile();
+        TagFile sha1Manifest = new TagFile();
+        TagFile tagmanifest = new TagFile();
+
+        // the <file> elements of files.xml are spooled to the working directory as each file is written,
+        // rather than all being held until the end
+        if (!this.workingDir.exists())
+        {
+            this.workingDir.mkdirs();
+        }
+        DANSFiles dfs = new DANSFiles();
+        boolean written = false;
+        try
+        {
+            dfs.spoolTo(File.createTempFile("files", ".xml", this.workingDir));
 
-                // update description tag file contents
-                if (bfr.description != null && !"".equals(bfr.description))
-                {
-                    descriptions.add(bfr.payloadPath, bfr.description);
-                    dfs.addFileMetadata(bfr.payloadPath, "dcterms:description", bfr.description);
-                }
+            // the tag files list the bitstreams in path order
+            int[] order = this.sortedReferences();
 
-                // update format tag file contents
-                if (bfr.format != null && !"".equals(bfr.format))
-                {
-                    formats.add(bfr.payloadPath, bfr.format);
-                    dfs.addFileMetadata(bfr.payloadPath, "dcterms:format", bfr.format);
-                }
+            // keep track of the payload for the Payload-Oxum
+            long payloadOctets = 0;
+            long payloadStreams = 0;
 
-                // update size tag file contents
-                if (bfr.size != -1)
-                {
-                    sizes.add(bfr.payloadPath, Long.toString(bfr.size));
-                    dfs.addFileMetadata(bfr.payloadPath, "dcterms:extent", Long.toString(bfr.size));
-                }
+            // the DIM metadata, the Dryad tag files and the manifests which describe the bitstreams are all written
+            // ahead of the payload, so that a reader streaming through the zip knows about each bitstream, checksums
+            // included, as it arrives (see BagStreamReader)
 
-                // update the manifests
-                if (bfr.md5 != null && !"".equals(bfr.md5))
+            // the index goes first of all, so that it can be found without reading the zip's central directory
+            if (this.writeIndex)
+            {
+                File indexFile = File.createTempFile("bag-index", ".bin", this.workingDir);
+                BagIndex index = this.index();
+                try
                 {
-                    md5Manifest.add(bfr.payloadPath, bfr.md5);
+                    index.writeTo(indexFile);
+                    Map<String, String> paths = this.paths(false, false, null, null, BagIndex.FILENAME);
+                    Map<String, String> indexChecksums = this.writeStoredToZip(indexFile, paths.get("zip"), out);
+                    tagmanifest.add(paths.get("payload"), indexChecksums.get("md5"));
                 }
-
-                if (bfr.sha1 != null && !"".equals(bfr.sha1))
+                finally
                 {
-                    sha1Manifest.add(bfr.payloadPath, bfr.sha1);
+                    index.close();
+                    indexFile.delete();
                 }
-
-                // this.writeToZip(bfr.getFile(), base + "/" + bfr.payloadPath, out);
-                this.writeToZip(bfr.getFile(), bfr.zipPath, out);
             }
 
-            // write the primary dim file
-            if (this.dim != null)
+            // write the primary dim file; a loaded bag may not have parsed it yet
+            DIM datasetDim = this.datasetDIM();
+            if (datasetDim != null)
             {
                 Map<String, String> paths = this.paths(true, false, null, null, "metadata.xml");
                 String payload = paths.get("payload");
                 // Map<String, String> dimChecksums = this.writeToZip(this.dim.toXML(), base + "/data/metadata.xml", out);
-                Map<String, String> dimChecksums = this.writeToZip(this.dim.toXML(), paths.get("zip"), out);
+                Map<String, String> dimChecksums = this.writeToZip(datasetDim, null, paths.get("zip"), out);
+                payloadOctets += Long.parseLong(dimChecksums.get("size"));
+                payloadStreams++;
                 md5Manifest.add(payload, dimChecksums.get("md5"));
                 sha1Manifest.add(payload, dimChecksums.get("sha-1"));
                 dfs.addFileMetadata(payload, "dcterms:title", payload);
                 dfs.addFileMetadata(payload, "dcterms:format", "text/xml");
+                dfs.spool(payload);
             }
 
             // write the datafile dim files
-            for (String ident : this.subDim.keySet())
+            for (String ident : this.datafileDIMIdents())
             {
                 Map<String, String> paths = this.paths(true, false, ident, null, "metadata.xml");
                 String payload = paths.get("payload");
-                DIM dim = this.subDim.get(ident);
+                DIM dim = this.datafileDIM(ident);
                 // Map<String, String> subDimChecksums = this.writeToZip(dim.toXML(), base + "/" + zipPath, out);
-                Map<String, String> subDimChecksums = this.writeToZip(dim.toXML(), paths.get("zip"), out);
+                Map<String, String> subDimChecksums = this.writeToZip(dim, null, paths.get("zip"), out);
+                payloadOctets += Long.parseLong(subDimChecksums.get("size"));
+                payloadStreams++;
                 md5Manifest.add(payload, subDimChecksums.get("md5"));
                 sha1Manifest.add(payload, subDimChecksums.get("sha-1"));
                 dfs.addFileMetadata(payload, "dcterms:title", payload);
                 dfs.addFileMetadata(payload, "dcterms:format", "text/xml");
                 dfs.addFileMetadata(payload, "dcterms:identifier", ident);
-            }
-
-            // write the DANS files.xml document
-            if (dfs != null)
-            {
-                Map<String, String> paths = this.paths(false, true, null, null, "files.xml");
-                Map<String, String> filesChecksums = this.writeToZip(dfs.toXML(), paths.get("zip"), out);
-                tagmanifest.add(paths.get("payload"), filesChecksums.get("md5"));
-            }
-
-            // write the DANS dataset.xml document
-            if (this.ddm != null)
-            {
-                Map<String, String> paths = this.paths(false, true, null, null, "dataset.xml");
-                Map<String, String> datasetChecksums = this.writeToZip(this.ddm.toXML(), paths.get("zip"), out);
-                tagmanifest.add(paths.get("payload"), datasetChecksums.get("md5"));
+                dfs.spool(payload);
             }
 
             // write the custom tag files
-            if (descriptions.hasEntries())
+            if (this.hasTagValues(TagColumn.DESCRIPTION, null))
             {
                 Map<String, String> paths = this.paths(false, false, null, null, "bitstream-description.txt");
-                Map<String, String> checksums = this.writeToZip(descriptions.serialise(), paths.get("zip"), out);
+                Map<String, String> checksums = this.writeToZip(TagColumn.DESCRIPTION, null, order, paths.get("zip"), out);
                 tagmanifest.add(paths.get("payload"), checksums.get("md5"));
             }
 
-            if (formats.hasEntries())
+            if (this.hasTagValues(TagColumn.FORMAT, null))
             {
                 Map<String, String> paths = this.paths(false, false, null, null, "bitstream-format.txt");
-                Map<String, String> checksums = this.writeToZip(formats.serialise(), paths.get("zip"), out);
+                Map<String, String> checksums = this.writeToZip(TagColumn.FORMAT, null, order, paths.get("zip"), out);
                 tagmanifest.add(paths.get("payload"), checksums.get("md5"));
             }
 
-            if (sizes.hasEntries())
+            if (this.hasTagValues(TagColumn.SIZE, null))
             {
                 Map<String, String> paths = this.paths(false, false, null, null, "bitstream-size.txt");
-                Map<String, String> checksums = this.writeToZip(sizes.serialise(), paths.get("zip"), out);
+                Map<String, String> checksums = this.writeToZip(TagColumn.SIZE, null, order, paths.get("zip"), out);
                 tagmanifest.add(paths.get("payload"), checksums.get("md5"));
             }
 
-            // write the checksum manifests
-            if (md5Manifest.hasEntries())
+            // write the data file mappings tag file
+            if (this.dataFilePaths.size() > 0)
+            {
+                TagFile dfmtf = new TagFile((HashMap) this.dataFilePaths);
+                Map<String, String> paths = this.paths(false, false, null, null, "ident-datafiles.txt");
+                Map<String, String> dfmtfChecksums = this.writeToZip(dfmtf, paths.get("zip"), out);
+                tagmanifest.add(paths.get("payload"), dfmtfChecksums.get("md5"));
+            }
+
+            // write the checksum manifests; the digests of the bitstreams are all known once they have been staged
+            if (this.hasTagValues(TagColumn.MD5, md5Manifest))
             {
                 Map<String, String> paths = this.paths(false, false, null, null, "manifest-md5.txt");
-                Map<String, String> manifestChecksums = this.writeToZip(md5Manifest.serialise(), paths.get("zip"), out);
+                Map<String, String> manifestChecksums = this.writeToZip(TagColumn.MD5, md5Manifest, order, paths.get("zip"), out);
                 tagmanifest.add(paths.get("payload"), manifestChecksums.get("md5"));
             }
 
-            if (sha1Manifest.hasEntries())
+            if (this.hasTagValues(TagColumn.SHA1, sha1Manifest))
             {
                 Map<String, String> paths = this.paths(false, false, null, null, "manifest-sha1.txt");
-                Map<String, String> manifestChecksums = this.writeToZip(sha1Manifest.serialise(), paths.get("zip"), out);
+                Map<String, String> manifestChecksums = this.writeToZip(TagColumn.SHA1, sha1Manifest, order, paths.get("zip"), out);
                 tagmanifest.add(paths.get("payload"), manifestChecksums.get("md5"));
             }
 
-            // write the data file mappings tag file
-            if (this.dataFilePaths.size() > 0)
+            // write the bitstreams, and gather their metadata for files.xml as we go through
+            TagFile accessPoints = new TagFile();
+
+            // with the bitstreams staged across several volumes, read ahead so that all of them are kept busy
+            ReadAhead readAhead = null;
+            if (this.stagingSpace.getRootCount() > 1)
             {
-                TagFile dfmtf = new TagFile((HashMap) this.dataFilePaths);
-                Map<String, String> paths = this.paths(false, false, null, null, "ident-datafiles.txt");
-                Map<String, String> dfmtfChecksums = this.writeToZip(dfmtf.serialise(), paths.get("zip"), out);
-                tagmanifest.add(paths.get("payload"), dfmtfChecksums.get("md5"));
+                final Iterator<BagFileReference> ahead = this.references().iterator();
+                readAhead = new ReadAhead(new Iterator<File>()
+                {
+                    public boolean hasNext()
+                    {
+                        return ahead.hasNext();
+                    }
+
+                    public File next()
+                    {
+                        BagFileReference next = ahead.next();
+                        return next.inMemory ? null : next.getFile();
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                }, this.stagingSpace.getRootCount(), READ_AHEAD_BYTES);
+            }
+            try
+            {
+                for (BagFileReference bfr : this.references())
+                {
+                    // add the filename to the files.xml metadata
+                    dfs.addFileMetadata(bfr.payloadPath, "dcterms:title", bfr.filename);
+
+                    // add the doi to the files.xml metadata
+                    dfs.addFileMetadata(bfr.payloadPath, "dcterms:identifier", bfr.dataFileIdent);
+
+                    if (bfr.description != null && !"".equals(bfr.description))
+                    {
+                        dfs.addFileMetadata(bfr.payloadPath, "dcterms:description", bfr.description);
+                    }
+
+                    if (bfr.format != null && !"".equals(bfr.format))
+                    {
+                        dfs.addFileMetadata(bfr.payloadPath, "dcterms:format", bfr.format);
+                    }
+
+                    if (bfr.size != -1)
+                    {
+                        dfs.addFileMetadata(bfr.payloadPath, "dcterms:extent", Long.toString(bfr.size));
+                    }
+                    dfs.spool(bfr.payloadPath);
+
+                    // this.writeToZip(bfr.getFile(), base + "/" + bfr.payloadPath, out);
+                    out.setSpacing(this.accessPointSpacing);
+                    InputStream content = readAhead == null ? null : readAhead.next();
+                    if (content == null)
+                    {
+                        content = bfr.open();
+                    }
+                    Map<String, String> bitstreamChecksums = this.writeToZip(content, bfr.zipPath, out);
+                    out.setSpacing(0);
+                    payloadOctets += Long.parseLong(bitstreamChecksums.get("size"));
+                    payloadStreams++;
+
+                    if (out.getAccessPoints().size() > 0)
+                    {
+                        accessPoints.add(bfr.payloadPath, this.serialiseAccessPoints(out.getAccessPoints()));
+                    }
+                }
+            }
+            finally
+            {
+                if (readAhead != null)
+                {
+                    readAhead.close();
+                }
+            }
+
+            // write the access points of the compressed bitstreams
+            if (accessPoints.hasEntries())
+            {
+                Map<String, String> paths = this.paths(false, false, null, null, "bitstream-access-points.txt");
+                Map<String, String> apChecksums = this.writeToZip(accessPoints, paths.get("zip"), out);
+                tagmanifest.add(paths.get("payload"), apChecksums.get("md5"));
+            }
+
+            // write the DANS files.xml document
+            if (dfs != null)
+            {
+                Map<String, String> paths = this.paths(false, true, null, null, "files.xml");
+                Map<String, String> filesChecksums = this.writeToZip(dfs, SchemaValidator.FILES, paths.get("zip"), out);
+                tagmanifest.add(paths.get("payload"), filesChecksums.get("md5"));
+                dfs.close();
+            }
+
+            // write the DANS dataset.xml document
+            if (this.ddm != null)
+            {
+                Map<String, String> paths = this.paths(false, true, null, null, "dataset.xml");
+                Map<String, String> datasetChecksums = this.writeToZip(this.ddm, SchemaValidator.DDM, paths.get("zip"), out);
+                tagmanifest.add(paths.get("payload"), datasetChecksums.get("md5"));
             }
 
             // write the bagit.txt
@@ -632,23 +1796,26 @@ public class DANSBag
 
             // write the bag-info.txt
             String baginfofile = "";
-	    // The Item's lastModified date becomes the bag-info "Created" date, because that is  
-	    // when the current version of the data package's metadata was "created". This number
-	    // must be updated with every edit to the item, because it controls the DANS version chain.
-            List<String> createdDates = dim.getDSpaceFieldValues("dc.date.lastModified");
+    	    // The Item's lastModified date becomes the bag-info "Created" date, because that is  
+    	    // when the current version of the data package's metadata was "created". This number
+    	    // must be updated with every edit to the item, because it controls the DANS version chain.
+            List<String> createdDates = datasetDim == null ? null : datasetDim.getDSpaceFieldValues("dc.date.lastModified");
             if(createdDates != null && createdDates.size() > 0) {
                 String createdDate = createdDates.get(0);
                 baginfofile = "Created: " + createdDate + "\n";
             }
-	    // If a version of this item has been sent to DANS before,
-	    // either this particular item, OR an earlier Dryad version,
-	    // it will have a DANSidentifier, and we mark this as a new 
-	    // version in the DANS version chain.
-            List<String> dansIDs = dim.getDSpaceFieldValues("dryad.DANSidentifier");
+    	    // If a version of this item has been sent to DANS before,
+    	    // either this particular item, OR an earlier Dryad version,
+    	    // it will have a DANSidentifier, and we mark this as a new 
+    	    // version in the DANS version chain.
+            List<String> dansIDs = datasetDim == null ? null : datasetDim.getDSpaceFieldValues("dryad.DANSidentifier");
             if(dansIDs != null && dansIDs.size() > 0) {
                 String dansID = dansIDs.get(0);
                 baginfofile = baginfofile + "Is-Version-Of: urn:uuid:" + dansID + "\n";
-	    }
+    	    }
+            // the payload size and file count allow a cheap completeness check without reading the payload
+            baginfofile = baginfofile + "Payload-Oxum: " + payloadOctets + "." + payloadStreams + "\n";
+            baginfofile = baginfofile + "Bag-Size: " + Files.humanReadableSize(payloadOctets) + "\n";
 
             paths = this.paths(false, false, null, null, "bag-info.txt");
             Map<String, String> baginfoChecksums = this.writeToZip(baginfofile, paths.get("zip"), out);
@@ -658,40 +1825,129 @@ public class DANSBag
             if (tagmanifest.hasEntries())
             {
                 paths = this.paths(false, false, null, null, "tagmanifest-md5.txt");
-                this.writeToZip(tagmanifest.serialise(), paths.get("zip"), out);
+                this.writeToZip(tagmanifest, paths.get("zip"), out);
             }
 
             out.close();
+            written = true;
         }
-        // we need to conform to the old interface, so can only throw RuntimeExceptions
-        catch (IOException e)
+        finally
         {
-            throw new RuntimeException(e);
+            // leave nothing behind if the bag could not be written, and let the original failure propagate
+            try
+            {
+                dfs.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to remove the spooled files.xml: " + e.getMessage());
+            }
+            if (!written)
+            {
+                IOUtils.closeQuietly(dest);
+            }
         }
-        catch (NoSuchAlgorithmException e)
+    }
+
+    /**
+     * Load state from the given zip file
+     */
+    public void loadBag()
+            throws IOException
+    {
+        this.loadBag(null);
+    }
+
+    /**
+     * Load state from the given zip file, but only for the bitstreams accepted by the filter.  Bitstreams which
+     * are rejected are dropped before any of their tag file entries are kept, and the DIMs of data files with no
+     * accepted bitstreams are not parsed, so loading a small part of a large bag costs time and memory in
+     * proportion to that part.  Bags loaded with a filter are never cached.
+     *
+     * @param filter    the bitstreams to load, or null for all of them
+     * @throws IOException
+     */
+    public void loadBag(LoadFilter filter)
+            throws IOException
+    {
+        if (this.zipFile != null)
         {
-            throw new RuntimeException(e);
+            this.zipFile.close();
         }
+        this.zipFile = new ZipFile(this.bagFile);
+
+        BagCatalog catalog;
+        final BagCatalogCache cache = catalogCache;
+        boolean shared = cache != null && filter == null;
+        if (!shared)
+        {
+            catalog = this.readCatalog(filter, this.workingDir);
+        }
+        else
+        {
+            catalog = cache.get(this.bagFile, new BagCatalogCache.Loader()
+            {
+                public BagCatalog load()
+                        throws IOException
+                {
+                    return readCatalog(null, cache.getSpillDir());
+                }
+            });
+        }
+        this.closeFileRefs();
+
+        this.name = catalog.getName();
+        this.dim = catalog.getDatasetDIM();
+        this.subDim = new HashMap<String, DIM>(catalog.getDatafileDIMs());
+        this.datasetDimPath = catalog.getDatasetDIMPath();
+        this.subDimPaths = new HashMap<String, String>(catalog.getDatafileDIMPaths());
+        this.dataFilePaths = new HashMap<String, String>(catalog.getDataFilePaths());
+        this.fileRefs = catalog.getFileRefs();
+        this.sharedCatalog = shared ? catalog : null;
+        this.sharedDims.clear();
+        if (shared)
+        {
+            // the DIMs are copied before they are handed out, so that changes stay with this bag
+            if (this.dim != null)
+            {
+                this.sharedDims.add(this.dim);
+            }
+            this.sharedDims.addAll(this.subDim.values());
+        }
+        this.zipIndex = null;
+        this.accessPoints = null;
     }
 
     /**
-     * Load state from the given zip file
+     * Read the central directory, tag files and DIM metadata of the zip.
+     *
+     * If a filter is given, bitstreams it rejects are dropped as soon as their data file and bundle are known:
+     * only the tag file lines of the selected bitstreams are kept, and only the DIMs of the data files they
+     * belong to are parsed.
+     *
+     * @param filter    the bitstreams to load, or null for all of them
+     * @return  the catalog of the bag
+     * @throws IOException
      */
-    public void loadBag()
+    private BagCatalog readCatalog(LoadFilter filter, File spillDir)
             throws IOException
     {
-        this.zipFile = new ZipFile(this.bagFile);
-        Enumeration e = this.zipFile.entries();
+        BagCatalog indexed = BagIndex.read(this.bagFile);
+        if (indexed != null)
+        {
+            return filter == null ? indexed : this.filterCatalog(indexed, filter, spillDir);
+        }
 
-        // some paths we'll want for exact comparison
-        // String dimPath = this.paths(true, false, null, null, "metadata.xml").get("zip");
+        Enumeration e = this.zipFile.entries();
+        DIM datasetDim = null;
+        Map<String, DIM> subDims = new HashMap<String, DIM>();
+        Map<String, String> dataFilePaths = new HashMap<String, String>();
+        BagFileReferenceStore fileRefs = new BagFileReferenceStore(spillDir, this.spillThreshold);
 
-        // tag files we'll want to create
-        TagFile descriptions = null;
-        TagFile formats = null;
-        TagFile sizes = null;
-        TagFile dataFileIdents = null;
+        // the tag files we'll want to read, by name
+        Map<String, ZipEntry> tagEntries = new HashMap<String, ZipEntry>();
 
+        ZipEntry datasetDimEntry = null;
         List<String> bitstreams = new ArrayList<String>();
         List<String> dfDims = new ArrayList<String>();
 
@@ -702,96 +1958,193 @@ public class DANSBag
 
             if (this.name == null)
             {
-                this.name = this.getRootName(path);
+                this.name = getRootName(path);
             }
 
-            if (this.pathIsDatasetDIM(path))
+            if (pathIsDatasetDIM(path))
             {
-                InputStream is = this.zipFile.getInputStream(entry);
-                DIM dim = DIM.parse(is);
-                this.setDatasetDIM(dim);
+                datasetDimEntry = entry;
             }
-            else if (this.pathIsDataFileDIM(path))
+            else if (pathIsDataFileDIM(path))
             {
                 dfDims.add(path);
             }
-            else if (this.pathIsDryadTagFile(path))
+            else if (pathIsDryadTagFile(path))
             {
-                InputStream is = this.zipFile.getInputStream(entry);
-                if (path.endsWith("bitstream-description.txt"))
-                {
-                    descriptions = TagFile.parse(is);
-                }
-                else if (path.endsWith("bitstream-format.txt"))
-                {
-                    formats = TagFile.parse(is);
-                }
-                else if (path.endsWith("bitstream-size.txt"))
-                {
-                    sizes = TagFile.parse(is);
-                }
-                else if (path.endsWith("ident-datafiles.txt"))
-                {
-                    dataFileIdents = TagFile.parse(is);
-                }
+                tagEntries.put(path.substring(path.lastIndexOf("/") + 1), entry);
             }
-            else if (this.pathIsBitstream(path))
+            else if (pathIsBitstream(path))
             {
                 bitstreams.add(path);
             }
         }
 
+        TagFile dataFileIdents = this.readTagFile(tagEntries.get("ident-datafiles.txt"), null);
         if (dataFileIdents == null)
         {
             throw new RuntimeException("Bag File does not contain a ident-datafiles.txt - cannot parse");
         }
 
+        // work out which bitstreams we are loading, before reading anything else about them
+        List<String[]> selected = new ArrayList<String[]>();
+        Set<String> selectedPaths = new HashSet<String>();
+        Set<String> selectedIdents = new HashSet<String>();
+        for (String bsPath : bitstreams)
+        {
+            String dfPathBit = getPayloadDataFileIdent(bsPath);
+            String bundle = getPayloadBundle(bsPath);
+            String filename = getFilename(bsPath);
+
+            String dataFilePath = "data/" + dfPathBit + File.separator;
+            String dataFileIdent = dataFileIdents.getValue(dataFilePath);
+
+            Map<String, String> paths = this.paths(true, false, dataFileIdent, bundle, filename);
+            String payloadPath = paths.get("payload");
+            if (filter != null && !filter.accept(dataFileIdent, bundle, payloadPath))
+            {
+                continue;
+            }
+
+            dataFilePaths.put(dataFilePath, dataFileIdent);
+            selected.add(new String[] { dataFileIdent, bundle, filename, paths.get("payloadDir"), payloadPath });
+            selectedPaths.add(payloadPath);
+            selectedIdents.add(dataFileIdent);
+        }
+
+        // tag files we'll want to create
+        Set<String> keep = filter == null ? null : selectedPaths;
+        TagFile descriptions = this.readTagFile(tagEntries.get("bitstream-description.txt"), keep);
+        TagFile formats = this.readTagFile(tagEntries.get("bitstream-format.txt"), keep);
+        TagFile sizes = this.readTagFile(tagEntries.get("bitstream-size.txt"), keep);
+        TagFile md5Manifest = this.readTagFile(tagEntries.get("manifest-md5.txt"), keep);
+        TagFile sha1Manifest = this.readTagFile(tagEntries.get("manifest-sha1.txt"), keep);
+
+        if (datasetDimEntry != null)
+        {
+            InputStream is = this.zipFile.getInputStream(datasetDimEntry);
+            datasetDim = DIM.parse(is);
+        }
+
         for (String dimPath : dfDims)
         {
-            String dimPathBit = this.getPayloadDataFileIdent(dimPath);
+            String dimPathBit = getPayloadDataFileIdent(dimPath);
             String dataFilePath = "data/" + dimPathBit + File.separator;
             String dataFileIdent = dataFileIdents.getValue(dataFilePath);
+            if (filter != null && !selectedIdents.contains(dataFileIdent))
+            {
+                continue;
+            }
 
             ZipEntry entry = this.zipFile.getEntry(dimPath);
             InputStream is = this.zipFile.getInputStream(entry);
-            DIM dim = DIM.parse(is);
-            this.addDatafileDIM(dim, dataFileIdent);
+            subDims.put(dataFileIdent, DIM.parse(is));
         }
 
-        for (String bsPath : bitstreams)
+        for (String[] bs : selected)
         {
-            String dfPathBit = this.getPayloadDataFileIdent(bsPath);
-            String bundle = this.getPayloadBundle(bsPath);
-            String filename = this.getFilename(bsPath);
+            String dataFileIdent = bs[0];
+            String bundle = bs[1];
+            String filename = bs[2];
+            String payloadPath = bs[4];
+
+            String description = null;
+            String format = null;
+            long size = -1;
+            if (descriptions != null)
+            {
+                description = descriptions.getValue(payloadPath);
+            }
+            if (formats != null)
+            {
+                format = formats.getValue(payloadPath);
+            }
+            if (sizes != null && sizes.getValue(payloadPath) != null)
+            {
+                size = Long.parseLong(sizes.getValue(payloadPath));
+            }
 
-            String dataFilePath = "data/" + dfPathBit + File.separator;
-            String dataFileIdent = dataFileIdents.getValue(dataFilePath);
-            this.dataFilePaths.put(dataFilePath, dataFileIdent);
+            // keep hold of the checksums so that we can verify the content as it is read
+            byte[] md5 = null;
+            byte[] sha1 = null;
+            if (md5Manifest != null && md5Manifest.getValue(payloadPath) != null)
+            {
+                md5 = Files.fromHex(md5Manifest.getValue(payloadPath));
+            }
+            if (sha1Manifest != null && sha1Manifest.getValue(payloadPath) != null)
+            {
+                sha1 = Files.fromHex(sha1Manifest.getValue(payloadPath));
+            }
+            fileRefs.add(bs[3], filename, dataFileIdent, bundle, description, format, size, md5, sha1);
+        }
 
-            Map<String, String> paths = this.paths(true, false, dataFileIdent, bundle, filename);
-            String payloadPath = paths.get("payload");
+        return new BagCatalog(this.name, datasetDim, subDims, dataFilePaths, fileRefs);
+    }
 
-            BagFileReference bfr = new BagFileReference();
-            bfr.zipEntry = this.zipFile.getEntry(bsPath);
-            bfr.filename = filename;
-            bfr.payloadPath = payloadPath;
-            bfr.zipPath = paths.get("zip");
-            bfr.dataFileIdent = dataFileIdent;
-            bfr.bundle = bundle;
-            if (descriptions != null)
+    /**
+     * Read a tag file from the zip
+     *
+     * @param entry the tag file's entry, or null if the bag doesn't have it
+     * @param paths the paths to keep, or null for all of them
+     * @return  the tag file, or null if there is no entry
+     * @throws IOException
+     */
+    private TagFile readTagFile(ZipEntry entry, Set<String> paths)
+            throws IOException
+    {
+        if (entry == null)
+        {
+            return null;
+        }
+        InputStream is = this.zipFile.getInputStream(entry);
+        try
+        {
+            return paths == null ? TagFile.parse(is) : TagFile.parse(is, paths);
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    /**
+     * Narrow a catalog read from a bag index down to the bitstreams accepted by the filter
+     */
+    private BagCatalog filterCatalog(BagCatalog catalog, LoadFilter filter, File spillDir)
+            throws IOException
+    {
+        BagFileReferenceStore all = catalog.getFileRefs();
+        BagFileReferenceStore fileRefs = new BagFileReferenceStore(spillDir, this.spillThreshold);
+        Set<String> selectedIdents = new HashSet<String>();
+        for (int i = 0; i < all.size(); i++)
+        {
+            String dataFileIdent = all.getDataFileIdent(i);
+            String bundle = all.getBundle(i);
+            if (filter.accept(dataFileIdent, bundle, all.getPayloadPath(i)))
             {
-                bfr.description = descriptions.getValue(payloadPath);
+                fileRefs.add(all.getPayloadDir(i), all.getFilename(i), dataFileIdent, bundle, all.getDescription(i),
+                        all.getFormat(i), all.getSize(i), all.getMd5(i), all.getSha1(i));
+                selectedIdents.add(dataFileIdent);
             }
-            if (formats != null)
+        }
+        all.close();
+
+        Map<String, String> dataFilePaths = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : catalog.getDataFilePaths().entrySet())
+        {
+            if (selectedIdents.contains(entry.getValue()))
             {
-                bfr.format = formats.getValue(payloadPath);
+                dataFilePaths.put(entry.getKey(), entry.getValue());
             }
-            if (sizes != null)
+        }
+        Map<String, String> subDimPaths = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : catalog.getDatafileDIMPaths().entrySet())
+        {
+            if (selectedIdents.contains(entry.getKey()))
             {
-                bfr.size = Integer.parseInt(sizes.getValue(payloadPath));
+                subDimPaths.put(entry.getKey(), entry.getValue());
             }
-            this.fileRefs.add(bfr);
         }
+        return new BagCatalog(catalog.getName(), catalog.getDatasetDIMPath(), subDimPaths, dataFilePaths, fileRefs);
     }
 
 
@@ -801,7 +2154,7 @@ public class DANSBag
      * @param file  The file reference
      * @param path  The path within the zip file to store a copy of the file
      * @param out   The ZipOutputStream to write the file to
-     * @return  a map of digest formats and their values for the content (md5 and sha-1)
+     * @return  a map of digest formats and their values for the content (md5 and sha-1), and its size
      * @throws IOException
      * @throws NoSuchAlgorithmException
      */
@@ -818,7 +2171,7 @@ public class DANSBag
      * @param str   The string to write into a file
      * @param path  The path within the zip file to store the resulting text file
      * @param out   The ZipOutputStream to write the file to
-     * @return  a map of digest formats and their values for the content (md5 and sha-1)
+     * @return  a map of digest formats and their values for the content (md5 and sha-1), and its size
      * @throws IOException
      * @throws NoSuchAlgorithmException
      */
@@ -829,17 +2182,337 @@ public class DANSBag
         return this.writeToZip(bais, path, out);
     }
 
+    /**
+     * Build the index of the bag, holding the references as loadBag would read them back from the tag files
+     *
+     * @return  the index, which must be closed once written
+     * @throws IOException
+     */
+    private BagIndex index()
+            throws IOException
+    {
+        BagFileReferenceStore loaded = new BagFileReferenceStore(this.workingDir, this.spillThreshold);
+        for (int i = 0; i < this.fileRefs.size(); i++)
+        {
+            String dataFilePath = this.paths(true, false, this.fileRefs.getDataFileIdent(i), null, null).get("payload");
+            String sizeValue = this.tagValue(i, TagColumn.SIZE);
+            loaded.add(this.fileRefs.getPayloadDir(i), this.fileRefs.getFilename(i), this.dataFilePaths.get(dataFilePath),
+                    this.fileRefs.getBundle(i), this.tagValue(i, TagColumn.DESCRIPTION), this.tagValue(i, TagColumn.FORMAT),
+                    sizeValue == null ? -1 : Long.parseLong(sizeValue), this.fileRefs.getMd5(i), this.fileRefs.getSha1(i));
+        }
+
+        Set<String> dimDirs = new HashSet<String>();
+        for (String ident : this.datafileDIMIdents())
+        {
+            dimDirs.add(this.paths(true, false, ident, null, null).get("payload"));
+        }
+        boolean hasDatasetDim = this.dim != null || this.datasetDimPath != null;
+        return new BagIndex(this.name, hasDatasetDim, this.dataFilePaths, dimDirs, loaded);
+    }
+
+    /**
+     * Write an XML document to the given path inside the zip, streaming it rather than building it as a string
+     *
+     * @param xml   the document
+     * @param schema    the bundled schema to validate the document against, if validating metadata (may be null)
+     * @param path  The path within the zip file to store the document
+     * @param out   The ZipOutputStream to write the file to
+     * @return  a map of digest formats and their values for the content (md5 and sha-1), and its size
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private Map<String, String> writeToZip(XMLFile xml, String schema, String path, ZipOutputStream out)
+            throws IOException, NoSuchAlgorithmException
+    {
+        MessageDigest mdmd5 = MessageDigest.getInstance("MD5");
+        MessageDigest mdsha1 = MessageDigest.getInstance("SHA-1");
+
+        out.putNextEntry(new ZipEntry(path));
+        // XMLFile.writeTo flushes rather than closes, so the zip stream stays open
+        CountingOutputStream counter = new CountingOutputStream(out);
+        DigestOutputStream inner = new DigestOutputStream(counter, mdmd5);
+        DigestOutputStream dos = new DigestOutputStream(inner, mdsha1);
+        if (this.validateMetadata && schema != null)
+        {
+            // validate the document on the way into the zip, rather than reading it back afterwards
+            SchemaValidator.Session session = SchemaValidator.get(schema).start();
+            boolean written = false;
+            try
+            {
+                xml.writeTo(new TeeOutputStream(dos, session.getSink()));
+                written = true;
+            }
+            finally
+            {
+                if (!written)
+                {
+                    // leave the original failure to propagate
+                    session.cancel();
+                }
+            }
+            List<String> errors = session.finish();
+            if (!errors.isEmpty())
+            {
+                throw new SchemaValidationException(path, errors);
+            }
+        }
+        else
+        {
+            xml.writeTo(dos);
+        }
+
+        Map<String, String> ret = new HashMap<String, String>();
+        ret.put("md5", Files.digestToString(mdmd5));
+        ret.put("sha-1", Files.digestToString(mdsha1));
+        ret.put("size", Long.toString(counter.getByteCount()));
+        return ret;
+    }
+
+    /**
+     * Write a tag file to the given path inside the zip, a line at a time
+     *
+     * @param tagFile   the tag file
+     * @param path  The path within the zip file to store the tag file
+     * @param out   The ZipOutputStream to write the file to
+     * @return  a map of digest formats and their values for the content (md5 and sha-1), and its size
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private Map<String, String> writeToZip(TagFile tagFile, String path, ZipOutputStream out)
+            throws IOException, NoSuchAlgorithmException
+    {
+        MessageDigest mdmd5 = MessageDigest.getInstance("MD5");
+        MessageDigest mdsha1 = MessageDigest.getInstance("SHA-1");
+
+        out.putNextEntry(new ZipEntry(path));
+        // TagFile.writeTo flushes rather than closes, so the zip stream stays open
+        CountingOutputStream counter = new CountingOutputStream(out);
+        DigestOutputStream inner = new DigestOutputStream(counter, mdmd5);
+        DigestOutputStream dos = new DigestOutputStream(inner, mdsha1);
+        tagFile.writeTo(dos);
+
+        Map<String, String> ret = new HashMap<String, String>();
+        ret.put("md5", Files.digestToString(mdmd5));
+        ret.put("sha-1", Files.digestToString(mdsha1));
+        ret.put("size", Long.toString(counter.getByteCount()));
+        return ret;
+    }
+
+    /**
+     * Put the references in order of their payload paths.  Each path is decoded once, and the indexes are
+     * merge sorted as they are, which costs little when the references were added in order already
+     *
+     * @return  the indexes of the references in the reference store, in path order
+     */
+    private int[] sortedReferences()
+    {
+        int n = this.fileRefs.size();
+        String[] paths = new String[n];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            paths[i] = this.fileRefs.getPayloadPath(i);
+            order[i] = i;
+        }
+        sortByPath(order, new int[n], 0, n, paths);
+        return order;
+    }
+
+    /**
+     * Stable merge sort of order[lo, hi) by the paths the indexes refer to
+     */
+    private static void sortByPath(int[] order, int[] tmp, int lo, int hi, String[] paths)
+    {
+        if (hi - lo < 2)
+        {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        sortByPath(order, tmp, lo, mid, paths);
+        sortByPath(order, tmp, mid, hi, paths);
+        if (paths[order[mid - 1]].compareTo(paths[order[mid]]) <= 0)
+        {
+            // the two halves are already in order
+            return;
+        }
+
+        System.arraycopy(order, lo, tmp, lo, hi - lo);
+        int i = lo;
+        int j = mid;
+        for (int k = lo; k < hi; k++)
+        {
+            if (j >= hi || (i < mid && paths[tmp[i]].compareTo(paths[tmp[j]]) <= 0))
+            {
+                order[k] = tmp[i++];
+            }
+            else
+            {
+                order[k] = tmp[j++];
+            }
+        }
+    }
+
+    /**
+     * Is there anything to write for the given bitstream tag file?
+     *
+     * @param column    the reference property the tag file records
+     * @param extras    additional entries for the tag file which don't come from the references (may be null)
+     * @return  true if at least one entry would be written
+     */
+    private boolean hasTagValues(TagColumn column, TagFile extras)
+    {
+        if (extras != null && extras.hasEntries())
+        {
+            return true;
+        }
+        for (int i = 0; i < this.fileRefs.size(); i++)
+        {
+            if (this.tagValue(i, column) != null)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the value the given reference contributes to a bitstream tag file
+     *
+     * @param i index into the reference store
+     * @param column    the reference property the tag file records
+     * @return  the tag value, or null if the reference has no entry in the tag file
+     */
+    private String tagValue(int i, TagColumn column)
+    {
+        switch (column)
+        {
+            case DESCRIPTION:
+                return this.emptyToNull(this.fileRefs.getDescription(i));
+            case FORMAT:
+                return this.emptyToNull(this.fileRefs.getFormat(i));
+            case SIZE:
+                long size = this.fileRefs.getSize(i);
+                return size == -1 ? null : Long.toString(size);
+            case MD5:
+                byte[] md5 = this.fileRefs.getMd5(i);
+                return md5 == null ? null : Files.toHex(md5);
+            case SHA1:
+                byte[] sha1 = this.fileRefs.getSha1(i);
+                return sha1 == null ? null : Files.toHex(sha1);
+        }
+        return null;
+    }
+
+    private String emptyToNull(String value)
+    {
+        return "".equals(value) ? null : value;
+    }
+
+    /**
+     * Write a bitstream tag file to the given path inside the given zip output stream, streaming its entries
+     * directly from the reference store rather than assembling them in memory first
+     *
+     * @param column    the reference property the tag file records
+     * @param extras    additional entries which don't come from the references (may be null)
+     * @param order the indexes of the references in path order
+     * @param path  The path within the zip file to store the resulting tag file
+     * @param out   The ZipOutputStream to write the file to
+     * @return  a map of digest formats and their values for the content (md5 and sha-1)
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private Map<String, String> writeToZip(TagColumn column, TagFile extras, int[] order, String path, ZipOutputStream out)
+            throws IOException, NoSuchAlgorithmException
+    {
+        MessageDigest mdmd5 = MessageDigest.getInstance("MD5");
+        MessageDigest mdsha1 = MessageDigest.getInstance("SHA-1");
+
+        ZipEntry entry = new ZipEntry(path);
+        out.putNextEntry(entry);
+
+        // we flush rather than close this writer, so that the zip stream stays open
+        DigestOutputStream inner = new DigestOutputStream(out, mdmd5);
+        DigestOutputStream dos = new DigestOutputStream(inner, mdsha1);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(dos, "UTF-8"), BUFFER);
+
+        // merge the references with the extra entries, keeping the whole file in path order
+        Iterator<String> extraPaths = extras == null ? Collections.<String>emptyList().iterator() : extras.getPaths().iterator();
+        String extraPath = extraPaths.hasNext() ? extraPaths.next() : null;
+        for (int i : order)
+        {
+            String value = this.tagValue(i, column);
+            if (value == null)
+            {
+                continue;
+            }
+            String payloadPath = this.fileRefs.getPayloadPath(i);
+            while (extraPath != null && extraPath.compareTo(payloadPath) < 0)
+            {
+                writer.append(extras.getValue(extraPath)).append("\t").append(extraPath).append("\n");
+                extraPath = extraPaths.hasNext() ? extraPaths.next() : null;
+            }
+            writer.append(value).append("\t").append(payloadPath).append("\n");
+        }
+        while (extraPath != null)
+        {
+            writer.append(extras.getValue(extraPath)).append("\t").append(extraPath).append("\n");
+            extraPath = extraPaths.hasNext() ? extraPaths.next() : null;
+        }
+        writer.flush();
+
+        Map<String, String> ret = new HashMap<String, String>();
+        ret.put("md5", Files.digestToString(mdmd5));
+        ret.put("sha-1", Files.digestToString(mdsha1));
+        return ret;
+    }
+
     /**
      * Write the data from the input stream to the given path inside the given zip output stream
      * @param fi    InputStream to source data from
      * @param path  The path within the zip file to store the resulting file
      * @param out   The ZipOutputStream to write the file to
-     * @return  a map of digest formats and their values for the content (md5 and sha-1)
+     * @return  a map of digest formats and their values for the content (md5 and sha-1), and its size
      * @throws IOException
      * @throws NoSuchAlgorithmException
      */
     private Map<String, String> writeToZip(InputStream fi, String path, ZipOutputStream out)
             throws IOException, NoSuchAlgorithmException
+    {
+        return this.writeToZip(fi, new ZipEntry(path), out);
+    }
+
+    /**
+     * Write the given file to the given path inside the zip, without compressing it
+     *
+     * @param file  The file to write
+     * @param path  The path within the zip file to store the file
+     * @param out   The ZipOutputStream to write the file to
+     * @return  a map of digest formats and their values for the content (md5 and sha-1), and its size
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private Map<String, String> writeStoredToZip(File file, String path, ZipOutputStream out)
+            throws IOException, NoSuchAlgorithmException
+    {
+        // a STORED entry must know its checksum before it is written
+        CheckedInputStream cis = new CheckedInputStream(new FileInputStream(file), new CRC32());
+        byte data[] = new byte[BUFFER];
+        while (cis.read(data, 0, BUFFER) != -1)
+        {
+            // just reading
+        }
+        cis.close();
+
+        ZipEntry entry = new ZipEntry(path);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(file.length());
+        entry.setCompressedSize(file.length());
+        entry.setCrc(cis.getChecksum().getValue());
+        return this.writeToZip(new FileInputStream(file), entry, out);
+    }
+
+    private Map<String, String> writeToZip(InputStream fi, ZipEntry entry, ZipOutputStream out)
+            throws IOException, NoSuchAlgorithmException
     {
         MessageDigest mdmd5 = MessageDigest.getInstance("MD5");
         MessageDigest mdsha1 = MessageDigest.getInstance("SHA-1");
@@ -847,12 +2520,13 @@ public class DANSBag
         DigestInputStream inner = new DigestInputStream(origin, mdmd5);
         DigestInputStream dis = new DigestInputStream(inner, mdsha1);
 
-        ZipEntry entry = new ZipEntry(path);
         out.putNextEntry(entry);
         int count;
+        long size = 0;
         byte data[] = new byte[BUFFER];
         while((count = dis.read(data, 0, BUFFER)) != -1) {
             out.write(data, 0, count);
+            size += count;
         }
         origin.close();
 
@@ -862,6 +2536,7 @@ public class DANSBag
         Map<String, String> ret = new HashMap<String, String>();
         ret.put("md5", md5hex);
         ret.put("sha-1", sha1hex);
+        ret.put("size", Long.toString(size));
         return ret;
     }
 
@@ -891,6 +2566,7 @@ public class DANSBag
             payload.append(bundle).append(File.separator);
         }
         String payloadDir = payload.toString();
+        p.put("payloadDir", payloadDir);
 
         if (filename != null)
         {
@@ -915,62 +2591,62 @@ public class DANSBag
         return p;
     }
 
-    private boolean pathIsBitstream(String path)
+    static boolean pathIsBitstream(String path)
     {
         String pattern = "([^/]+)/data/([^/]+)/([^/]+)/.+";
-        return this.matches(pattern, path);
+        return matches(pattern, path);
     }
 
-    private String getRootName(String path)
+    static String getRootName(String path)
     {
         String pattern = "([^/]+)/.+";
-        return this.group(pattern, path, 1);
+        return group(pattern, path, 1);
     }
 
-    private String getPayloadDataFileIdent(String path)
+    static String getPayloadDataFileIdent(String path)
     {
         String pattern = "([^/]+)/data/([^/]+)/.+";
-        return this.group(pattern, path, 2);
+        return group(pattern, path, 2);
     }
 
-    private String getPayloadBundle(String path)
+    static String getPayloadBundle(String path)
     {
         String pattern = "([^/]+)/data/([^/]+)/([^/]+)/.+";
-        return this.group(pattern, path, 3);
+        return group(pattern, path, 3);
     }
 
-    private String getFilename(String path)
+    static String getFilename(String path)
     {
         String pattern = "([^/]+)/data/([^/]+)/([^/]+)/(.+)";
-        return this.group(pattern, path, 4);
+        return group(pattern, path, 4);
     }
 
-    private boolean pathIsDatasetDIM(String path)
+    static boolean pathIsDatasetDIM(String path)
     {
         String pattern = "([^/]+)/data/metadata\\.xml";
-        return this.matches(pattern, path);
+        return matches(pattern, path);
     }
 
-    private boolean pathIsDataFileDIM(String path)
+    static boolean pathIsDataFileDIM(String path)
     {
         String pattern = "([^/]+)/data/([^/]+)/metadata\\.xml";
-        return this.matches(pattern, path);
+        return matches(pattern, path);
     }
 
-    private boolean pathIsDryadTagFile(String path)
+    static boolean pathIsDryadTagFile(String path)
     {
         String pattern = "([^/]+)/([^/]+\\.txt)";
-        return this.matches(pattern, path);
+        return matches(pattern, path);
     }
 
-    private boolean matches(String pattern, String string)
+    private static boolean matches(String pattern, String string)
     {
         Pattern r = Pattern.compile(pattern);
         Matcher m = r.matcher(string);
         return m.matches();
     }
 
-    private String group(String pattern, String string, int group)
+    private static String group(String pattern, String string, int group)
     {
         Pattern r = Pattern.compile(pattern);
         Matcher m = r.matcher(string);
@@ -982,18 +2658,52 @@ public class DANSBag
     }
 
     /**
-     * Clean out any cached data in the working directory
+     * Clean out any cached data in the working directory.  The bag's references to its bitstreams are released
+     * with it, so a bag read from a zip must be loaded again before it is used
      *
      * @throws IOException
      */
     public void cleanupWorkingDir()
             throws IOException
     {
+        if (this.memoryStaging != null)
+        {
+            this.memoryStaging.close();
+            this.memoryStaging = null;
+        }
+        // the references may be mapped from files in the working directory
+        this.closeFileRefs();
+        this.fileRefs = new BagFileReferenceStore(this.workingDir, this.spillThreshold);
         if (this.workingDir.exists())
         {
             log.debug("Cleaning up working directory " + this.workingDir.getAbsolutePath());
             FileUtils.forceDelete(this.workingDir);
         }
+        for (File dir : this.stagingSpace.getOtherDirs())
+        {
+            if (dir.exists())
+            {
+                log.debug("Cleaning up staging directory " + dir.getAbsolutePath());
+                FileUtils.forceDelete(dir);
+            }
+        }
+    }
+
+    /**
+     * Release the references.  If they belong to a cached catalog, the bag lets go of the catalog instead, which
+     * closes them once they are neither cached nor used by any other bag
+     */
+    private void closeFileRefs()
+    {
+        if (this.sharedCatalog != null)
+        {
+            this.sharedCatalog.release();
+            this.sharedCatalog = null;
+        }
+        else
+        {
+            this.fileRefs.close();
+        }
     }
 
     /**
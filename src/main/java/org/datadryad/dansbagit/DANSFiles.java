@@ -2,13 +2,18 @@ package org.datadryad.dansbagit;
 
 import nu.xom.Attribute;
 import nu.xom.Element;
+import org.apache.commons.io.output.CountingOutputStream;
 
-import java.io.IOException;
+import java.io.*;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * XML class to represent the DANS files.xml format
+ *
+ * For bags with many files the <file> elements can be spooled to a temporary file as they are completed, rather
+ * than held in memory until the document is written; see {@link #spoolTo(File)}
  */
 public class DANSFiles extends XMLFile
 {
@@ -28,6 +33,15 @@ public class DANSFiles extends XMLFile
     /** map of metadata linking file paths, to a set of key/value pairs */
     private Map<String, Map<String, String>> metadata = new HashMap<String, Map<String, String>>();
 
+    /** the temporary file holding the serialised elements of spooled files, if spooling */
+    private File spoolFile = null;
+    private StreamingSerializer spooler = null;
+    private OutputStream spoolStream = null;
+
+    /** the number of bytes at the start of the spool file which precede the first spooled element */
+    private long spoolStart = 0;
+    private int spooled = 0;
+
     /**
      * Add metadata about a file
      *
@@ -54,42 +68,174 @@ public class DANSFiles extends XMLFile
     public String toXML()
             throws IOException
     {
-        Element files = new Element("files");
-        files.addNamespaceDeclaration("dcterms", DCTERMS_NAMESPACE);
-        files.addNamespaceDeclaration("dc", DC_NAMESPACE);
-        files.addNamespaceDeclaration("premis", PREMIS_NAMESPACE);
-        files.addNamespaceDeclaration("id-type", ID_NAMESPACE);
-        files.addNamespaceDeclaration("xsi", XSI_NAMESPACE);
+        if (this.spooled > 0)
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            this.writeTo(baos);
+            return baos.toString("UTF-8");
+        }
 
+        Element files = this.filesElement();
         for (String path : this.metadata.keySet())
         {
-            Element fileEntry = new Element("file");
-            Attribute pathAttr = new Attribute("filepath", path);
-            fileEntry.addAttribute(pathAttr);
+            files.appendChild(this.fileElement(path, this.metadata.get(path)));
+        }
 
-            Map<String, String> fields = this.metadata.get(path);
-            for (String field : fields.keySet())
+        return this.xml2String(files);
+    }
+
+    public void writeTo(OutputStream out)
+            throws IOException
+    {
+        StreamingSerializer serializer = new StreamingSerializer(out);
+        serializer.startDocument();
+        serializer.startElement(this.filesElement());
+        if (this.spooled > 0)
+        {
+            this.spooler.flush();
+            InputStream in = new BufferedInputStream(new FileInputStream(this.spoolFile));
+            try
             {
-                String value = fields.get(field);
-                String namespace = this.getNamespace(field);
-                if (namespace == null)
+                long skip = this.spoolStart;
+                while (skip > 0)
                 {
-                    continue;
-                }
-                Element fieldElement = new Element(field, namespace);
-                fieldElement.appendChild(value);
-                if(field.equals("dcterms:identifier") || field.equals("identifier")) {
-                    Attribute att = new Attribute("type", "id-type:DOI");
-                    att.setNamespace("xsi", XSI_NAMESPACE);
-                    fieldElement.addAttribute(att);
+                    long skipped = in.skip(skip);
+                    if (skipped <= 0)
+                    {
+                        throw new EOFException("Spool file " + this.spoolFile.getAbsolutePath() + " is truncated");
+                    }
+                    skip -= skipped;
                 }
-                fileEntry.appendChild(fieldElement);
+                serializer.writeSerialised(in);
             }
+            finally
+            {
+                in.close();
+            }
+        }
+        for (String path : this.metadata.keySet())
+        {
+            serializer.writeElement(this.fileElement(path, this.metadata.get(path)));
+        }
+        serializer.endDocument();
+    }
+
+    /**
+     * Spool the elements of completed files to the given temporary file, see {@link #spool(String)}.  The
+     * spooled files come before any others in the document, in the order in which they were spooled.  Call
+     * close when the document has been written, to remove the file
+     *
+     * @param spoolFile the file to spool to
+     * @throws IOException
+     */
+    public void spoolTo(File spoolFile)
+            throws IOException
+    {
+        this.spoolFile = spoolFile;
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile)));
+        this.spoolStream = counter;
+
+        // the spool holds the elements just as they will appear in the document, so they can be copied
+        // straight into it; the opening of the document which comes first in the file is skipped over
+        this.spooler = new StreamingSerializer(counter);
+        this.spooler.startDocument();
+        this.spooler.startElement(this.filesElement());
+        this.spooler.writeSerialised(new ByteArrayInputStream(new byte[0]));
+        counter.flush();
+        this.spoolStart = counter.getByteCount();
+    }
 
-            files.appendChild(fileEntry);
+    /**
+     * Write the element for a file whose metadata is complete to the spool, and forget the metadata.  If the
+     * document is not being spooled the metadata is kept in memory as usual
+     *
+     * @param path  the file path
+     * @throws IOException
+     */
+    public void spool(String path)
+            throws IOException
+    {
+        if (this.spooler == null || !this.metadata.containsKey(path))
+        {
+            return;
         }
+        this.spooler.writeElement(this.fileElement(path, this.metadata.remove(path)));
+        this.spooled++;
+    }
 
-        return this.xml2String(files);
+    /**
+     * Remove the spool file, if there is one
+     *
+     * @throws IOException
+     */
+    public void close()
+            throws IOException
+    {
+        if (this.spooler != null)
+        {
+            this.spoolStream.close();
+            this.spoolFile.delete();
+            this.spooler = null;
+            this.spooled = 0;
+        }
+    }
+
+    /**
+     * Validate the XML against the bundled files.xml schema.  The bundled schema is a structural subset of the
+     * DANS files.xml schema, not the DANS schema itself, so a document which passes may still be rejected by DANS.
+     *
+     * @return  the schema errors, each with the line and column it was found at; empty if the XML is valid
+     * @throws IOException
+     */
+    public List<String> validate()
+            throws IOException
+    {
+        return this.validate(SchemaValidator.FILES);
+    }
+
+    /**
+     * @return  the root element of the document, with no content
+     */
+    private Element filesElement()
+    {
+        Element files = new Element("files");
+        files.addNamespaceDeclaration("dcterms", DCTERMS_NAMESPACE);
+        files.addNamespaceDeclaration("dc", DC_NAMESPACE);
+        files.addNamespaceDeclaration("premis", PREMIS_NAMESPACE);
+        files.addNamespaceDeclaration("id-type", ID_NAMESPACE);
+        files.addNamespaceDeclaration("xsi", XSI_NAMESPACE);
+        return files;
+    }
+
+    /**
+     * @param path  the file path
+     * @param fields    the metadata about the file
+     * @return  the file element for the given file
+     */
+    private Element fileElement(String path, Map<String, String> fields)
+    {
+        Element fileEntry = new Element("file");
+        Attribute pathAttr = new Attribute("filepath", path);
+        fileEntry.addAttribute(pathAttr);
+
+        for (String field : fields.keySet())
+        {
+            String value = fields.get(field);
+            String namespace = this.getNamespace(field);
+            if (namespace == null)
+            {
+                continue;
+            }
+            Element fieldElement = new Element(field, namespace);
+            fieldElement.appendChild(value);
+            if(field.equals("dcterms:identifier") || field.equals("identifier")) {
+                Attribute att = new Attribute("type", "id-type:DOI");
+                att.setNamespace("xsi", XSI_NAMESPACE);
+                fieldElement.addAttribute(att);
+            }
+            fileEntry.appendChild(fieldElement);
+        }
+        return fileEntry;
     }
 
     /**
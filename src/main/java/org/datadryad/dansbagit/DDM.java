@@ -4,6 +4,7 @@ import nu.xom.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -165,6 +166,46 @@ public class DDM extends XMLFile
      */
     public String toXML()
             throws IOException
+    {
+        Element ddm = this.ddmElement();
+        for (Element section : this.sections())
+        {
+            ddm.appendChild(section);
+        }
+
+        return this.xml2String(ddm);
+    }
+
+    public void writeTo(OutputStream out)
+            throws IOException
+    {
+        StreamingSerializer serializer = new StreamingSerializer(out);
+        serializer.startDocument();
+        serializer.startElement(this.ddmElement());
+        for (Element section : this.sections())
+        {
+            serializer.writeElement(section);
+        }
+        serializer.endDocument();
+    }
+
+    /**
+     * Validate the XML against the bundled DDM schema.  The bundled schema is a structural subset of the DANS DDM
+     * schema, not the DANS schema itself, so a document which passes may still be rejected by DANS.
+     *
+     * @return  the schema errors, each with the line and column it was found at; empty if the XML is valid
+     * @throws IOException
+     */
+    public List<String> validate()
+            throws IOException
+    {
+        return this.validate(SchemaValidator.DDM);
+    }
+
+    /**
+     * @return  the root element of the document, with no content
+     */
+    private Element ddmElement()
     {
         Element ddm = new Element("ddm:DDM", DDM_NAMESPACE);
         ddm.addNamespaceDeclaration("dcterms", DCTERMS_NAMESPACE);
@@ -173,22 +214,29 @@ public class DDM extends XMLFile
         ddm.addNamespaceDeclaration("ddm", DDM_NAMESPACE);
         ddm.addNamespaceDeclaration("xsi", XSI_NAMESPACE);
         ddm.addNamespaceDeclaration("id-type", ID_NAMESPACE);
+        return ddm;
+    }
 
+    /**
+     * @return  the profile and dcmi sections of the document, where they have any fields
+     */
+    private List<Element> sections()
+    {
+        List<Element> sections = new ArrayList<Element>();
         if (this.profileFields.size() > 0)
         {
             Element profile = new Element("ddm:profile", DDM_NAMESPACE);
             this.populateElement(profile, this.profileFields, DDM.profileOrder, DDM.profileDefaults);
-            ddm.appendChild(profile);
+            sections.add(profile);
         }
 
         if (this.dcmiFields.size() > 0)
         {
             Element profile = new Element("ddm:dcmiMetadata", DDM_NAMESPACE);
             this.populateElement(profile, this.dcmiFields, null, null);
-            ddm.appendChild(profile);
+            sections.add(profile);
         }
-
-        return this.xml2String(ddm);
+        return sections;
     }
 
     /**
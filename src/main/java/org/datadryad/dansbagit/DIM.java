@@ -3,8 +3,13 @@ import org.apache.log4j.Logger;
 
 import nu.xom.*;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.util.*;
 
@@ -18,9 +23,94 @@ public class DIM extends XMLFile
     private static String DIM_NAMESPACE = "http://www.dspace.org/xmlns/dspace/dim";
 
     /**
-     * A list of fields and their values
+     * Shared by every parse, as creating a factory means looking up the StAX implementation.  Factories are
+     * safe to share once configured
      */
-    private List<Map<String, String>> fields = new ArrayList<Map<String, String>>();
+    private static final XMLInputFactory INPUT_FACTORY;
+    static
+    {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * The order in which a field's attributes have always been written, which is the iteration order of the
+     * HashMap each field used to be held in.  It is worked out here rather than fixed, so that the XML stays
+     * exactly as it was on whichever JVM this runs
+     */
+    private static final List<String> ATTRIBUTE_ORDER;
+    static
+    {
+        Map<String, String> entry = new HashMap<String, String>();
+        entry.put("mdschema", "");
+        entry.put("element", "");
+        entry.put("qualifier", "");
+        entry.put("value", "");
+        ATTRIBUTE_ORDER = new ArrayList<String>(entry.keySet());
+    }
+
+    /**
+     * A single field and its value.  The schema, element and qualifier names are interned, as the same few
+     * names are repeated across every field of every DIM
+     */
+    private static class Field
+    {
+        final String schema;
+        final String element;
+        final String qualifier;
+        final String value;
+
+        Field(String schema, String element, String qualifier, String value)
+        {
+            this.schema = schema == null ? null : schema.intern();
+            this.element = element == null ? null : element.intern();
+            this.qualifier = qualifier == null ? null : qualifier.intern();
+            this.value = value;
+        }
+
+        String get(String attribute)
+        {
+            if ("mdschema".equals(attribute))
+            {
+                return this.schema;
+            }
+            else if ("element".equals(attribute))
+            {
+                return this.element;
+            }
+            else if ("qualifier".equals(attribute))
+            {
+                return this.qualifier;
+            }
+            return this.value;
+        }
+    }
+
+    /**
+     * The fields, in the order they were added
+     */
+    private List<Field> fields = new ArrayList<Field>();
+
+    /**
+     * The values of the fields, by DSpace field name (schema.element[.qualifier])
+     */
+    private Map<String, List<String>> index = new HashMap<String, List<String>>();
+
+    /**
+     * @return  a copy of this DIM which can be modified without affecting this one
+     */
+    DIM copy()
+    {
+        DIM copy = new DIM();
+        copy.fields.addAll(this.fields);
+        for (Map.Entry<String, List<String>> entry : this.index.entrySet())
+        {
+            copy.index.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+        return copy;
+    }
 
     /**
      * Add a new field with the given value
@@ -44,65 +134,31 @@ public class DIM extends XMLFile
      */
     public void addField(String schema, String element, String qualifier, String value)
     {
-        Map<String, String> entry = new HashMap<String, String>();
-        entry.put("mdschema", schema);
-        entry.put("element", element);
-        if (qualifier != null)
+        this.fields.add(new Field(schema, element, qualifier, value));
+
+        String key = this.key(schema, element, qualifier);
+        List<String> values = this.index.get(key);
+        if (values == null)
         {
-            entry.put("qualifier", qualifier);
+            values = new ArrayList<String>(1);
+            this.index.put(key, values);
         }
-        entry.put("value", value);
-        this.fields.add(entry);
+        values.add(value);
     }
 
     public Set<String> listDSpaceFields()
     {
-        Set<String> fields = new HashSet<String>();
-        for (Map<String, String> field : this.fields)
-        {
-            String dsField = "";
-            dsField += field.get("mdschema") + ".";
-            dsField += field.get("element");
-            if (field.containsKey("qualifier") && field.get("qualifier") != null)
-            {
-                dsField += "." + field.get("qualifier");
-            }
-            fields.add(dsField);
-        }
-        return fields;
+        return new HashSet<String>(this.index.keySet());
     }
 
     public List<String> getDSpaceFieldValues(String field)
     {
-        log.info("getting field values for: " + field);
-        List<String> values = new ArrayList<String>();
-        Map<String, String> bits = this.fieldBits(field);
-        for (Map<String, String> storedField : this.fields)
+        if (log.isDebugEnabled())
         {
-            boolean schema = storedField.get("mdschema").equals(bits.get("mdschema"));
-            boolean element = storedField.get("element").equals(bits.get("element"));
-            boolean qualifier = false;
-            if (storedField.containsKey("qualifier"))
-            {
-                if (bits.containsKey("qualifier"))
-                {
-                    qualifier = storedField.get("qualifier").equals(bits.get("qualifier"));
-                }
-            }
-            else
-            {
-                if (!bits.containsKey("qualifier"))
-                {
-                    qualifier = true;
-                }
-            }
-
-            if (schema && element && qualifier)
-            {
-                values.add(storedField.get("value"));
-            }
+            log.debug("getting field values for: " + field);
         }
-        return values;
+        List<String> values = this.index.get(this.key(field));
+        return values == null ? new ArrayList<String>() : new ArrayList<String>(values);
     }
 
     /**
@@ -113,85 +169,197 @@ public class DIM extends XMLFile
      */
     public String toXML()
             throws IOException
+    {
+        Element dim = this.dimElement();
+        for (Field entry : this.fields)
+        {
+            dim.appendChild(this.fieldElement(entry));
+        }
+
+        return this.xml2String(dim);
+    }
+
+    public void writeTo(OutputStream out)
+            throws IOException
+    {
+        StreamingSerializer serializer = new StreamingSerializer(out);
+        serializer.startDocument();
+        serializer.startElement(this.dimElement());
+        for (Field entry : this.fields)
+        {
+            serializer.writeElement(this.fieldElement(entry));
+        }
+        serializer.endDocument();
+    }
+
+    /**
+     * @return  the root element of the document, with no content
+     */
+    private Element dimElement()
     {
         Element dim = new Element("dim:dim", DIM_NAMESPACE);
         dim.addNamespaceDeclaration("dim", DIM_NAMESPACE);
 
         Attribute attr = new Attribute("dspaceType", "ITEM");
         dim.addAttribute(attr);
+        return dim;
+    }
 
-        for (Map<String, String> entry : this.fields)
+    /**
+     * @param entry the field
+     * @return  the dim:field element for the field
+     */
+    private Element fieldElement(Field entry)
+    {
+        Element field = new Element("dim:field", DIM_NAMESPACE);
+        for (String key : ATTRIBUTE_ORDER)
         {
-            Element field = new Element("dim:field", DIM_NAMESPACE);
-            for (String key : entry.keySet())
+            String value = entry.get(key);
+            if ("value".equals(key) && value != null)
             {
-                String value = entry.get(key);
-                if ("value".equals(key) && value != null)
-                {
-                    field.appendChild(value);
-                }
-                else if (value != null)
-                {
-                    Attribute a = new Attribute(key, value);
-                    field.addAttribute(a);
-                }
+                field.appendChild(value);
+            }
+            else if (value != null)
+            {
+                Attribute a = new Attribute(key, value);
+                field.addAttribute(a);
             }
-            dim.appendChild(field);
         }
-
-        return this.xml2String(dim);
+        return field;
     }
 
+    /**
+     * Read a DIM document.  The document is pulled through a StAX parser and the fields are created as their
+     * elements are read, without building a tree of the document first
+     *
+     * @param is    the document
+     * @return  the DIM
+     * @throws IOException
+     */
     public static DIM parse(InputStream is)
             throws IOException
     {
-        Builder parser = new Builder();
-        Document doc;
+        DIM dim = new DIM();
+        XMLStreamReader reader = null;
         try
         {
-            doc = parser.build(is);
+            reader = INPUT_FACTORY.createXMLStreamReader(is);
+
+            // the fields are the children of the root element, and a field's value is all of the text inside it
+            int depth = 0;
+            String schema = null;
+            String element = null;
+            String qualifier = null;
+            StringBuilder value = new StringBuilder();
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    depth++;
+                    if (depth == 2)
+                    {
+                        schema = attribute(reader, "mdschema");
+                        element = attribute(reader, "element");
+                        qualifier = attribute(reader, "qualifier");
+                        value.setLength(0);
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    if (depth == 2)
+                    {
+                        dim.addField(schema, element, qualifier, value.toString());
+                    }
+                    depth--;
+                }
+                else if (depth >= 2 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                        || event == XMLStreamConstants.SPACE))
+                {
+                    value.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+            }
         }
-        catch (ParsingException e)
+        catch (XMLStreamException e)
         {
             throw new RuntimeException(e);
         }
-        Element root = doc.getRootElement();
-
-        DIM dim = new DIM();
-        for (int i = 0; i < root.getChildCount(); i++)
+        finally
         {
-            Node dimNode = root.getChild(i);
-            if (dimNode instanceof Element) {
-                Element dimEntry = (Element) dimNode;
-                Attribute schemaAttr = dimEntry.getAttribute("mdschema");
-                Attribute elementAttr = dimEntry.getAttribute("element");
-                Attribute qualifierAttr = dimEntry.getAttribute("qualifier");
-
-                String schema = null;
-                String element = null;
-                String qualifier = null;
-
-                if (schemaAttr != null)
-                {
-                    schema = schemaAttr.getValue();
-                }
-                if (elementAttr != null)
+            if (reader != null)
+            {
+                try
                 {
-                    element = elementAttr.getValue();
+                    reader.close();
                 }
-                if (qualifierAttr != null)
+                catch (XMLStreamException e)
                 {
-                    qualifier = qualifierAttr.getValue();
+                    log.debug("Unable to close DIM reader: " + e.getMessage());
                 }
-
-                String value = dimEntry.getValue();
-                dim.addField(schema, element, qualifier, value);
             }
         }
 
         return dim;
     }
 
+    /**
+     * @return  the value of the un-namespaced attribute of the current element with the given name, or null
+     */
+    private static String attribute(XMLStreamReader reader, String name)
+    {
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+        {
+            String ns = reader.getAttributeNamespace(i);
+            if ((ns == null || ns.length() == 0) && name.equals(reader.getAttributeLocalName(i)))
+            {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The index key of a stored field.  Fields without a qualifier have none, so that they are only found by
+     * names without a qualifier, as fieldBits would split them
+     */
+    private String key(String schema, String element, String qualifier)
+    {
+        String key = schema + "." + element;
+        if (qualifier != null)
+        {
+            key += "." + qualifier;
+        }
+        return key;
+    }
+
+    /**
+     * The index key of a DSpace field name, as it would be split by fieldBits
+     */
+    private String key(String field)
+    {
+        // split drops trailing empty names
+        int end = field.length();
+        while (end > 0 && field.charAt(end - 1) == '.')
+        {
+            end--;
+        }
+        field = field.substring(0, end);
+
+        int first = field.indexOf('.');
+        if (first == -1)
+        {
+            return this.key(null, null, null);
+        }
+        int second = field.indexOf('.', first + 1);
+        if (second == -1)
+        {
+            return this.key(field.substring(0, first), field.substring(first + 1), null);
+        }
+        int third = field.indexOf('.', second + 1);
+        String qualifier = field.substring(second + 1, third == -1 ? field.length() : third);
+        return this.key(field.substring(0, first), field.substring(first + 1, second), third == -1 ? qualifier : null);
+    }
+
     public Map<String, String> fieldBits(String field)
     {
         String[] bits = field.split("\\.");
@@ -0,0 +1,108 @@
+package org.datadryad.dansbagit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Report of the outcome of extracting a bag to a directory
+ */
+public class ExtractionReport
+{
+    private List<ValidationReport.Result> failures = Collections.synchronizedList(new ArrayList<ValidationReport.Result>());
+    private int files = 0;
+    private long bytes = 0;
+    private long elapsed = 0;
+    private volatile boolean interrupted = false;
+
+    public void addFailure(ValidationReport.Result failure)
+    {
+        this.failures.add(failure);
+    }
+
+    /**
+     * @return  true if every file was extracted (and, if requested, verified) successfully
+     */
+    public boolean isSuccessful()
+    {
+        return this.failures.isEmpty() && !this.interrupted;
+    }
+
+    /**
+     * @return  true if the extraction was interrupted before every file had been extracted
+     */
+    public boolean isInterrupted()
+    {
+        return this.interrupted;
+    }
+
+    public void setInterrupted(boolean interrupted)
+    {
+        this.interrupted = interrupted;
+    }
+
+    /**
+     * @return  the files which could not be extracted, or whose content did not match the manifests; none of
+     *          them are left in the target directory
+     */
+    public List<ValidationReport.Result> getFailures()
+    {
+        synchronized (this.failures)
+        {
+            return new ArrayList<ValidationReport.Result>(this.failures);
+        }
+    }
+
+    /**
+     * @return  the number of files written
+     */
+    public synchronized int getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * @return  the number of bytes written
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized void addFile(long bytes)
+    {
+        this.files++;
+        this.bytes += bytes;
+    }
+
+    /**
+     * @return  the time the extraction took, in milliseconds
+     */
+    public long getElapsed()
+    {
+        return elapsed;
+    }
+
+    public void setElapsed(long elapsed)
+    {
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * @return  the rate at which the bag was extracted, in bytes per second
+     */
+    public synchronized double getThroughput()
+    {
+        if (this.elapsed <= 0)
+        {
+            return 0;
+        }
+        return this.bytes * 1000.0 / this.elapsed;
+    }
+
+    public String toString()
+    {
+        return this.getFiles() + " files, " + Files.humanReadableSize(this.getBytes()) + " in " + this.elapsed + "ms (" +
+                Files.humanReadableSize((long) this.getThroughput()) + "/s)" + (this.interrupted ? ", interrupted" : "");
+    }
+}
@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
 
 /**
  * Utility library containing operations that we might want to do on files and their bits
@@ -23,19 +24,65 @@ public class Files
         return inputName;
     }
 
+    /**
+     * Describe a number of bytes in a human readable way, e.g. "1.5 GB"
+     *
+     * @param bytes the number of bytes
+     * @return  the human readable size
+     */
+    public static String humanReadableSize(long bytes) {
+        String[] units = {"KB", "MB", "GB", "TB", "PB"};
+        if (bytes < 1024)
+        {
+            return bytes + " B";
+        }
+        double size = bytes;
+        int unit = -1;
+        while (size >= 1024 && unit < units.length - 1)
+        {
+            size = size / 1024;
+            unit++;
+        }
+        return String.format(Locale.ENGLISH, "%.1f %s", size, units[unit]);
+    }
+
     /**
      * Get the hex string out of the given message digest
      * @param md    message digest object
      * @return  hex string
      */
     public static String digestToString(MessageDigest md) {
-        byte[] b = md.digest();
-        String result = "";
+        return Files.toHex(md.digest());
+    }
+
+    /**
+     * Get the hex string for the given raw bytes
+     *
+     * @param b bytes (for example a digest)
+     * @return  hex string
+     */
+    public static String toHex(byte[] b) {
+        StringBuilder result = new StringBuilder(b.length * 2);
         for (int i=0; i < b.length; i++)
         {
-            result += Integer.toString( ( b[i] & 0xff ) + 0x100, 16).substring( 1 );
+            result.append(Integer.toString( ( b[i] & 0xff ) + 0x100, 16).substring( 1 ));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Get the raw bytes represented by the given hex string
+     *
+     * @param hex   hex string (for example a checksum from a manifest)
+     * @return  the bytes
+     */
+    public static byte[] fromHex(String hex) {
+        byte[] b = new byte[hex.length() / 2];
+        for (int i = 0; i < b.length; i++)
+        {
+            b[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
         }
-        return result;
+        return b;
     }
 
     /**
@@ -0,0 +1,48 @@
+package org.datadryad.dansbagit;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the content read from a bag does not match the checksum recorded for it in the manifests
+ */
+public class FixityException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private String path;
+    private String algorithm;
+    private String expected;
+    private String actual;
+
+    public FixityException(String path, String algorithm, String expected, String actual)
+    {
+        super(algorithm + " fixity check failed for " + path + ": expected " + expected + " but was " + actual);
+        this.path = path;
+        this.algorithm = algorithm;
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    /**
+     * @return  the payload path of the file which failed the check
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    public String getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    public String getExpected()
+    {
+        return expected;
+    }
+
+    public String getActual()
+    {
+        return actual;
+    }
+}
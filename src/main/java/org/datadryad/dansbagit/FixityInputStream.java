@@ -0,0 +1,144 @@
+package org.datadryad.dansbagit;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * InputStream which calculates checksums of the content as it is read, and compares them with the
+ * expected values when the end of the stream is reached.  If any of them do not match, the read which
+ * reaches the end of the stream throws a FixityException instead of returning EOF.
+ */
+public class FixityInputStream extends FilterInputStream
+{
+    private String path;
+    private Map<String, String> expected;
+    private Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+    private boolean checked = false;
+
+    /**
+     * Create the input stream around the given stream
+     *
+     * @param in    the stream to read from
+     * @param path  the path of the file being read, for error reporting
+     * @param expected  map of digest algorithm (e.g. "MD5", "SHA-1") to the expected hex checksum
+     */
+    public FixityInputStream(InputStream in, String path, Map<String, String> expected)
+    {
+        super(in);
+        this.path = path;
+        this.expected = expected;
+        try
+        {
+            for (String algorithm : expected.keySet())
+            {
+                this.digests.put(algorithm, MessageDigest.getInstance(algorithm));
+            }
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        int b = super.read();
+        if (b == -1)
+        {
+            this.check();
+        }
+        else
+        {
+            for (MessageDigest md : this.digests.values())
+            {
+                md.update((byte) b);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+            throws IOException
+    {
+        int count = super.read(b, off, len);
+        if (count == -1)
+        {
+            this.check();
+        }
+        else
+        {
+            for (MessageDigest md : this.digests.values())
+            {
+                md.update(b, off, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Skipped bytes still have to be read, so that they can be included in the checksums
+     */
+    @Override
+    public long skip(long n)
+            throws IOException
+    {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n)
+        {
+            int count = this.read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (count == -1)
+            {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit)
+    {
+        // not supported, as we cannot rewind the digests
+    }
+
+    @Override
+    public void reset()
+            throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void check()
+            throws FixityException
+    {
+        if (this.checked)
+        {
+            return;
+        }
+        this.checked = true;
+        for (String algorithm : this.digests.keySet())
+        {
+            String actual = Files.digestToString(this.digests.get(algorithm));
+            String expect = this.expected.get(algorithm);
+            if (!actual.equalsIgnoreCase(expect))
+            {
+                throw new FixityException(this.path, algorithm, expect, actual);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.datadryad.dansbagit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Holds a bag's small bitstreams in memory instead of staging each in a file of its own, so that bags of
+ * many small files are not dominated by creating files and directories.
+ *
+ * The bitstreams are appended to one pooled buffer, and found again by the offset recorded against their
+ * reference.  A bitstream is only taken if it is no larger than the per-file limit and the buffer has room
+ * for it within the total limit; anything else is staged on disk as usual.  The buffer is a SpillableBuffer
+ * with its own spill threshold (the bag's), so once it holds more than that it moves to a single memory-mapped
+ * file in the working directory, however high the total limit is set.
+ */
+class MemoryStaging
+{
+    private SpillableBuffer buffer;
+    private long maxFileBytes;
+    private long maxTotalBytes;
+    private long[] offsets = new long[256];
+    private int count = 0;
+
+    /**
+     * @param spillDir  the directory for the buffer to spill to, should it need to
+     * @param maxFileBytes  the largest bitstream to hold
+     * @param maxTotalBytes the most to hold altogether
+     * @param spillThreshold    the most to hold on the heap before the buffer spills to disk
+     */
+    public MemoryStaging(File spillDir, long maxFileBytes, long maxTotalBytes, long spillThreshold)
+    {
+        this.buffer = new SpillableBuffer(spillDir, "staged", spillThreshold);
+        this.maxFileBytes = maxFileBytes;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Change the spill threshold.  If the buffer already holds more it is spilled immediately
+     *
+     * @param spillThreshold    the most to hold on the heap
+     * @throws IOException
+     */
+    public void setSpillThreshold(long spillThreshold)
+            throws IOException
+    {
+        this.buffer.setThreshold(spillThreshold);
+    }
+
+    /**
+     * @param size  the size of a bitstream, or 0 if it is not known
+     * @return  true if a bitstream of the size could be held
+     */
+    public boolean admits(long size)
+    {
+        return size <= this.maxFileBytes && this.buffer.length() + size <= this.maxTotalBytes;
+    }
+
+    /**
+     * Read the start of a bitstream, up to just beyond the per-file limit, to find out whether it can be held
+     *
+     * @param in    the bitstream
+     * @return  the bytes read; all of the bitstream if it is within the per-file limit
+     * @throws IOException
+     */
+    public byte[] readHead(InputStream in)
+            throws IOException
+    {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        long limit = this.maxFileBytes + 1;
+        int n;
+        while (head.size() < limit && (n = in.read(chunk, 0, (int) Math.min(chunk.length, limit - head.size()))) != -1)
+        {
+            head.write(chunk, 0, n);
+        }
+        return head.toByteArray();
+    }
+
+    /**
+     * Hold a bitstream
+     *
+     * @param index the index of the bitstream's reference
+     * @param content   the bitstream
+     * @throws IOException
+     */
+    public void put(int index, byte[] content)
+            throws IOException
+    {
+        long offset = this.buffer.append(content, 0, content.length);
+        if (index >= this.offsets.length)
+        {
+            long[] bigger = new long[Math.max(this.offsets.length * 2, index + 1)];
+            System.arraycopy(this.offsets, 0, bigger, 0, this.offsets.length);
+            this.offsets = bigger;
+        }
+        this.offsets[index] = offset;
+        this.count++;
+    }
+
+    /**
+     * Read part of a bitstream which is held
+     *
+     * @param index the index of the bitstream's reference
+     * @param offset    the offset within the bitstream to start from
+     * @param length    the number of bytes to read
+     * @return  the bytes
+     */
+    public InputStream open(int index, final long offset, final long length)
+    {
+        final long start = this.offsets[index] + offset;
+        return new InputStream()
+        {
+            private long pos = 0;
+
+            public int read()
+                    throws IOException
+            {
+                byte[] b = new byte[1];
+                return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len)
+                    throws IOException
+            {
+                if (this.pos >= length)
+                {
+                    return -1;
+                }
+                int n = (int) Math.min(len, length - this.pos);
+                buffer.read(start + this.pos, b, off, n);
+                this.pos += n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * @return  the number of bitstreams held
+     */
+    public int size()
+    {
+        return this.count;
+    }
+
+    /**
+     * @return  the total size of the bitstreams held
+     */
+    public long getBytes()
+    {
+        return this.buffer.length();
+    }
+
+    /**
+     * Release the buffer
+     */
+    public void close()
+    {
+        this.buffer.close();
+    }
+}
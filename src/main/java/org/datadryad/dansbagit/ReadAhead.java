@@ -0,0 +1,164 @@
+package org.datadryad.dansbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads a sequence of files, with the start of the next few read in the background while the current one is
+ * consumed.  When the files are spread over several volumes this keeps all of them busy, rather than each
+ * waiting its turn.
+ */
+class ReadAhead
+{
+    private Iterator<File> files;
+    private int prefetchBytes;
+    private ExecutorService executor;
+    private LinkedList<File> pendingFiles = new LinkedList<File>();
+    private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    /**
+     * @param files the files, in the order they will be read; null stands for something other than a file,
+     *              which is passed over
+     * @param depth the number of files to read ahead
+     * @param prefetchBytes the number of bytes to read ahead from each file
+     */
+    public ReadAhead(Iterator<File> files, int depth, int prefetchBytes)
+    {
+        this.files = files;
+        this.prefetchBytes = prefetchBytes;
+        this.executor = Executors.newFixedThreadPool(depth, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "dans-bagit-read-ahead");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < depth; i++)
+        {
+            this.fill();
+        }
+    }
+
+    /**
+     * Open the next file
+     *
+     * @return  the content of the file, which the caller must close, or null if the next item is not a file
+     * @throws IOException
+     */
+    public InputStream next()
+            throws IOException
+    {
+        File file = this.pendingFiles.removeFirst();
+        Future<byte[]> future = this.pending.removeFirst();
+        this.fill();
+        if (file == null)
+        {
+            return null;
+        }
+
+        byte[] start;
+        try
+        {
+            start = future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + file.getAbsolutePath());
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to read " + file.getAbsolutePath() + ": " + e.getCause());
+        }
+
+        if (start.length < this.prefetchBytes)
+        {
+            // the whole file has been read
+            return new ByteArrayInputStream(start);
+        }
+        FileInputStream rest = new FileInputStream(file);
+        long skipped = 0;
+        while (skipped < start.length)
+        {
+            long n = rest.skip(start.length - skipped);
+            if (n <= 0)
+            {
+                rest.close();
+                throw new IOException(file.getAbsolutePath() + " was shorter than when it was read ahead");
+            }
+            skipped += n;
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(start), rest);
+    }
+
+    /**
+     * Stop reading ahead
+     */
+    public void close()
+    {
+        this.executor.shutdownNow();
+    }
+
+    private void fill()
+    {
+        if (!this.files.hasNext())
+        {
+            return;
+        }
+        final File file = this.files.next();
+        this.pendingFiles.add(file);
+        if (file == null)
+        {
+            this.pending.add(null);
+            return;
+        }
+        this.pending.add(this.executor.submit(new Callable<byte[]>()
+        {
+            public byte[] call()
+                    throws IOException
+            {
+                FileInputStream in = new FileInputStream(file);
+                try
+                {
+                    byte[] buffer = new byte[(int) Math.min(prefetchBytes, file.length() + 1)];
+                    int read = 0;
+                    int n;
+                    while (read < buffer.length && (n = in.read(buffer, read, buffer.length - read)) != -1)
+                    {
+                        read += n;
+                    }
+                    if (read == buffer.length)
+                    {
+                        return buffer;
+                    }
+                    byte[] start = new byte[read];
+                    System.arraycopy(buffer, 0, start, 0, read);
+                    return start;
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        }));
+    }
+}
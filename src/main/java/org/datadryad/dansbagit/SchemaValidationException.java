@@ -0,0 +1,38 @@
+package org.datadryad.dansbagit;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Thrown when an XML document written into a bag does not conform to its schema
+ */
+public class SchemaValidationException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private String path;
+    private List<String> errors;
+
+    public SchemaValidationException(String path, List<String> errors)
+    {
+        super(path + " does not conform to its schema: " + errors);
+        this.path = path;
+        this.errors = errors;
+    }
+
+    /**
+     * @return  the path of the document in the bag
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * @return  the schema errors, each with the line and column it was found at
+     */
+    public List<String> getErrors()
+    {
+        return errors;
+    }
+}
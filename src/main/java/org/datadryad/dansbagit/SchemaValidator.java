@@ -0,0 +1,283 @@
+package org.datadryad.dansbagit;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.log4j.Logger;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Validates documents against one of the schemas bundled with the library (in the schemas package next to
+ * this class), so that validation works offline.
+ *
+ * Each schema is compiled once, the first time it is used, and shared by the whole process.  Validators are
+ * not thread-safe, so each schema keeps a pool of them to lend out.  A document can be validated from a stream,
+ * or while it is being written: see {@link #start()}.
+ */
+class SchemaValidator
+{
+    private static Logger log = Logger.getLogger(SchemaValidator.class);
+
+    /** The structural subset of the DANS schema of dataset.xml */
+    public static final String DDM = "ddm-structure.xsd";
+
+    /** The structural subset of the DANS schema of files.xml */
+    public static final String FILES = "files-structure.xsd";
+
+    private static final Map<String, SchemaValidator> validators = new HashMap<String, SchemaValidator>();
+
+    /** Runs the validations of documents which are being written */
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "dans-bagit-schema-validation");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private String name;
+    private Schema schema;
+    private LinkedList<Validator> pool = new LinkedList<Validator>();
+
+    private SchemaValidator(String name, Schema schema)
+    {
+        this.name = name;
+        this.schema = schema;
+    }
+
+    /**
+     * Get the validator for one of the bundled schemas, compiling the schema if this is the first time it is used
+     *
+     * @param name  the file name of the schema, e.g. {@link #DDM}
+     * @return  the validator
+     * @throws IOException  if the schema cannot be read or compiled
+     */
+    public static synchronized SchemaValidator get(String name)
+            throws IOException
+    {
+        SchemaValidator validator = validators.get(name);
+        if (validator == null)
+        {
+            URL url = SchemaValidator.class.getResource("schemas/" + name);
+            if (url == null)
+            {
+                throw new FileNotFoundException("No bundled schema " + name);
+            }
+            long start = System.currentTimeMillis();
+            InputStream is = url.openStream();
+            try
+            {
+                // the system id lets the schema's imports be found next to it
+                SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                Schema schema = factory.newSchema(new StreamSource(is, url.toExternalForm()));
+                validator = new SchemaValidator(name, schema);
+            }
+            catch (SAXException e)
+            {
+                throw new IOException("Unable to compile schema " + name + ": " + e.getMessage());
+            }
+            finally
+            {
+                is.close();
+            }
+            log.debug("Compiled schema " + name + " in " + (System.currentTimeMillis() - start) + "ms");
+            validators.put(name, validator);
+        }
+        return validator;
+    }
+
+    /**
+     * Validate a document
+     *
+     * @param in    the document
+     * @return  the errors found, each with the line and column it was found at; empty if the document is valid
+     * @throws IOException
+     */
+    public List<String> validate(InputStream in)
+            throws IOException
+    {
+        final List<String> errors = new ArrayList<String>();
+        Validator validator = this.borrow();
+        try
+        {
+            validator.setErrorHandler(new ErrorHandler()
+            {
+                public void warning(SAXParseException e) {}
+
+                public void error(SAXParseException e)
+                {
+                    errors.add(describe(e));
+                }
+
+                public void fatalError(SAXParseException e)
+                        throws SAXException
+                {
+                    throw e;
+                }
+            });
+            validator.validate(new StreamSource(in));
+        }
+        catch (SAXParseException e)
+        {
+            errors.add(describe(e));
+        }
+        catch (SAXException e)
+        {
+            errors.add(e.getMessage());
+        }
+        finally
+        {
+            this.giveBack(validator);
+        }
+        return errors;
+    }
+
+    /**
+     * Start validating a document which is about to be written.  Whatever is written to the session's sink is
+     * validated on another thread as it arrives, so the validation is finished shortly after the document is
+     *
+     * @return  the validation session
+     * @throws IOException
+     */
+    public Session start()
+            throws IOException
+    {
+        final PipedInputStream in = new PipedInputStream(65536);
+        PipedOutputStream sink = new PipedOutputStream(in);
+        Future<List<String>> result = executor.submit(new Callable<List<String>>()
+        {
+            public List<String> call()
+                    throws Exception
+            {
+                try
+                {
+                    // the parser closes its input when it is done, which would stop the pipe from being drained
+                    return validate(new CloseShieldInputStream(in));
+                }
+                finally
+                {
+                    // a document which is not even well-formed stops the validator early, but the writer
+                    // must still be able to finish writing it
+                    byte[] buf = new byte[8192];
+                    while (in.read(buf) != -1)
+                    {
+                        // discard
+                    }
+                    in.close();
+                }
+            }
+        });
+        return new Session(sink, result);
+    }
+
+    /**
+     * A validation which is running while its document is being written
+     */
+    public class Session
+    {
+        private OutputStream sink;
+        private Future<List<String>> result;
+
+        private Session(OutputStream sink, Future<List<String>> result)
+        {
+            this.sink = sink;
+            this.result = result;
+        }
+
+        /**
+         * @return  the stream to write the document to
+         */
+        public OutputStream getSink()
+        {
+            return this.sink;
+        }
+
+        /**
+         * Mark the end of the document and wait for the validation to complete
+         *
+         * @return  the errors found, each with the line and column it was found at; empty if the document is valid
+         * @throws IOException
+         */
+        public List<String> finish()
+                throws IOException
+        {
+            this.sink.close();
+            try
+            {
+                return this.result.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while validating against " + name);
+            }
+            catch (ExecutionException e)
+            {
+                throw new IOException("Unable to validate against " + name + ": " + e.getCause());
+            }
+        }
+
+        /**
+         * Abandon the validation, for when the document could not be written.  Never throws, so that it can be
+         * called from a finally block without masking the original failure.
+         */
+        public void cancel()
+        {
+            try
+            {
+                this.sink.close();
+            }
+            catch (IOException e)
+            {
+                log.debug("Unable to close the validation stream for " + name, e);
+            }
+            this.result.cancel(true);
+        }
+    }
+
+    private synchronized Validator borrow()
+    {
+        if (this.pool.isEmpty())
+        {
+            return this.schema.newValidator();
+        }
+        return this.pool.removeFirst();
+    }
+
+    private synchronized void giveBack(Validator validator)
+    {
+        validator.reset();
+        this.pool.addFirst(validator);
+    }
+
+    private static String describe(SAXParseException e)
+    {
+        return e.getLineNumber() + ":" + e.getColumnNumber() + ": " + e.getMessage();
+    }
+}
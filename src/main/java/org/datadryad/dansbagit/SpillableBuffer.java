@@ -0,0 +1,323 @@
+package org.datadryad.dansbagit;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable block of bytes which is held on the heap until it reaches a size threshold, at which
+ * point its contents are moved into a memory-mapped file and all further growth happens on disk.
+ *
+ * Writes must come from a single thread, but absolute reads may be made concurrently once the
+ * buffer has been fully populated.
+ */
+class SpillableBuffer
+{
+    private static Logger log = Logger.getLogger(SpillableBuffer.class);
+
+    /** Size of each mapped window onto the spill file */
+    private static final int SEGMENT_SIZE = 1 << 26;
+
+    /** Largest heap array we are prepared to grow to before spilling regardless of threshold */
+    private static final long MAX_HEAP = 1 << 30;
+
+    private File spillDir;
+    private String prefix;
+    private long threshold;
+
+    private byte[] heap = new byte[1024];
+    private long length = 0;
+
+    private File spillFile = null;
+    private RandomAccessFile raf = null;
+    private FileChannel channel = null;
+    private List<MappedByteBuffer> segments = null;
+
+    /**
+     * Create a new buffer
+     *
+     * @param spillDir  directory in which to create the spill file, should one be needed
+     * @param prefix    prefix for the spill file name
+     * @param threshold number of bytes which may be held on the heap before spilling
+     */
+    public SpillableBuffer(File spillDir, String prefix, long threshold)
+    {
+        this.spillDir = spillDir;
+        this.prefix = prefix;
+        this.threshold = Math.min(threshold, MAX_HEAP);
+    }
+
+    /**
+     * Create a read-only buffer over a region of an existing file, such as one previously written with writeTo
+     *
+     * @param file  the file
+     * @param offset    the offset of the region in the file
+     * @param length    the length of the region
+     * @return  a buffer which maps the region; it cannot be written to
+     * @throws IOException
+     */
+    public static SpillableBuffer map(File file, long offset, long length)
+            throws IOException
+    {
+        SpillableBuffer buffer = new SpillableBuffer(file.getParentFile(), "mapped", 0);
+        buffer.heap = null;
+        buffer.length = length;
+        buffer.raf = new RandomAccessFile(file, "r");
+        buffer.channel = buffer.raf.getChannel();
+        buffer.segments = new ArrayList<MappedByteBuffer>();
+        for (long pos = 0; pos < length; pos += SEGMENT_SIZE)
+        {
+            buffer.segments.add(buffer.channel.map(FileChannel.MapMode.READ_ONLY, offset + pos, Math.min(SEGMENT_SIZE, length - pos)));
+        }
+        return buffer;
+    }
+
+    /**
+     * Change the spill threshold.  If the buffer is already larger than the new threshold it is spilled immediately
+     *
+     * @param threshold number of bytes which may be held on the heap
+     * @throws IOException
+     */
+    public void setThreshold(long threshold)
+            throws IOException
+    {
+        this.threshold = Math.min(threshold, MAX_HEAP);
+        if (!this.isSpilled() && this.length > this.threshold)
+        {
+            this.spill();
+        }
+    }
+
+    /**
+     * @return  true if the contents of the buffer now live in a memory-mapped file
+     */
+    public boolean isSpilled()
+    {
+        return this.segments != null;
+    }
+
+    /**
+     * @return  the number of bytes written to the buffer
+     */
+    public long length()
+    {
+        return this.length;
+    }
+
+    /**
+     * Add the given bytes to the end of the buffer
+     *
+     * @return  the offset at which the bytes were written
+     * @throws IOException
+     */
+    public long append(byte[] b, int off, int len)
+            throws IOException
+    {
+        long pos = this.length;
+        this.write(pos, b, off, len);
+        return pos;
+    }
+
+    /**
+     * Write bytes at an absolute position, growing the buffer if necessary
+     *
+     * @throws IOException
+     */
+    public void write(long pos, byte[] b, int off, int len)
+            throws IOException
+    {
+        long end = pos + len;
+        this.ensureCapacity(end);
+        if (!this.isSpilled())
+        {
+            System.arraycopy(b, off, this.heap, (int) pos, len);
+        }
+        else
+        {
+            while (len > 0)
+            {
+                int segOff = (int) (pos % SEGMENT_SIZE);
+                int n = Math.min(len, SEGMENT_SIZE - segOff);
+                ByteBuffer bb = this.segments.get((int) (pos / SEGMENT_SIZE)).duplicate();
+                bb.position(segOff);
+                bb.put(b, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+        if (end > this.length)
+        {
+            this.length = end;
+        }
+    }
+
+    /**
+     * Read bytes from an absolute position
+     */
+    public void read(long pos, byte[] b, int off, int len)
+    {
+        if (!this.isSpilled())
+        {
+            System.arraycopy(this.heap, (int) pos, b, off, len);
+            return;
+        }
+        while (len > 0)
+        {
+            int segOff = (int) (pos % SEGMENT_SIZE);
+            int n = Math.min(len, SEGMENT_SIZE - segOff);
+            ByteBuffer bb = this.segments.get((int) (pos / SEGMENT_SIZE)).duplicate();
+            bb.position(segOff);
+            bb.get(b, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void writeInt(long pos, int v)
+            throws IOException
+    {
+        byte[] b = new byte[4];
+        ByteBuffer.wrap(b).putInt(v);
+        this.write(pos, b, 0, 4);
+    }
+
+    public int readInt(long pos)
+    {
+        byte[] b = new byte[4];
+        this.read(pos, b, 0, 4);
+        return ByteBuffer.wrap(b).getInt();
+    }
+
+    public void writeLong(long pos, long v)
+            throws IOException
+    {
+        byte[] b = new byte[8];
+        ByteBuffer.wrap(b).putLong(v);
+        this.write(pos, b, 0, 8);
+    }
+
+    public long readLong(long pos)
+    {
+        byte[] b = new byte[8];
+        this.read(pos, b, 0, 8);
+        return ByteBuffer.wrap(b).getLong();
+    }
+
+    public void writeByte(long pos, byte v)
+            throws IOException
+    {
+        this.write(pos, new byte[] { v }, 0, 1);
+    }
+
+    public byte readByte(long pos)
+    {
+        byte[] b = new byte[1];
+        this.read(pos, b, 0, 1);
+        return b[0];
+    }
+
+    /**
+     * Write the whole content of the buffer to the given stream
+     *
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out)
+            throws IOException
+    {
+        byte[] chunk = new byte[65536];
+        for (long pos = 0; pos < this.length; pos += chunk.length)
+        {
+            int n = (int) Math.min(chunk.length, this.length - pos);
+            this.read(pos, chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Release the heap or the mapped file behind this buffer.  The buffer may not be used afterwards.
+     */
+    public void close()
+    {
+        this.heap = null;
+        this.segments = null;
+        if (this.raf != null)
+        {
+            try
+            {
+                this.raf.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to close spill file " + this.spillFile.getAbsolutePath(), e);
+            }
+            this.raf = null;
+            this.channel = null;
+        }
+        if (this.spillFile != null)
+        {
+            this.spillFile.delete();
+            this.spillFile = null;
+        }
+    }
+
+    private void ensureCapacity(long required)
+            throws IOException
+    {
+        if (!this.isSpilled())
+        {
+            if (required <= this.heap.length)
+            {
+                return;
+            }
+            if (required > this.threshold)
+            {
+                this.spill();
+            }
+            else
+            {
+                long newSize = Math.max(required, Math.min((long) this.heap.length * 2, this.threshold));
+                byte[] bigger = new byte[(int) newSize];
+                System.arraycopy(this.heap, 0, bigger, 0, (int) this.length);
+                this.heap = bigger;
+                return;
+            }
+        }
+
+        while ((long) this.segments.size() * SEGMENT_SIZE < required)
+        {
+            long offset = (long) this.segments.size() * SEGMENT_SIZE;
+            this.segments.add(this.channel.map(FileChannel.MapMode.READ_WRITE, offset, SEGMENT_SIZE));
+        }
+    }
+
+    private void spill()
+            throws IOException
+    {
+        if (!this.spillDir.exists())
+        {
+            this.spillDir.mkdirs();
+        }
+        this.spillFile = File.createTempFile(this.prefix, ".spill", this.spillDir);
+        log.info("Spilling " + this.length + " bytes to memory-mapped file " + this.spillFile.getAbsolutePath());
+
+        this.raf = new RandomAccessFile(this.spillFile, "rw");
+        this.channel = this.raf.getChannel();
+        this.segments = new ArrayList<MappedByteBuffer>();
+
+        byte[] old = this.heap;
+        long oldLength = this.length;
+        this.heap = null;
+        this.length = 0;
+        this.write(0, old, 0, (int) oldLength);
+    }
+}
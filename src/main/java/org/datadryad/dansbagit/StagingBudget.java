@@ -0,0 +1,26 @@
+package org.datadryad.dansbagit;
+
+import java.io.IOException;
+
+/**
+ * Accounts for the bytes a bag stages in its working directory, so that several bags being built at once
+ * can share a limit on staging space.  See BagBatch
+ */
+interface StagingBudget
+{
+    /**
+     * Account for bytes about to be staged, waiting until there is room for them if necessary.  Bitstreams whose
+     * size is not known in advance are accounted for a chunk at a time as they are copied
+     *
+     * @param bytes the number of bytes
+     * @throws IOException  if interrupted while waiting
+     */
+    void acquire(long bytes) throws IOException;
+
+    /**
+     * Give back bytes which were acquired but have not been staged after all
+     *
+     * @param bytes the number of bytes
+     */
+    void release(long bytes);
+}
@@ -0,0 +1,418 @@
+package org.datadryad.dansbagit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides where a bag's bitstreams are staged, spreading them over the bag's staging roots and keeping a given
+ * amount of space free on the volumes involved.
+ *
+ * The first staging root is the working directory; any others are directories (usually on other volumes) in
+ * which the bag stages in a directory named after its working directory.  Each bitstream goes to the next root
+ * in turn, or to the root with the most free space, depending on the policy, passing over any root which does
+ * not have room for it above the watermark.  When none does, it goes to the overflow directory if one has been
+ * given and it has room, and otherwise staging waits for space to be freed.  The space is checked before each
+ * bitstream, against its size if that is known, and again at intervals while it is copied, so that a bitstream
+ * whose size was not known can move to another root part way through rather than fill the volume.
+ *
+ * Roots are identified by their position, which the bag records with each bitstream; the overflow directory
+ * is always {@link #OVERFLOW}.
+ */
+class StagingSpace
+{
+    private static Logger log = Logger.getLogger(StagingSpace.class);
+
+    /** How often to check the free space while copying a bitstream */
+    static final long CHECK_INTERVAL = 16 * 1024 * 1024;
+
+    /** How often to look again while waiting for space */
+    static final long POLL_INTERVAL = 500;
+
+    /** The position of the overflow directory */
+    static final int OVERFLOW = 255;
+
+    /** Stands for a bitstream held in memory rather than in any root, see MemoryStaging */
+    static final int MEMORY = 254;
+
+    private File workingDir;
+    private List<File> roots = new ArrayList<File>();
+    private DANSBag.StagingPolicy policy = DANSBag.StagingPolicy.ROUND_ROBIN;
+    private int next = 0;
+    private long watermark = 0;
+    private File overflowDir = null;
+    private long overflowWatermark = 0;
+    private long maxWait = -1;
+
+    private long waitMillis = 0;
+    private long spilled = 0;
+
+    /**
+     * @param workingDir    the bag's working directory
+     */
+    public StagingSpace(File workingDir)
+    {
+        this.workingDir = workingDir;
+        this.roots.add(workingDir);
+    }
+
+    /**
+     * @param dirs  the directories to stage in as well as the working directory; the bag's files go in a directory
+     *              within each named after the working directory
+     * @param policy    how to choose between the roots
+     */
+    public synchronized void setRoots(List<File> dirs, DANSBag.StagingPolicy policy)
+    {
+        if (dirs.size() + 1 >= MEMORY)
+        {
+            throw new IllegalArgumentException("A bag can stage in at most " + (MEMORY - 1) + " directories");
+        }
+        this.roots = new ArrayList<File>();
+        this.roots.add(this.workingDir);
+        for (File dir : dirs)
+        {
+            this.roots.add(new File(dir, this.workingDir.getName()));
+        }
+        this.policy = policy;
+        this.next = 0;
+    }
+
+    public synchronized void setWatermark(long watermark)
+    {
+        this.watermark = watermark;
+    }
+
+    /**
+     * @param overflowDir   the directory to stage in when the staging roots are short of space; the bag's files
+     *                      go in a directory within it named after the working directory
+     * @param watermark the space to keep free on the overflow directory's volume
+     */
+    public synchronized void setOverflowDir(File overflowDir, long watermark)
+    {
+        this.overflowDir = overflowDir == null ? null : new File(overflowDir, this.workingDir.getName());
+        this.overflowWatermark = watermark;
+    }
+
+    /**
+     * @param maxWait   how long to wait for space before giving up, in milliseconds, or a negative number to wait
+     *                  for as long as it takes
+     */
+    public synchronized void setMaxWait(long maxWait)
+    {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @param root  the position of a root, or {@link #OVERFLOW}
+     * @return  the directory the bag stages in at that root, or null if there is none
+     */
+    public synchronized File getRoot(int root)
+    {
+        if (root == OVERFLOW)
+        {
+            return this.overflowDir;
+        }
+        return root < this.roots.size() ? this.roots.get(root) : null;
+    }
+
+    /**
+     * @return  the directories the bag stages in other than the working directory, including the overflow directory
+     */
+    public synchronized List<File> getOtherDirs()
+    {
+        List<File> dirs = new ArrayList<File>(this.roots.subList(1, this.roots.size()));
+        if (this.overflowDir != null)
+        {
+            dirs.add(this.overflowDir);
+        }
+        return dirs;
+    }
+
+    /**
+     * @return  the number of staging roots, including the working directory but not the overflow directory
+     */
+    public synchronized int getRootCount()
+    {
+        return this.roots.size();
+    }
+
+    /**
+     * @return  the total time spent waiting for space, in milliseconds
+     */
+    public synchronized long getWaitMillis()
+    {
+        return this.waitMillis;
+    }
+
+    /**
+     * @return  the number of bitstreams staged in the overflow directory
+     */
+    public synchronized long getSpilled()
+    {
+        return this.spilled;
+    }
+
+    /**
+     * Choose where to stage a bitstream, waiting for space if there is none
+     *
+     * @param payloadPath   the path of the bitstream within the bag
+     * @param size  the size of the bitstream, or 0 if it is not known
+     * @return  the position of the root to stage the bitstream in, in which the bitstream's directory exists
+     * @throws IOException  if there is still no space once the maximum wait is over
+     */
+    public int locate(String payloadPath, long size)
+            throws IOException
+    {
+        int root = this.wait(payloadPath, size, -1);
+        if (root == OVERFLOW)
+        {
+            synchronized (this)
+            {
+                this.spilled++;
+            }
+        }
+        this.file(root, payloadPath).getParentFile().mkdirs();
+        return root;
+    }
+
+    /**
+     * Stage a bitstream, checking the space as it is copied
+     *
+     * @param in    the bitstream
+     * @param payloadPath   the path of the bitstream within the bag
+     * @param size  the size of the bitstream, or 0 if it is not known
+     * @param budget    the budget to account for the bytes against as they are written, or null if they have
+     *                  already been accounted for
+     * @return  the position of the root the bitstream was staged in
+     * @throws IOException  if space runs out and does not come back within the maximum wait
+     */
+    public int copy(InputStream in, String payloadPath, long size, StagingBudget budget)
+            throws IOException
+    {
+        int root = this.locate(payloadPath, size);
+        File target = this.file(root, payloadPath);
+        OutputStream os = new FileOutputStream(target);
+        File moving = null;
+        long acquired = 0;
+        try
+        {
+            byte[] buffer = new byte[8192];
+            long sinceCheck = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1)
+            {
+                if (budget != null)
+                {
+                    // account for each chunk before it reaches the disk, so the budget holds while copying
+                    budget.acquire(len);
+                    acquired += len;
+                }
+                os.write(buffer, 0, len);
+                sinceCheck += len;
+                if (sinceCheck >= CHECK_INTERVAL)
+                {
+                    sinceCheck = 0;
+                    int moved = this.wait(payloadPath, 0, root);
+                    if (moved != root)
+                    {
+                        // carry on in the new root with what has been staged so far
+                        os.close();
+                        File movedFile = this.file(moved, payloadPath);
+                        log.info("Moving " + payloadPath + " to " + movedFile.getAbsolutePath() + " part way through staging");
+                        moving = movedFile;
+                        movedFile.getParentFile().mkdirs();
+                        FileUtils.copyFile(target, movedFile);
+                        target.delete();
+                        if (moved == OVERFLOW)
+                        {
+                            synchronized (this)
+                            {
+                                this.spilled++;
+                            }
+                        }
+                        root = moved;
+                        target = movedFile;
+                        moving = null;
+                        os = new FileOutputStream(target, true);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            os.close();
+            target.delete();
+            if (moving != null)
+            {
+                // the move to another root failed part way through
+                moving.delete();
+            }
+            if (budget != null)
+            {
+                budget.release(acquired);
+            }
+            throw e;
+        }
+        os.close();
+        return root;
+    }
+
+    /**
+     * @param root  the position of a root, or {@link #OVERFLOW}
+     * @param payloadPath   the path of the bitstream within the bag
+     * @return  where the bitstream is staged if it is in that root
+     */
+    public File file(int root, String payloadPath)
+    {
+        return new File(this.getRoot(root), payloadPath);
+    }
+
+    /**
+     * Find a root with room for the bitstream, waiting until there is one
+     *
+     * @param current   the root the bitstream is already being staged in, which is kept if it still has room, or -1
+     */
+    private int wait(String payloadPath, long size, int current)
+            throws IOException
+    {
+        long start = System.currentTimeMillis();
+        boolean waited = false;
+        try
+        {
+            while (true)
+            {
+                synchronized (this)
+                {
+                    int root = this.choose(size, current);
+                    if (root != -1)
+                    {
+                        return root;
+                    }
+                    if (this.maxWait >= 0 && System.currentTimeMillis() - start >= this.maxWait)
+                    {
+                        throw new IOException("Not enough space to stage " + payloadPath + " in " + this.roots +
+                                (this.overflowDir == null ? "" : " or " + this.overflowDir.getAbsolutePath()));
+                    }
+                }
+                if (!waited)
+                {
+                    log.warn("Waiting for space to stage " + payloadPath);
+                    waited = true;
+                }
+                try
+                {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for space to stage " + payloadPath);
+                }
+            }
+        }
+        finally
+        {
+            if (waited)
+            {
+                synchronized (this)
+                {
+                    this.waitMillis += System.currentTimeMillis() - start;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param current   the root the bitstream is already being staged in, or -1 for a new bitstream
+     * @return  the position of a root with room, or -1 if there is none
+     */
+    private int choose(long size, int current)
+    {
+        if (current == OVERFLOW)
+        {
+            // once in the overflow directory, a bitstream stays there
+            return this.hasRoom(this.overflowDir, this.overflowWatermark, size) ? OVERFLOW : -1;
+        }
+        if (current != -1 && this.hasRoom(this.roots.get(current), this.watermark, size))
+        {
+            return current;
+        }
+
+        for (int root : this.candidates(current == -1))
+        {
+            if (root != current && this.hasRoom(this.roots.get(root), this.watermark, size))
+            {
+                return root;
+            }
+        }
+        if (this.overflowDir != null && this.hasRoom(this.overflowDir, this.overflowWatermark, size))
+        {
+            return OVERFLOW;
+        }
+        return -1;
+    }
+
+    /**
+     * @param advance   whether to move the round robin on, i.e. whether this is for a new bitstream
+     * @return  the positions of the roots, in the order the policy would use them
+     */
+    private List<Integer> candidates(boolean advance)
+    {
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < this.roots.size(); i++)
+        {
+            order.add((this.next + i) % this.roots.size());
+        }
+        if (advance)
+        {
+            this.next = (this.next + 1) % this.roots.size();
+        }
+
+        if (this.policy == DANSBag.StagingPolicy.MOST_FREE && order.size() > 1)
+        {
+            final long[] free = new long[this.roots.size()];
+            for (int i = 0; i < free.length; i++)
+            {
+                free[i] = this.usableSpace(this.roots.get(i));
+            }
+            Collections.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
+                {
+                    return free[a] > free[b] ? -1 : (free[a] < free[b] ? 1 : 0);
+                }
+            });
+        }
+        return order;
+    }
+
+    private boolean hasRoom(File dir, long watermark, long size)
+    {
+        if (watermark <= 0 && size <= 0)
+        {
+            return true;
+        }
+        return this.usableSpace(dir) - size >= watermark;
+    }
+
+    private long usableSpace(File dir)
+    {
+        // the directory may not have been created yet, so look at the nearest one which has
+        File existing = dir;
+        while (existing != null && !existing.exists())
+        {
+            existing = existing.getParentFile();
+        }
+        return existing == null ? Long.MAX_VALUE : existing.getUsableSpace();
+    }
+}
@@ -0,0 +1,134 @@
+package org.datadryad.dansbagit;
+
+import nu.xom.Element;
+import nu.xom.Serializer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+/**
+ * XOM Serializer which writes a document as it is produced, rather than from a complete tree.
+ *
+ * The outer elements are opened and closed explicitly, and the content in between is handed over one small
+ * subtree at a time, which is written out and can then be discarded.  Everything goes through XOM's own
+ * formatting and escaping, with the same settings as XMLFile.xml2String, so the output is byte for byte what
+ * serialising the whole tree would have produced.
+ */
+class StreamingSerializer extends Serializer
+{
+    private OutputStream out;
+
+    /** The elements which have been opened and not yet closed, innermost first */
+    private LinkedList<Element> open = new LinkedList<Element>();
+
+    /** An opened element whose start tag has not been written yet, because it may turn out to be empty */
+    private Element pending = null;
+
+    /**
+     * @param out   the stream to write to.  It is flushed, but not closed, by endDocument
+     * @throws IOException
+     */
+    public StreamingSerializer(OutputStream out)
+            throws IOException
+    {
+        super(out, "UTF-8");
+        this.out = out;
+        this.setIndent(4);
+    }
+
+    public void startDocument()
+            throws IOException
+    {
+        this.writeXMLDeclaration();
+    }
+
+    /**
+     * Open an element
+     *
+     * @param element   the element's name, namespace declarations and attributes; any children are ignored
+     * @throws IOException
+     */
+    public void startElement(Element element)
+            throws IOException
+    {
+        this.writePending();
+        this.open.addFirst(element);
+        this.pending = element;
+    }
+
+    /**
+     * Write a complete element inside the currently open one
+     *
+     * @param element   the element, with all of its content
+     * @throws IOException
+     */
+    public void writeElement(Element element)
+            throws IOException
+    {
+        this.writePending();
+        this.write(element);
+    }
+
+    /**
+     * Copy content which has already been serialised, as XOM would have serialised it at this point, into the
+     * currently open element
+     *
+     * @param in    the serialised content
+     * @throws IOException
+     */
+    public void writeSerialised(InputStream in)
+            throws IOException
+    {
+        this.writePending();
+        this.flush();
+        IOUtils.copy(in, this.out);
+    }
+
+    /**
+     * Close the most recently opened element
+     *
+     * @throws IOException
+     */
+    public void endElement()
+            throws IOException
+    {
+        Element element = this.open.removeFirst();
+        if (element == this.pending)
+        {
+            this.writeEmptyElementTag(element);
+            this.pending = null;
+        }
+        else
+        {
+            this.writeEndTag(element);
+        }
+    }
+
+    public void endDocument()
+            throws IOException
+    {
+        while (!this.open.isEmpty())
+        {
+            this.endElement();
+        }
+        this.breakLine();
+        this.flush();
+    }
+
+    private void writePending()
+            throws IOException
+    {
+        if (this.pending != null)
+        {
+            // the serializer lays out the end tag according to whether the element has element content,
+            // so give the element a child to stand for the content which is written separately
+            this.pending.removeChildren();
+            this.pending.appendChild(new Element("content"));
+            this.writeStartTag(this.pending);
+            this.pending = null;
+        }
+    }
+}
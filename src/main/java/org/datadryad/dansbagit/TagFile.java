@@ -1,22 +1,43 @@
 package org.datadryad.dansbagit;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
 
+/**
+ * A BagIt tag file: a list of values against paths.  The entries are held, and written, in path order, so
+ * that tag files from different bags can be compared with a streaming merge.
+ */
 public class TagFile
 {
+    /**
+     * Receives the entries of a tag file one at a time as it is read
+     */
+    public interface EntryHandler
+    {
+        void entry(String path, String value) throws IOException;
+    }
+
     private Map<String, String> tags;
 
     public TagFile()
     {
-        this.tags = new HashMap<String, String>();
+        this.tags = new TreeMap<String, String>();
     }
 
     public TagFile(HashMap<String, String> tags)
     {
-        this.tags = tags;
+        this.tags = new TreeMap<String, String>(tags);
     }
 
     public void add(String path, String tag)
@@ -29,6 +50,14 @@ public class TagFile
         return this.tags.get(path);
     }
 
+    /**
+     * @return  the paths which have values in this tag file
+     */
+    public Set<String> getPaths()
+    {
+        return this.tags.keySet();
+    }
+
     public boolean hasEntries()
     {
         return this.tags.size() > 0;
@@ -36,31 +65,118 @@ public class TagFile
 
     public String serialise()
     {
-        StringBuilder sb = new StringBuilder();
+        StringWriter sw = new StringWriter();
+        try
+        {
+            this.writeTo(sw);
+        }
+        catch (IOException e)
+        {
+            // a StringWriter doesn't throw IOExceptions
+            throw new RuntimeException(e);
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Write the tag file to the given stream as UTF-8, a line at a time.  The stream is flushed but not closed
+     *
+     * @param out   the stream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out)
+            throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        this.writeTo(writer);
+        writer.flush();
+    }
+
+    /**
+     * Write the tag file to the given writer, a line at a time
+     *
+     * @param writer    the writer to write to
+     * @throws IOException
+     */
+    public void writeTo(Writer writer)
+            throws IOException
+    {
         for (String path : this.tags.keySet())
         {
-            String value = this.tags.get(path);
-            sb.append(value).append("\t").append(path).append("\n");
+            writer.write(this.tags.get(path));
+            writer.write("\t");
+            writer.write(path);
+            writer.write("\n");
         }
-        return sb.toString();
     }
 
     public static TagFile parse(InputStream is)
     {
-        Scanner s = new Scanner(is).useDelimiter("\\A");
-        String result = s.hasNext() ? s.next() : "";
-
-        TagFile tf = new TagFile();
+        final TagFile tf = new TagFile();
+        try
+        {
+            read(is, new EntryHandler()
+            {
+                public void entry(String path, String value)
+                {
+                    tf.add(path, value);
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        return tf;
+    }
 
-        String[] lines = result.split("\\n");
-        for (String line : lines)
+    /**
+     * Read a tag file a line at a time, passing each entry to the handler without holding on to any of them,
+     * so that tag files of any size can be processed in bounded memory.  Lines without a tab are skipped
+     *
+     * @param is    the tag file content, in UTF-8
+     * @param handler   receives each entry
+     * @throws IOException
+     */
+    public static void read(InputStream is, EntryHandler handler)
+            throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null)
         {
             int lastTab = line.lastIndexOf("\t");
-            String val = line.substring(0, lastTab);
-            String path = line.substring(lastTab + 1);
-            tf.add(path, val);
+            if (lastTab == -1)
+            {
+                continue;
+            }
+            handler.entry(line.substring(lastTab + 1), line.substring(0, lastTab));
         }
+    }
 
+    /**
+     * Parse a tag file, keeping only the entries for the given paths, so that the memory used is proportional
+     * to the selection rather than to the size of the tag file
+     *
+     * @param is    the tag file content
+     * @param paths the paths to keep
+     * @return  the tag file, holding only those paths
+     * @throws IOException
+     */
+    public static TagFile parse(InputStream is, final Set<String> paths)
+            throws IOException
+    {
+        final TagFile tf = new TagFile();
+        read(is, new EntryHandler()
+        {
+            public void entry(String path, String value)
+            {
+                if (paths.contains(path))
+                {
+                    tf.add(path, value);
+                }
+            }
+        });
         return tf;
     }
 }
@@ -0,0 +1,162 @@
+package org.datadryad.dansbagit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Structured report of the outcome of validating a bag
+ */
+public class ValidationReport
+{
+    /**
+     * The possible outcomes for an individual file in the bag
+     */
+    public enum Status
+    {
+        /** the file matched everything it was checked against */
+        VALID,
+        /** a file listed in a manifest was not in the zip */
+        MISSING,
+        /** a payload file in the zip was not listed in a manifest */
+        UNLISTED,
+        /** the file's checksum did not match the manifest */
+        CHECKSUM_MISMATCH,
+        /** the file's size did not match the recorded size */
+        SIZE_MISMATCH,
+        /** the XML document does not conform to its schema */
+        SCHEMA_INVALID,
+        /** the file could not be checked */
+        ERROR
+    }
+
+    /**
+     * The outcome of checking a single file in the bag
+     */
+    public static class Result
+    {
+        private String path;
+        private Status status;
+        private String message;
+
+        public Result(String path, Status status, String message)
+        {
+            this.path = path;
+            this.status = status;
+            this.message = message;
+        }
+
+        /**
+         * @return  the path of the file, relative to the base directory of the bag
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        public Status getStatus()
+        {
+            return status;
+        }
+
+        /**
+         * @return  a human readable description of any problem, or null if the file is valid
+         */
+        public String getMessage()
+        {
+            return message;
+        }
+
+        public String toString()
+        {
+            return this.status + "\t" + this.path + (this.message == null ? "" : "\t" + this.message);
+        }
+    }
+
+    private List<Result> results = Collections.synchronizedList(new ArrayList<Result>());
+    private boolean cancelled = false;
+    private long bytesChecked = 0;
+    private long elapsed = 0;
+
+    public void addResult(Result result)
+    {
+        this.results.add(result);
+    }
+
+    /**
+     * @return  true if every file checked was valid and the validation ran to completion
+     */
+    public boolean isValid()
+    {
+        return !this.cancelled && this.getFailures().isEmpty();
+    }
+
+    /**
+     * @return  all of the results
+     */
+    public List<Result> getResults()
+    {
+        synchronized (this.results)
+        {
+            return new ArrayList<Result>(this.results);
+        }
+    }
+
+    /**
+     * @return  only the results which are not VALID
+     */
+    public List<Result> getFailures()
+    {
+        List<Result> failures = new ArrayList<Result>();
+        synchronized (this.results)
+        {
+            for (Result result : this.results)
+            {
+                if (result.getStatus() != Status.VALID)
+                {
+                    failures.add(result);
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return  true if the validation was stopped early (e.g. when failing fast), so not every file was checked
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public void setCancelled(boolean cancelled)
+    {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return  the number of bytes read in order to validate the bag
+     */
+    public synchronized long getBytesChecked()
+    {
+        return bytesChecked;
+    }
+
+    public synchronized void addBytesChecked(long bytes)
+    {
+        this.bytesChecked += bytes;
+    }
+
+    /**
+     * @return  the time the validation took, in milliseconds
+     */
+    public long getElapsed()
+    {
+        return elapsed;
+    }
+
+    public void setElapsed(long elapsed)
+    {
+        this.elapsed = elapsed;
+    }
+}
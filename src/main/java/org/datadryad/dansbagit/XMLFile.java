@@ -6,13 +6,55 @@ import nu.xom.Serializer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
 
 /**
  * Parent XML class which provides features of use to other classes which work with XML
  *
  */
-public class XMLFile
+public abstract class XMLFile
 {
+    /**
+     * Convert the in-memory information to an XML string
+     *
+     * @return  the XML as a string
+     * @throws IOException
+     */
+    public abstract String toXML() throws IOException;
+
+    /**
+     * Write the XML to the given stream as UTF-8, without building the whole document in memory first.  The
+     * bytes written are the same as those of toXML.  The stream is flushed but not closed
+     *
+     * @param out   the stream to write to
+     * @throws IOException
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Validate the XML against one of the bundled schemas, as it is written
+     *
+     * @param schema    the file name of the schema
+     * @return  the schema errors, each with the line and column it was found at; empty if the XML is valid
+     * @throws IOException
+     */
+    protected List<String> validate(String schema)
+            throws IOException
+    {
+        SchemaValidator.Session session = SchemaValidator.get(schema).start();
+        try
+        {
+            this.writeTo(session.getSink());
+        }
+        catch (IOException e)
+        {
+            session.finish();
+            throw e;
+        }
+        return session.finish();
+    }
+
     /**
      * Convert the given element to an XML string
      *
@@ -0,0 +1,91 @@
+package org.datadryad.dansbagit;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.ZipFile;
+
+/**
+ * A bounded pool of independent ZipFile handles onto the same zip, so that several threads can
+ * read entries at once without contending on a single handle.
+ */
+class ZipFilePool
+{
+    private static Logger log = Logger.getLogger(ZipFilePool.class);
+
+    private File file;
+    private int max;
+    private int created = 0;
+    private BlockingQueue<ZipFile> idle = new LinkedBlockingQueue<ZipFile>();
+    private List<ZipFile> all = new ArrayList<ZipFile>();
+
+    /**
+     * @param file  the zip file
+     * @param max   the maximum number of handles to open
+     */
+    public ZipFilePool(File file, int max)
+    {
+        this.file = file;
+        this.max = Math.max(1, max);
+    }
+
+    /**
+     * Take a handle from the pool, opening a new one if the pool is not yet at its limit, or waiting
+     * for one to be released if it is
+     *
+     * @return  a handle which must be given back with release()
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ZipFile acquire()
+            throws IOException, InterruptedException
+    {
+        ZipFile zf = this.idle.poll();
+        if (zf != null)
+        {
+            return zf;
+        }
+        synchronized (this)
+        {
+            if (this.created < this.max)
+            {
+                // only count the handle once it is open, so that a failed open does not use up a slot
+                zf = new ZipFile(this.file);
+                this.created++;
+                this.all.add(zf);
+                return zf;
+            }
+        }
+        return this.idle.take();
+    }
+
+    public void release(ZipFile zf)
+    {
+        this.idle.offer(zf);
+    }
+
+    /**
+     * Close every handle the pool has opened
+     */
+    public synchronized void close()
+    {
+        for (ZipFile zf : this.all)
+        {
+            try
+            {
+                zf.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to close zip handle on " + this.file.getAbsolutePath(), e);
+            }
+        }
+        this.all.clear();
+        this.idle.clear();
+    }
+}
@@ -0,0 +1,457 @@
+package org.datadryad.dansbagit;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * Index of the entries in a zip file, read directly from its central directory, which knows where
+ * in the file the data of each entry begins.  This is what java.util.zip hides from us, and what we need
+ * to read part of a STORED entry without reading everything in front of it.
+ *
+ * Both plain and zip64 archives are understood.
+ */
+class ZipIndex
+{
+    private static Logger log = Logger.getLogger(ZipIndex.class);
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    /**
+     * Location and size of a single entry in the zip
+     */
+    static class Entry
+    {
+        public String name;
+        public int method;
+        public long compressedSize;
+        public long size;
+        public long localHeaderOffset;
+        public long dataOffset = -1;
+    }
+
+    private File file;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Read the central directory of the given zip
+     *
+     * @param file  the zip file
+     * @throws IOException
+     */
+    public ZipIndex(File file)
+            throws IOException
+    {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            this.readCentralDirectory(raf.getChannel());
+        }
+        finally
+        {
+            raf.close();
+        }
+        log.debug("Indexed " + this.entries.size() + " entries in " + file.getAbsolutePath());
+    }
+
+    /**
+     * @param name  the full path of the entry inside the zip
+     * @return  the entry, or null if the zip does not contain it
+     */
+    public Entry getEntry(String name)
+    {
+        return this.entries.get(name);
+    }
+
+    /**
+     * Find the offset in the zip file at which the (possibly compressed) data of the entry begins
+     *
+     * @param entry the entry
+     * @return  offset from the start of the zip file
+     * @throws IOException
+     */
+    public long getDataOffset(Entry entry)
+            throws IOException
+    {
+        synchronized (entry)
+        {
+            if (entry.dataOffset == -1)
+            {
+                RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+                try
+                {
+                    ByteBuffer header = this.read(raf.getChannel(), entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+                    if (header.getInt(0) != LOCAL_HEADER_SIG)
+                    {
+                        throw new IOException("No local header for " + entry.name + " at offset " + entry.localHeaderOffset);
+                    }
+                    int nameLength = header.getShort(26) & 0xFFFF;
+                    int extraLength = header.getShort(28) & 0xFFFF;
+                    entry.dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+                }
+                finally
+                {
+                    raf.close();
+                }
+            }
+            return entry.dataOffset;
+        }
+    }
+
+    /**
+     * Read the local header of the entry which starts at the given offset, without reading the central directory.
+     * This is only of use for entries whose sizes are recorded in the local header, such as STORED entries
+     *
+     * @param file  the zip file
+     * @param offset    the offset of the local header, e.g. 0 for the first entry in the zip
+     * @return  the entry, or null if there is no local header at that offset
+     * @throws IOException
+     */
+    public static Entry readLocalHeader(File file, long offset)
+            throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            if (raf.length() < offset + LOCAL_HEADER_SIZE)
+            {
+                return null;
+            }
+            byte[] fixed = new byte[LOCAL_HEADER_SIZE];
+            raf.seek(offset);
+            raf.readFully(fixed);
+            ByteBuffer header = ByteBuffer.wrap(fixed).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != LOCAL_HEADER_SIG)
+            {
+                return null;
+            }
+
+            Entry entry = new Entry();
+            entry.method = header.getShort(8) & 0xFFFF;
+            entry.compressedSize = header.getInt(18) & 0xFFFFFFFFL;
+            entry.size = header.getInt(22) & 0xFFFFFFFFL;
+            entry.localHeaderOffset = offset;
+
+            int nameLength = header.getShort(26) & 0xFFFF;
+            int extraLength = header.getShort(28) & 0xFFFF;
+            byte[] name = new byte[nameLength];
+            raf.readFully(name);
+            entry.name = new String(name, "UTF-8");
+            entry.dataOffset = offset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+            return entry;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Open a stream onto a range of the raw bytes of the zip file.  For STORED entries the raw bytes of the
+     * entry are its content, so this gives positional access to the content.
+     *
+     * @param offset    offset from the start of the zip file
+     * @param length    number of bytes to read
+     * @return  a stream which must be closed by the caller
+     * @throws IOException
+     */
+    public InputStream openRange(long offset, long length)
+            throws IOException
+    {
+        return new RangeInputStream(this.file, offset, length);
+    }
+
+    private void readCentralDirectory(FileChannel channel)
+            throws IOException
+    {
+        long fileLength = channel.size();
+        long tailStart = Math.max(0, fileLength - (END_SIZE + MAX_COMMENT));
+        ByteBuffer tail = this.read(channel, tailStart, (int) (fileLength - tailStart));
+
+        int endPos = -1;
+        for (int i = tail.limit() - END_SIZE; i >= 0; i--)
+        {
+            if (tail.getInt(i) == END_SIG)
+            {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos == -1)
+        {
+            throw new IOException("No end of central directory record in " + this.file.getAbsolutePath());
+        }
+
+        long count = tail.getShort(endPos + 10) & 0xFFFF;
+        long cdSize = tail.getInt(endPos + 12) & 0xFFFFFFFFL;
+        long cdOffset = tail.getInt(endPos + 16) & 0xFFFFFFFFL;
+
+        // a zip64 archive has a locator immediately in front of the end record
+        long locatorPos = tailStart + endPos - 20;
+        if (locatorPos >= 0)
+        {
+            ByteBuffer locator = this.read(channel, locatorPos, 20);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIG)
+            {
+                ByteBuffer end64 = this.read(channel, locator.getLong(8), 56);
+                if (end64.getInt(0) != ZIP64_END_SIG)
+                {
+                    throw new IOException("Invalid zip64 end of central directory record in " + this.file.getAbsolutePath());
+                }
+                count = end64.getLong(32);
+                cdSize = end64.getLong(40);
+                cdOffset = end64.getLong(48);
+            }
+        }
+
+        // read the central directory a block at a time, so that huge bags don't need it all in memory at once
+        long pos = cdOffset;
+        long end = cdOffset + cdSize;
+        ByteBuffer buf = null;
+        long bufStart = 0;
+        for (long n = 0; n < count; n++)
+        {
+            if (buf == null || pos + 46 > bufStart + buf.limit())
+            {
+                bufStart = pos;
+                buf = this.read(channel, pos, (int) Math.min(end - pos, 1 << 20));
+            }
+            int p = (int) (pos - bufStart);
+            if (buf.getInt(p) != CENTRAL_HEADER_SIG)
+            {
+                throw new IOException("Invalid central directory header at offset " + pos + " in " + this.file.getAbsolutePath());
+            }
+            int nameLength = buf.getShort(p + 28) & 0xFFFF;
+            int extraLength = buf.getShort(p + 30) & 0xFFFF;
+            int commentLength = buf.getShort(p + 32) & 0xFFFF;
+            int headerLength = 46 + nameLength + extraLength + commentLength;
+            if (pos + headerLength > bufStart + buf.limit())
+            {
+                bufStart = pos;
+                buf = this.read(channel, pos, (int) Math.min(end - pos, Math.max(headerLength, 1 << 20)));
+                p = 0;
+            }
+
+            Entry entry = new Entry();
+            entry.method = buf.getShort(p + 10) & 0xFFFF;
+            entry.compressedSize = buf.getInt(p + 20) & 0xFFFFFFFFL;
+            entry.size = buf.getInt(p + 24) & 0xFFFFFFFFL;
+            entry.localHeaderOffset = buf.getInt(p + 42) & 0xFFFFFFFFL;
+
+            byte[] name = new byte[nameLength];
+            for (int i = 0; i < nameLength; i++)
+            {
+                name[i] = buf.get(p + 46 + i);
+            }
+            entry.name = new String(name, "UTF-8");
+
+            this.readZip64Extra(buf, p + 46 + nameLength, extraLength, entry);
+            this.entries.put(entry.name, entry);
+            pos += headerLength;
+        }
+    }
+
+    /**
+     * Replace any of the sizes or offset which overflowed with their values from the zip64 extra field
+     */
+    private void readZip64Extra(ByteBuffer buf, int start, int length, Entry entry)
+    {
+        int p = start;
+        while (p + 4 <= start + length)
+        {
+            int id = buf.getShort(p) & 0xFFFF;
+            int size = buf.getShort(p + 2) & 0xFFFF;
+            if (id == ZIP64_EXTRA)
+            {
+                int q = p + 4;
+                if (entry.size == 0xFFFFFFFFL)
+                {
+                    entry.size = buf.getLong(q);
+                    q += 8;
+                }
+                if (entry.compressedSize == 0xFFFFFFFFL)
+                {
+                    entry.compressedSize = buf.getLong(q);
+                    q += 8;
+                }
+                if (entry.localHeaderOffset == 0xFFFFFFFFL)
+                {
+                    entry.localHeaderOffset = buf.getLong(q);
+                }
+                return;
+            }
+            p += 4 + size;
+        }
+    }
+
+    private ByteBuffer read(FileChannel channel, long position, int length)
+            throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining())
+        {
+            if (channel.read(buf, position + buf.position()) == -1)
+            {
+                throw new IOException("Unexpected end of " + this.file.getAbsolutePath());
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * @return  true if the entry's content is held uncompressed in the zip
+     */
+    public static boolean isStored(Entry entry)
+    {
+        return entry.method == ZipEntry.STORED;
+    }
+
+    /**
+     * Stream over a byte range of a file, read with positional reads
+     */
+    static class RangeInputStream extends InputStream
+    {
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private long position;
+        private long remaining;
+
+        public RangeInputStream(File file, long offset, long length)
+                throws IOException
+        {
+            this.raf = new RandomAccessFile(file, "r");
+            this.channel = this.raf.getChannel();
+            this.position = offset;
+            this.remaining = length;
+        }
+
+        public int read()
+                throws IOException
+        {
+            byte[] b = new byte[1];
+            int n = this.read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (this.remaining <= 0)
+            {
+                return -1;
+            }
+            int n = this.channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, this.remaining)), this.position);
+            if (n == -1)
+            {
+                return -1;
+            }
+            this.position += n;
+            this.remaining -= n;
+            return n;
+        }
+
+        public long skip(long n)
+        {
+            long skipped = Math.max(0, Math.min(n, this.remaining));
+            this.position += skipped;
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        public int available()
+        {
+            return (int) Math.min(this.remaining, Integer.MAX_VALUE);
+        }
+
+        public void close()
+                throws IOException
+        {
+            this.raf.close();
+        }
+    }
+
+    /**
+     * Stream which ends after a fixed number of bytes of the underlying stream
+     */
+    static class LimitedInputStream extends FilterInputStream
+    {
+        private long remaining;
+
+        public LimitedInputStream(InputStream in, long limit)
+        {
+            super(in);
+            this.remaining = limit;
+        }
+
+        public int read()
+                throws IOException
+        {
+            if (this.remaining <= 0)
+            {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1)
+            {
+                this.remaining--;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (this.remaining <= 0)
+            {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, this.remaining));
+            if (n > 0)
+            {
+                this.remaining -= n;
+            }
+            return n;
+        }
+
+        public long skip(long n)
+                throws IOException
+        {
+            long skipped = super.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        public int available()
+                throws IOException
+        {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+}
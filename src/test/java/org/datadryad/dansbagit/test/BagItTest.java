@@ -380,6 +380,1243 @@ public class BagItTest
         }
     }
 
+    @Test
+    public void testSpillReferences()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testspillbag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testspillbag.zip";
+        this.cleanup.add(zipPath);
+
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+
+        // make sure the references go to disk almost immediately
+        db.setSpillThreshold(256);
+
+        for (int i = 0; i < 200; i++)
+        {
+            byte[] bytes = ("file content " + i).getBytes();
+            db.addBitstream(new ByteArrayInputStream(bytes), "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/" + (i % 3), "ORIGINAL");
+        }
+
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+
+        // the spilled references are released along with the working directory
+        db.cleanupWorkingDir();
+        assert !new File(workingDir).exists();
+        assert db.listBitstreams("10.whatever/ident/0", "ORIGINAL").isEmpty();
+
+        DANSBag read = new DANSBag(zipPath, workingDir);
+        read.setSpillThreshold(256);
+
+        assert read.dataFileIdents().size() == 3;
+        int total = 0;
+        for (String ident : read.dataFileIdents())
+        {
+            for (BaggedBitstream bb : read.listBitstreams(ident, "ORIGINAL"))
+            {
+                String content = new String(this.readInput(bb.getInputStream(), 100));
+                assert content.equals("file content " + bb.getFilename().substring(4, bb.getFilename().length() - 4));
+                assert bb.getDescription().equals("file " + bb.getFilename().substring(4, bb.getFilename().length() - 4));
+                total++;
+            }
+        }
+        assert total == 200;
+        read.cleanupWorkingDir();
+    }
+
+    @Test
+    public void testStreamReader()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/teststreambag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/teststreambag.zip";
+        this.cleanup.add(zipPath);
+
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+        final byte[] bytes = "asdklfjqwoie weoifjwoef jwoeifjwefpji".getBytes();
+        db.addBitstream(new ByteArrayInputStream(bytes), "myfile.txt", "text/plain", "some plain text", "10.whatever/ident/1", "ORIGINAL");
+
+        DIM dfdim = new DIM();
+        dfdim.addDSpaceField("dc.identifier", "10.1234/ident/1");
+        db.addDatafileDIM(dfdim, "10.whatever/ident/1");
+
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+
+        // a freshly written bag carries its metadata first, so nothing needs to be spooled
+        final List<BaggedBitstream> seen = new ArrayList<BaggedBitstream>();
+        BagStreamReader reader = new BagStreamReader(new FileInputStream(zipPath), new File(workingDir + "/spool"));
+        reader.read(new BagStreamReader.BitstreamHandler()
+        {
+            public void bitstream(BaggedBitstream bb)
+                    throws IOException
+            {
+                assert bb.getDescription().equals("some plain text");
+                assert bb.getFormat().equals("text/plain");
+                assert bb.getDataFileIdent() != null;
+                assert bb.getBundle().equals("ORIGINAL");
+                assert bb.getFilename().equals("myfile.txt");
+                try
+                {
+                    assert bb.getMd5().equals(Files.md5Hex(new ByteArrayInputStream(bytes)));
+                    assert bb.getSha1().equals(Files.toHex(java.security.MessageDigest.getInstance("SHA-1").digest(bytes)));
+                    assert Arrays.equals(readInput(bb.getInputStream(), 100), bytes);
+                }
+                catch (Exception e)
+                {
+                    throw new IOException(e);
+                }
+                seen.add(bb);
+            }
+        });
+        assert seen.size() == 1;
+        assert !new File(workingDir + "/spool").exists();
+        assert reader.getDatasetDIM() != null;
+
+        DANSBag loaded = new DANSBag(zipPath, workingDir);
+        assert reader.dataFileIdents().equals(loaded.dataFileIdents());
+        for (String ident : loaded.dataFileIdents())
+        {
+            assert reader.getDatafileDIM(ident) != null;
+            for (BaggedBitstream bb : loaded.listBitstreams(ident, "ORIGINAL"))
+            {
+                assert bb.getMd5().equals(seen.get(0).getMd5());
+                assert bb.getSha1().equals(seen.get(0).getSha1());
+            }
+        }
+
+        // an older bag has its tag files at the end, but should still produce the same metadata as loadBag
+        String realPath = System.getProperty("user.dir") + "/src/test/resources/bags/21.zip";
+        final Map<String, String> formats = new HashMap<String, String>();
+        final Map<String, String> md5s = new HashMap<String, String>();
+        BagStreamReader realReader = new BagStreamReader(new FileInputStream(realPath), new File(workingDir + "/spool"));
+        realReader.read(new BagStreamReader.BitstreamHandler()
+        {
+            public void bitstream(BaggedBitstream bb)
+                    throws IOException
+            {
+                formats.put(bb.getDataFileIdent() + "/" + bb.getBundle() + "/" + bb.getFilename(), bb.getFormat());
+                md5s.put(bb.getDataFileIdent() + "/" + bb.getBundle() + "/" + bb.getFilename(), bb.getMd5());
+            }
+        });
+        assert realReader.dataFileIdents().size() == 3;
+        assert realReader.getDatasetDIM() != null;
+
+        DANSBag real = new DANSBag(realPath, workingDir);
+        int count = 0;
+        for (String ident : real.dataFileIdents())
+        {
+            assert realReader.getDatafileDIM(ident) != null;
+            for (String bundle : real.listBundles(ident))
+            {
+                for (BaggedBitstream bb : real.listBitstreams(ident, bundle))
+                {
+                    assert bb.getFormat().equals(formats.get(ident + "/" + bundle + "/" + bb.getFilename()));
+                    assert bb.getMd5().equals(md5s.get(ident + "/" + bundle + "/" + bb.getFilename()));
+                    count++;
+                }
+            }
+        }
+        assert count == formats.size();
+    }
+
+    @Test
+    public void testValidate()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testvalidatebag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testvalidatebag.zip";
+        this.cleanup.add(zipPath);
+
+        String badPath = System.getProperty("user.dir") + "/src/test/resources/working/testvalidatebag-bad.zip";
+        this.cleanup.add(badPath);
+
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+        for (int i = 0; i < 20; i++)
+        {
+            byte[] bytes = ("file content " + i).getBytes();
+            db.addBitstream(new ByteArrayInputStream(bytes), "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/1", "ORIGINAL");
+        }
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+
+        ValidationReport report = db.validate(4, false);
+        assert report.isValid();
+        assert !report.isCancelled();
+        assert report.getFailures().isEmpty();
+        assert report.getBytesChecked() > 0;
+
+        // the bags in the test resources should validate too
+        assert new DANSBag(System.getProperty("user.dir") + "/src/test/resources/bags/21.zip", workingDir).validate().isValid();
+
+        // now corrupt two of the payload files, by rewriting the zip with different content for them
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("file3.txt", "corrupted");
+        replace.put("file7.txt", "corrupted");
+        this.rewriteZip(zipPath, badPath, replace);
+
+        DANSBag bad = new DANSBag(badPath, workingDir);
+        ValidationReport badReport = bad.validate(4, false);
+        assert !badReport.isValid();
+        assert badReport.getFailures().size() == 2;
+        for (ValidationReport.Result result : badReport.getFailures())
+        {
+            assert result.getStatus() == ValidationReport.Status.CHECKSUM_MISMATCH;
+        }
+
+        ValidationReport fastReport = bad.validate(1, true);
+        assert !fastReport.isValid();
+        assert fastReport.getFailures().size() == 1;
+    }
+
+    @Test
+    public void testQuickValidate()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testquickbag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testquickbag.zip";
+        this.cleanup.add(zipPath);
+
+        String badPath = System.getProperty("user.dir") + "/src/test/resources/working/testquickbag-bad.zip";
+        this.cleanup.add(badPath);
+
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+        for (int i = 0; i < 5; i++)
+        {
+            byte[] bytes = ("file content " + i).getBytes();
+            db.addBitstream(new ByteArrayInputStream(bytes), "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/1", "ORIGINAL");
+        }
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+
+        // the bag-info should now describe the payload: 5 bitstreams of 14 bytes, plus the DIM
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(zipPath);
+        String bagInfo = new String(this.readInput(zf.getInputStream(zf.getEntry("testbag/bag-info.txt")), 1000), "UTF-8");
+        long dimSize = zf.getEntry("testbag/data/metadata.xml").getSize();
+        assert bagInfo.contains("Payload-Oxum: " + (70 + dimSize) + ".6\n");
+        assert bagInfo.contains("Bag-Size: ");
+
+        assert db.quickValidate().isValid();
+        assert new DANSBag(System.getProperty("user.dir") + "/src/test/resources/bags/21.zip", workingDir).quickValidate().isValid();
+
+        zf.close();
+
+        // drop one payload file and truncate another, without touching the tag files
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("file1.txt", null);
+        replace.put("file2.txt", "short");
+        this.rewriteZip(zipPath, badPath, replace);
+
+        ValidationReport report = new DANSBag(badPath, workingDir).quickValidate();
+        assert !report.isValid();
+        Set<ValidationReport.Status> statuses = new HashSet<ValidationReport.Status>();
+        Set<String> paths = new HashSet<String>();
+        for (ValidationReport.Result result : report.getFailures())
+        {
+            statuses.add(result.getStatus());
+            paths.add(result.getPath());
+        }
+        assert statuses.contains(ValidationReport.Status.MISSING);
+        assert statuses.contains(ValidationReport.Status.SIZE_MISMATCH);
+        assert paths.contains("data/10.whatever_ident_1/ORIGINAL/file1.txt");
+        assert paths.contains("data/10.whatever_ident_1/ORIGINAL/file2.txt");
+        assert paths.contains("bag-info.txt");
+    }
+
+    @Test
+    public void testVerifyOnRead()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testverifybag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testverifybag.zip";
+        this.cleanup.add(zipPath);
+
+        String badPath = System.getProperty("user.dir") + "/src/test/resources/working/testverifybag-bad.zip";
+        this.cleanup.add(badPath);
+
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+        db.addBitstream(new ByteArrayInputStream("good content".getBytes()), "good.txt", "text/plain", "good", "10.whatever/ident/1", "ORIGINAL");
+        db.addBitstream(new ByteArrayInputStream("original content".getBytes()), "bad.txt", "text/plain", "bad", "10.whatever/ident/1", "ORIGINAL");
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("bad.txt", "tampered content");
+        this.rewriteZip(zipPath, badPath, replace);
+
+        DANSBag bag = new DANSBag(badPath, workingDir);
+        bag.setVerifyOnRead(true);
+
+        int failures = 0;
+        for (String ident : bag.dataFileIdents())
+        {
+            for (BaggedBitstream bb : bag.listBitstreams(ident, "ORIGINAL"))
+            {
+                try
+                {
+                    byte[] content = this.readInput(bb.getInputStream(), 4);
+                    assert bb.getFilename().equals("good.txt");
+                    assert new String(content).equals("good content");
+                }
+                catch (FixityException e)
+                {
+                    assert bb.getFilename().equals("bad.txt");
+                    assert e.getAlgorithm().equals("MD5");
+                    failures++;
+                }
+            }
+        }
+        assert failures == 1;
+
+        // without verification the tampered content is read without complaint
+        bag.setVerifyOnRead(false);
+        for (String ident : bag.dataFileIdents())
+        {
+            for (BaggedBitstream bb : bag.listBitstreams(ident, "ORIGINAL"))
+            {
+                this.readInput(bb.getInputStream(), 4);
+            }
+        }
+    }
+
+    @Test
+    public void testLazyBitstreams()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testlazybag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testlazybag.zip";
+        this.cleanup.add(zipPath);
+
+        byte[] content = "some lazily read content".getBytes();
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+        db.addBitstream(new ByteArrayInputStream(content), "lazy.txt", "text/plain", "lazy", "10.whatever/ident/1", "ORIGINAL");
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+
+        DANSBag bag = new DANSBag(zipPath, workingDir);
+        for (String ident : bag.dataFileIdents())
+        {
+            Set<BaggedBitstream> bbs = bag.listBitstreams(ident, "ORIGINAL");
+            assert bbs.size() == 1;
+            for (BaggedBitstream bb : bbs)
+            {
+                // listing gives us the metadata without opening anything
+                assert !bb.isOpen();
+                assert bb.getSize() == content.length;
+                assert bb.getMd5().equals(Files.toHex(java.security.MessageDigest.getInstance("MD5").digest(content)));
+                assert bb.getSha1() != null;
+                assert !bb.isOpen();
+
+                assert new String(this.readInput(bb.getInputStream(), 4)).equals(new String(content));
+                assert bb.isOpen();
+                bb.close();
+                assert !bb.isOpen();
+
+                // and it can be opened again
+                assert new String(this.readInput(bb.getInputStream(), 4)).equals(new String(content));
+                bb.close();
+            }
+        }
+    }
+
+    @Test
+    public void testBitstreamLookup()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testlookupbag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testlookupbag.zip";
+        this.cleanup.add(zipPath);
+
+        // enough bitstreams for the lookup table to grow several times, some of them with the same filename
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+        for (int i = 0; i < 300; i++)
+        {
+            byte[] bytes = ("content " + i).getBytes();
+            db.addBitstream(new ByteArrayInputStream(bytes), "file" + (i % 100) + ".txt", "text/plain", "file " + i,
+                    "10.whatever/ident/" + (i / 100), "ORIGINAL");
+        }
+
+        // lookups made before the bag is written see bitstreams added after the table was built
+        assert new String(this.readInput(db.getBitstreamRange("10.whatever/ident/2", "ORIGINAL", "file5.txt", 0, 100), 100)).equals("content 205");
+        db.addBitstream(new ByteArrayInputStream("late".getBytes()), "late.txt", "text/plain", "late", "10.whatever/ident/0", "ORIGINAL");
+        assert new String(this.readInput(db.getBitstreamRange("10.whatever/ident/0", "ORIGINAL", "late.txt", 0, 100), 100)).equals("late");
+
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+
+        // a loaded bag knows its data files by their directory names
+        DANSBag loaded = new DANSBag(zipPath, workingDir);
+        for (int i = 0; i < 300; i += 7)
+        {
+            InputStream is = loaded.getBitstreamRange("10.whatever_ident_" + (i / 100), "ORIGINAL", "file" + (i % 100) + ".txt", 8, 100);
+            assert new String(this.readInput(is, 100)).equals(Integer.toString(i));
+        }
+        try
+        {
+            loaded.getBitstreamRange("10.whatever_ident_3", "ORIGINAL", "file5.txt", 0, 10);
+            assert false;
+        }
+        catch (FileNotFoundException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBitstreamRange()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testrangebag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testrangebag.zip";
+        this.cleanup.add(zipPath);
+
+        String storedPath = System.getProperty("user.dir") + "/src/test/resources/working/testrangebag-stored.zip";
+        this.cleanup.add(storedPath);
+
+        byte[] content = new byte[100000];
+        new Random(42).nextBytes(content);
+
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+        db.addBitstream(new ByteArrayInputStream(content), "range.bin", "application/octet-stream", "range", "10.whatever/ident/1", "ORIGINAL");
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+
+        // ranges can be read from the working directory before the zip is written
+        this.checkRange(db, content, 500, 1000);
+
+        db.writeToFile();
+
+        // compressed entries are inflated up to the range
+        DANSBag deflated = new DANSBag(zipPath, workingDir);
+        this.checkRange(deflated, content, 0, 10);
+        this.checkRange(deflated, content, 54321, 2000);
+        this.checkRange(deflated, content, 99990, 1000);
+
+        // stored entries are read positionally
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(zipPath);
+        java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(new FileOutputStream(storedPath));
+        Enumeration<? extends java.util.zip.ZipEntry> entries = zf.entries();
+        while (entries.hasMoreElements())
+        {
+            java.util.zip.ZipEntry entry = entries.nextElement();
+            byte[] data = this.readInput(zf.getInputStream(entry), 1000);
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(data);
+            java.util.zip.ZipEntry stored = new java.util.zip.ZipEntry(entry.getName());
+            stored.setMethod(java.util.zip.ZipEntry.STORED);
+            stored.setSize(data.length);
+            stored.setCompressedSize(data.length);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(data);
+        }
+        zos.close();
+        zf.close();
+
+        DANSBag stored = new DANSBag(storedPath, workingDir);
+        this.checkRange(stored, content, 0, 10);
+        this.checkRange(stored, content, 54321, 2000);
+        this.checkRange(stored, content, 99990, 1000);
+        this.checkRange(stored, content, 100000, 10);
+    }
+
+    @Test
+    public void testAccessPoints()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testaccessbag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testaccessbag.zip";
+        this.cleanup.add(zipPath);
+
+        // half random and half repetitive, so that some of the access points fall in well compressed data
+        byte[] content = new byte[200000];
+        new Random(7).nextBytes(content);
+        for (int i = 100000; i < content.length; i++)
+        {
+            content[i] = (byte) ('a' + (i % 13));
+        }
+
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+        db.setAccessPointSpacing(16384);
+        db.addBitstream(new ByteArrayInputStream(content), "range.bin", "application/octet-stream", "range", "10.whatever/ident/1", "ORIGINAL");
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+
+        // the access points are recorded in their own tag file
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(zipPath);
+        java.util.zip.ZipEntry apEntry = zf.getEntry("testbag/bitstream-access-points.txt");
+        assert apEntry != null;
+        String points = new String(this.readInput(zf.getInputStream(apEntry), 1000));
+        assert points.split(" ").length == content.length / 16384;
+        zf.close();
+
+        // the bag is still an ordinary, valid bag
+        DANSBag bag = new DANSBag(zipPath, workingDir);
+        assert bag.validate().isValid();
+        for (String ident : bag.dataFileIdents())
+        {
+            for (BaggedBitstream bb : bag.listBitstreams(ident, "ORIGINAL"))
+            {
+                assert Arrays.equals(this.readInput(bb.getInputStream(), 1000), content);
+                bb.close();
+            }
+        }
+
+        this.checkRange(bag, content, 0, 10);
+        this.checkRange(bag, content, 16383, 2);
+        this.checkRange(bag, content, 16384, 100);
+        this.checkRange(bag, content, 54321, 40000);
+        this.checkRange(bag, content, 150000, 100);
+        this.checkRange(bag, content, 199990, 1000);
+    }
+
+    @Test
+    public void testExtract()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testextractbag";
+        this.cleanup.add(workingDir);
+
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testextractbag.zip";
+        this.cleanup.add(zipPath);
+
+        String badPath = System.getProperty("user.dir") + "/src/test/resources/working/testextractbag-bad.zip";
+        this.cleanup.add(badPath);
+
+        String targetDir = System.getProperty("user.dir") + "/src/test/resources/working/testextracted";
+        this.cleanup.add(targetDir);
+
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir);
+        for (int i = 0; i < 20; i++)
+        {
+            String content = "content of file " + i;
+            db.addBitstream(new ByteArrayInputStream(content.getBytes()), "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/" + (i % 3), "ORIGINAL");
+        }
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+
+        ExtractionReport report = db.extractTo(new File(targetDir), 4, true);
+        assert report.isSuccessful();
+        assert report.getFiles() > 20;
+        assert report.getBytes() > 0;
+
+        // everything in the zip is now on disk, with the same content
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(zipPath);
+        Enumeration<? extends java.util.zip.ZipEntry> entries = zf.entries();
+        int count = 0;
+        while (entries.hasMoreElements())
+        {
+            java.util.zip.ZipEntry entry = entries.nextElement();
+            File extracted = new File(targetDir, entry.getName());
+            assert extracted.exists();
+            assert Arrays.equals(FileUtils.readFileToByteArray(extracted), this.readInput(zf.getInputStream(entry), 1000));
+            count++;
+        }
+        zf.close();
+        assert count == report.getFiles();
+
+        // a corrupted file is reported when verifying
+        FileUtils.deleteDirectory(new File(targetDir));
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("file5.txt", "corrupted");
+        this.rewriteZip(zipPath, badPath, replace);
+
+        DANSBag bad = new DANSBag(badPath, workingDir);
+        report = bad.extractTo(new File(targetDir), 4, true);
+        assert !report.isSuccessful();
+        assert report.getFailures().size() == 1;
+        assert report.getFailures().get(0).getPath().endsWith("file5.txt");
+        assert report.getFailures().get(0).getStatus() == ValidationReport.Status.CHECKSUM_MISMATCH;
+        assert !new File(targetDir + "/testbag/" + report.getFailures().get(0).getPath()).exists();
+        assert new File(targetDir + "/testbag/" + report.getFailures().get(0).getPath().replace("file5", "file8")).exists();
+
+        // an interrupted extraction says so, rather than looking complete
+        FileUtils.deleteDirectory(new File(targetDir));
+        java.util.concurrent.ExecutorService busy = java.util.concurrent.Executors.newSingleThreadExecutor();
+        final java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(1);
+        busy.submit(new java.util.concurrent.Callable<Object>()
+        {
+            public Object call()
+                    throws Exception
+            {
+                latch.await();
+                return null;
+            }
+        });
+        BagExtractor extractor = new BagExtractor(new File(zipPath));
+        extractor.setExecutor(busy);
+        Thread.currentThread().interrupt();
+        report = extractor.extractTo(new File(targetDir));
+        assert Thread.interrupted();
+        assert report.isInterrupted();
+        assert !report.isSuccessful();
+        latch.countDown();
+        busy.shutdown();
+
+        // but not when not verifying
+        FileUtils.deleteDirectory(new File(targetDir));
+        report = bad.extractTo(new File(targetDir), 4, false);
+        assert report.isSuccessful();
+    }
+
+    @Test
+    public void testCatalogCache()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testcachebag";
+        this.cleanup.add(workingDir);
+
+        String zipPath1 = System.getProperty("user.dir") + "/src/test/resources/working/testcachebag1.zip";
+        this.cleanup.add(zipPath1);
+
+        String zipPath2 = System.getProperty("user.dir") + "/src/test/resources/working/testcachebag2.zip";
+        this.cleanup.add(zipPath2);
+
+        for (String zipPath : new String[] { zipPath1, zipPath2 })
+        {
+            DANSBag db = new DANSBag("testbag", zipPath, workingDir + "/build");
+            for (int i = 0; i < 5; i++)
+            {
+                db.addBitstream(new ByteArrayInputStream(("content " + i).getBytes()), "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/1", "ORIGINAL");
+            }
+            DIM dim = new DIM();
+            dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+            db.setDatasetDIM(dim);
+            db.writeToFile();
+            db.cleanupWorkingDir();
+        }
+
+        // each bag weighs 1 + 5 bitstreams, so there is room for only one of them
+        BagCatalogCache cache = new BagCatalogCache(10);
+        DANSBag.setCatalogCache(cache);
+        try
+        {
+            DANSBag first = new DANSBag(zipPath1, workingDir);
+            assert cache.getMisses() == 1;
+            assert cache.getHits() == 0;
+
+            // opening and reloading the same zip is served from the cache
+            DANSBag second = new DANSBag(zipPath1, workingDir);
+            second.loadBag();
+            assert cache.getMisses() == 1;
+            assert cache.getHits() == 2;
+            assert second.dataFileIdents().equals(first.dataFileIdents());
+
+            // each bag gets its own copy of the shared DIMs, so changes stay with the bag that made them
+            assert second.getDatasetDIM() != first.getDatasetDIM();
+            second.getDatasetDIM().addDSpaceField("dc.title", "changed");
+            assert second.getDatasetDIM().getDSpaceFieldValues("dc.title").size() == 1;
+            assert first.getDatasetDIM().getDSpaceFieldValues("dc.title") == null ||
+                    first.getDatasetDIM().getDSpaceFieldValues("dc.title").isEmpty();
+            assert new DANSBag(zipPath1, workingDir).getDatasetDIM().toXML().equals(first.getDatasetDIM().toXML());
+
+            // the shared references can't be changed through a bag, and survive its working directory going
+            first.setSpillThreshold(1);
+            first.cleanupWorkingDir();
+            for (String ident : second.dataFileIdents())
+            {
+                assert second.listBitstreams(ident, "ORIGINAL").size() == 5;
+                for (BaggedBitstream bb : second.listBitstreams(ident, "ORIGINAL"))
+                {
+                    assert new String(this.readInput(bb.getInputStream(), 100)).startsWith("content ");
+                    bb.close();
+                }
+            }
+
+            // a modified zip is loaded afresh, replacing the stale catalog
+            new File(zipPath1).setLastModified(new File(zipPath1).lastModified() - 10000);
+            new DANSBag(zipPath1, workingDir);
+            assert cache.getMisses() == 2;
+            assert cache.size() == 1;
+
+            // loading another bag evicts the least recently used, but a bag still using it can carry on
+            DANSBag current = new DANSBag(zipPath1, workingDir);
+            new DANSBag(zipPath2, workingDir);
+            assert cache.getMisses() == 3;
+            assert cache.getEvictions() == 1;
+            assert cache.size() == 1;
+            assert cache.getWeight() <= 10;
+            for (String ident : current.dataFileIdents())
+            {
+                assert current.listBitstreams(ident, "ORIGINAL").size() == 5;
+            }
+            current.cleanupWorkingDir();
+        }
+        finally
+        {
+            DANSBag.setCatalogCache(null);
+        }
+    }
+
+    @Test
+    public void testBagIndex()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testindexbag";
+        this.cleanup.add(workingDir);
+
+        String indexedPath = System.getProperty("user.dir") + "/src/test/resources/working/testindexbag.zip";
+        this.cleanup.add(indexedPath);
+
+        String plainPath = System.getProperty("user.dir") + "/src/test/resources/working/testindexbag-plain.zip";
+        this.cleanup.add(plainPath);
+
+        for (String zipPath : new String[] { indexedPath, plainPath })
+        {
+            DANSBag db = new DANSBag("testbag", zipPath, workingDir + "/build");
+            db.setWriteIndex(zipPath.equals(indexedPath));
+            for (int i = 0; i < 10; i++)
+            {
+                db.addBitstream(new ByteArrayInputStream(("content " + i).getBytes()), "file" + i + ".txt",
+                        i % 2 == 0 ? "text/plain" : null, i % 3 == 0 ? null : "file " + i, "10.whatever/ident/" + (i % 3), i < 5 ? "ORIGINAL" : "LICENSE");
+            }
+            DIM dim = new DIM();
+            dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+            db.setDatasetDIM(dim);
+            DIM dfDim = new DIM();
+            dfDim.addDSpaceField("dc.identifier", "10.whatever/ident/1");
+            db.addDatafileDIM(dfDim, "10.whatever/ident/1");
+            db.writeToFile();
+            db.cleanupWorkingDir();
+        }
+
+        // the index is the first entry in the zip, and is not compressed
+        java.util.zip.ZipInputStream zis = new java.util.zip.ZipInputStream(new FileInputStream(indexedPath));
+        java.util.zip.ZipEntry first = zis.getNextEntry();
+        assert first.getName().equals("testbag/bag-index.bin");
+        assert first.getMethod() == java.util.zip.ZipEntry.STORED;
+        zis.close();
+
+        // and the bag is still valid
+        DANSBag indexed = new DANSBag(indexedPath, workingDir);
+        assert indexed.validate().isValid();
+
+        // a bag loaded from its index looks exactly like one loaded from its tag files
+        DANSBag plain = new DANSBag(plainPath, workingDir);
+        assert indexed.dataFileIdents().equals(plain.dataFileIdents());
+        assert indexed.getDatasetDIM().toXML().equals(plain.getDatasetDIM().toXML());
+        for (String ident : plain.dataFileIdents())
+        {
+            DIM plainDim = plain.getDatafileDIM(ident);
+            DIM indexedDim = indexed.getDatafileDIM(ident);
+            assert (plainDim == null && indexedDim == null) || plainDim.toXML().equals(indexedDim.toXML());
+
+            assert indexed.listBundles(ident).equals(plain.listBundles(ident));
+            for (String bundle : plain.listBundles(ident))
+            {
+                Map<String, BaggedBitstream> expected = new HashMap<String, BaggedBitstream>();
+                for (BaggedBitstream bb : plain.listBitstreams(ident, bundle))
+                {
+                    expected.put(bb.getFilename(), bb);
+                }
+                Set<BaggedBitstream> actual = indexed.listBitstreams(ident, bundle);
+                assert actual.size() == expected.size();
+                for (BaggedBitstream bb : actual)
+                {
+                    BaggedBitstream other = expected.get(bb.getFilename());
+                    assert other != null;
+                    assert bb.getDataFileIdent().equals(other.getDataFileIdent());
+                    assert bb.getBundle().equals(other.getBundle());
+                    assert bb.getFormat() == null ? other.getFormat() == null : bb.getFormat().equals(other.getFormat());
+                    assert bb.getDescription() == null ? other.getDescription() == null : bb.getDescription().equals(other.getDescription());
+                    assert bb.getSize() == other.getSize();
+                    assert bb.getMd5().equals(other.getMd5());
+                    assert bb.getSha1().equals(other.getSha1());
+                    assert Arrays.equals(this.readInput(bb.getInputStream(), 100), this.readInput(other.getInputStream(), 100));
+                    bb.close();
+                    other.close();
+                }
+            }
+        }
+
+        // a bag loaded from its index, with its DIMs not yet parsed, can be written out again whole
+        DANSBag reloaded = new DANSBag(indexedPath, workingDir + "/reloaded");
+        reloaded.setWriteIndex(true);
+        ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+        reloaded.writeTo(rewritten);
+        assert this.entryNames(new FileInputStream(indexedPath)).equals(
+                this.entryNames(new ByteArrayInputStream(rewritten.toByteArray())));
+        reloaded.cleanupWorkingDir();
+    }
+
+    private List<String> entryNames(InputStream in)
+            throws IOException
+    {
+        List<String> names = new ArrayList<String>();
+        java.util.zip.ZipInputStream zis = new java.util.zip.ZipInputStream(in);
+        java.util.zip.ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            names.add(entry.getName());
+        }
+        zis.close();
+        return names;
+    }
+
+    @Test
+    public void testSelectiveLoad()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testselectbag";
+        this.cleanup.add(workingDir);
+
+        String plainPath = System.getProperty("user.dir") + "/src/test/resources/working/testselectbag.zip";
+        this.cleanup.add(plainPath);
+
+        String indexedPath = System.getProperty("user.dir") + "/src/test/resources/working/testselectbag-indexed.zip";
+        this.cleanup.add(indexedPath);
+
+        for (String zipPath : new String[] { plainPath, indexedPath })
+        {
+            DANSBag db = new DANSBag("testbag", zipPath, workingDir + "/build");
+            db.setWriteIndex(zipPath.equals(indexedPath));
+            for (int i = 0; i < 12; i++)
+            {
+                db.addBitstream(new ByteArrayInputStream(("content " + i).getBytes()), "file" + i + ".txt", "text/plain",
+                        "file " + i, "10.whatever/ident/" + (i % 3), i % 2 == 0 ? "ORIGINAL" : "LICENSE");
+            }
+            DIM dim = new DIM();
+            dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+            db.setDatasetDIM(dim);
+            for (int i = 0; i < 3; i++)
+            {
+                DIM dfDim = new DIM();
+                dfDim.addDSpaceField("dc.identifier", "10.whatever/ident/" + i);
+                db.addDatafileDIM(dfDim, "10.whatever/ident/" + i);
+            }
+            db.writeToFile();
+            db.cleanupWorkingDir();
+        }
+
+        for (String zipPath : new String[] { plainPath, indexedPath })
+        {
+            // find out what the data file is called in the bag
+            String wanted = null;
+            for (String ident : new DANSBag(zipPath, workingDir).dataFileIdents())
+            {
+                if (ident.endsWith("1"))
+                {
+                    wanted = ident;
+                }
+            }
+            final String selectedIdent = wanted;
+
+            DANSBag bag = new DANSBag(zipPath, workingDir);
+            bag.loadBag(new DANSBag.LoadFilter()
+            {
+                public boolean accept(String dataFileIdent, String bundle, String payloadPath)
+                {
+                    return selectedIdent.equals(dataFileIdent) && "ORIGINAL".equals(bundle);
+                }
+            });
+
+            assert bag.dataFileIdents().size() == 1;
+            assert bag.dataFileIdents().contains(selectedIdent);
+            assert bag.listBundles(selectedIdent).size() == 1;
+            assert bag.getDatasetDIM() != null;
+            assert bag.getDatafileDIM(selectedIdent) != null;
+            for (String ident : new DANSBag(zipPath, workingDir).dataFileIdents())
+            {
+                if (!ident.equals(selectedIdent))
+                {
+                    assert bag.getDatafileDIM(ident) == null;
+                }
+            }
+
+            Set<BaggedBitstream> bbs = bag.listBitstreams(selectedIdent, "ORIGINAL");
+            assert bbs.size() == 2;
+            for (BaggedBitstream bb : bbs)
+            {
+                assert bb.getFormat().equals("text/plain");
+                assert bb.getDescription().startsWith("file ");
+                assert bb.getMd5() != null;
+                assert new String(this.readInput(bb.getInputStream(), 100)).startsWith("content ");
+                bb.close();
+            }
+        }
+    }
+
+    @Test
+    public void testTagFileStreaming()
+            throws Exception
+    {
+        TagFile tf = new TagFile();
+        for (int i = 0; i < 100000; i++)
+        {
+            tf.add("data/10.5061_dryad.q447c_" + (i % 100) + "/ORIGINAL/file" + i + ".txt", Integer.toHexString(i * 31));
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tf.writeTo(baos);
+        assert new String(baos.toByteArray(), "UTF-8").equals(tf.serialise());
+
+        // stream back through the entries without holding them
+        final int[] count = new int[1];
+        TagFile.read(new ByteArrayInputStream(baos.toByteArray()), new TagFile.EntryHandler()
+        {
+            public void entry(String path, String value)
+            {
+                assert path.startsWith("data/");
+                count[0]++;
+            }
+        });
+        assert count[0] == 100000;
+
+        TagFile parsed = TagFile.parse(new ByteArrayInputStream(baos.toByteArray()));
+        assert parsed.getPaths().equals(tf.getPaths());
+        for (String path : tf.getPaths())
+        {
+            assert parsed.getValue(path).equals(tf.getValue(path));
+        }
+
+        // windows line endings, non-ascii paths and lines without a tab
+        String odd = "abc\tdata/caf\u00e9.txt\r\nnot a tag line\r\nvalue\twith\ttabs\tdata/x.txt\r\n";
+        TagFile oddTf = TagFile.parse(new ByteArrayInputStream(odd.getBytes("UTF-8")));
+        assert oddTf.getPaths().size() == 2;
+        assert oddTf.getValue("data/caf\u00e9.txt").equals("abc");
+        assert oddTf.getValue("data/x.txt").equals("value\twith\ttabs");
+    }
+
+    @Test
+    public void testBagDiff()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testdiffbag";
+        this.cleanup.add(workingDir);
+
+        String oldPath = System.getProperty("user.dir") + "/src/test/resources/working/testdiffbag-old.zip";
+        this.cleanup.add(oldPath);
+        String newPath = System.getProperty("user.dir") + "/src/test/resources/working/testdiffbag-new.zip";
+        this.cleanup.add(newPath);
+        String unsortedPath = System.getProperty("user.dir") + "/src/test/resources/working/testdiffbag-unsorted.zip";
+        this.cleanup.add(unsortedPath);
+
+        DANSBag oldBag = new DANSBag("testbag", oldPath, workingDir + "/old");
+        DANSBag newBag = new DANSBag("testbag", newPath, workingDir + "/new");
+        for (int i = 9; i >= 0; i--)
+        {
+            if (i != 0)
+            {
+                newBag.addBitstream(new ByteArrayInputStream(("content " + i + (i == 4 ? " changed" : "")).getBytes()),
+                        "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/1", "ORIGINAL");
+            }
+            if (i != 7)
+            {
+                oldBag.addBitstream(new ByteArrayInputStream(("content " + i).getBytes()),
+                        "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/1", "ORIGINAL");
+            }
+        }
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        oldBag.setDatasetDIM(dim);
+        newBag.setDatasetDIM(dim);
+        oldBag.writeToFile();
+        oldBag.cleanupWorkingDir();
+        newBag.writeToFile();
+        newBag.cleanupWorkingDir();
+
+        // the bitstreams were added in reverse, but the manifest is in path order
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(newPath);
+        String manifest = new String(this.readInput(zf.getInputStream(zf.getEntry("testbag/manifest-md5.txt")), 100), "UTF-8");
+        zf.close();
+        String previous = null;
+        for (String line : manifest.split("\n"))
+        {
+            String path = line.substring(line.lastIndexOf("\t") + 1);
+            assert previous == null || previous.compareTo(path) < 0;
+            previous = path;
+        }
+
+        List<BagDiff.Difference> diffs = new BagDiff(new File(oldPath), new File(newPath)).diff();
+        this.checkDiff(diffs);
+
+        // a bag whose tag files are not sorted is compared in memory, with the same outcome
+        StringBuilder reversed = new StringBuilder();
+        String[] lines = manifest.split("\n");
+        for (int i = lines.length - 1; i >= 0; i--)
+        {
+            reversed.append(lines[i]).append("\n");
+        }
+        Map<String, String> replace = new HashMap<String, String>();
+        replace.put("/manifest-md5.txt", reversed.toString());
+        replace.put("/manifest-sha1.txt", null);
+        this.rewriteZip(newPath, unsortedPath, replace);
+
+        this.checkDiff(new BagDiff(new File(oldPath), new File(unsortedPath)).diff());
+        assert new BagDiff(new File(oldPath), new File(oldPath)).diff().isEmpty();
+    }
+
+    @Test
+    public void testContentStore()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/teststorebag";
+        this.cleanup.add(workingDir);
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/teststorebag.zip";
+        this.cleanup.add(zipPath);
+
+        File storeDir = new File(workingDir + "/store");
+        ContentStore store = new ContentStore(storeDir, 1024 * 1024);
+
+        DANSBag first = new DANSBag("testbag", workingDir + "/first.zip", workingDir + "/first");
+        first.setContentStore(store);
+        for (int i = 0; i < 3; i++)
+        {
+            first.addBitstream(new ByteArrayInputStream(("content " + i).getBytes()), "file" + i + ".txt", "text/plain",
+                    "file " + i, "10.whatever/ident/1", "ORIGINAL");
+        }
+        assert store.size() == 3;
+        assert store.getBytes() == 27;
+
+        // the second build knows the checksums up front, so never needs to read the content
+        BaggedBitstream.StreamSource unused = new BaggedBitstream.StreamSource()
+        {
+            public InputStream open()
+            {
+                throw new AssertionError("the content should have come from the store");
+            }
+        };
+        DANSBag second = new DANSBag("testbag", zipPath, workingDir + "/second");
+        second.setContentStore(store);
+        for (int i = 0; i < 3; i++)
+        {
+            byte[] content = ("content " + i).getBytes();
+            second.addBitstream(unused, content.length, Files.md5Hex(new ByteArrayInputStream(content)), "file" + i + ".txt",
+                    "text/plain", "file " + i, "10.whatever/ident/1", "ORIGINAL");
+        }
+        assert store.getHits() == 3;
+        assert store.getBytesSaved() == 27;
+
+        // content the store doesn't hold is read from its source, and checked against the checksum given
+        final byte[] other = "other content".getBytes();
+        BaggedBitstream.StreamSource source = new BaggedBitstream.StreamSource()
+        {
+            public InputStream open()
+            {
+                return new ByteArrayInputStream(other);
+            }
+        };
+        try
+        {
+            second.addBitstream(source, other.length, "00000000000000000000000000000000", "bad.txt", "text/plain",
+                    "bad", "10.whatever/ident/1", "ORIGINAL");
+            assert false;
+        }
+        catch (FixityException e)
+        {
+            assert e.getAlgorithm().equals("MD5");
+        }
+        second.addBitstream(source, other.length, Files.md5Hex(new ByteArrayInputStream(other)), "other.txt", "text/plain",
+                "other", "10.whatever/ident/1", "ORIGINAL");
+        assert store.getMisses() == 2;
+        assert store.getHitRate() == 0.6;
+        assert store.size() == 4;
+
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        second.setDatasetDIM(dim);
+        second.writeToFile();
+        second.cleanupWorkingDir();
+
+        DANSBag loaded = new DANSBag(zipPath, workingDir + "/loaded");
+        String ident = loaded.dataFileIdents().iterator().next();
+        Set<BaggedBitstream> bitstreams = loaded.listBitstreams(ident, "ORIGINAL");
+        assert bitstreams.size() == 4;
+        for (BaggedBitstream bs : bitstreams)
+        {
+            assert !bs.getFilename().equals("bad.txt");
+            byte[] content = this.readInput(bs.getInputStream(), 100);
+            bs.close();
+            assert Files.md5Hex(new ByteArrayInputStream(content)).equals(bs.getMd5());
+        }
+        assert loaded.validate().isValid();
+
+        // the store survives a restart, and evicts the least recently used content when it is shrunk
+        ContentStore reopened = new ContentStore(storeDir, 1024 * 1024);
+        assert reopened.size() == 4;
+        reopened.setMaxBytes(20);
+        assert reopened.getEvictions() >= 2;
+        assert reopened.size() == 4 - reopened.getEvictions();
+        assert reopened.getBytes() <= 20;
+    }
+
+    private void checkDiff(List<BagDiff.Difference> diffs)
+    {
+        assert diffs.size() == 3;
+
+        assert diffs.get(0).getChange() == BagDiff.Change.REMOVED;
+        assert diffs.get(0).getPath().endsWith("file0.txt");
+        assert diffs.get(0).getOldSize() == "content 0".length();
+        assert diffs.get(0).getNewChecksum() == null;
+
+        assert diffs.get(1).getChange() == BagDiff.Change.CHANGED;
+        assert diffs.get(1).getPath().endsWith("file4.txt");
+        assert diffs.get(1).getOldSize() == "content 4".length();
+        assert diffs.get(1).getNewSize() == "content 4 changed".length();
+        assert !diffs.get(1).getOldChecksum().equals(diffs.get(1).getNewChecksum());
+
+        assert diffs.get(2).getChange() == BagDiff.Change.ADDED;
+        assert diffs.get(2).getPath().endsWith("file7.txt");
+        assert diffs.get(2).getOldChecksum() == null;
+    }
+
+    private void checkRange(DANSBag bag, byte[] content, int offset, int length)
+            throws Exception
+    {
+        String ident = bag.dataFileIdents().iterator().next();
+        InputStream is = bag.getBitstreamRange(ident, "ORIGINAL", "range.bin", offset, length);
+        byte[] range = this.readInput(is, 100);
+        is.close();
+
+        int expected = Math.min(length, content.length - offset);
+        assert range.length == expected;
+        for (int i = 0; i < expected; i++)
+        {
+            assert range[i] == content[offset + i];
+        }
+    }
+
+    @Test
+    public void testStreamingXML()
+            throws Exception
+    {
+        String awkward = "  leading & <trailing> \"quoted\" ]]> \n next line\r\n\ttabbed  caf\u00e9 \ud834\udd1e ";
+
+        // empty documents
+        this.checkStreamed(new DIM());
+        this.checkStreamed(new DDM());
+        this.checkStreamed(new DANSFiles());
+
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.title", awkward);
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        dim.addField("dc", "description", "abstract", "");
+        dim.addField("dc", "subject", null, "   ");
+        this.checkStreamed(dim);
+
+        DDM ddm = new DDM();
+        Map<String, String> attrs = new HashMap<String, String>();
+        attrs.put("xsi:type", "id-type:DOI & \"more\"");
+        ddm.addProfileField("dc:title", awkward);
+        ddm.addProfileField("ddm:audience", "D20000", attrs);
+        ddm.addProfileField("dc:unordered", "not in the profile order");
+        ddm.addDCMIField("dcterms:identifier", "10.1234/ident/a", attrs);
+        ddm.addDCMIField("dcterms:description", awkward);
+        this.checkStreamed(ddm);
+
+        DANSFiles dfs = new DANSFiles();
+        for (int i = 0; i < 1000; i++)
+        {
+            String path = "data/10.5061_dryad.q447c_" + (i % 10) + "/ORIGINAL/file " + i + " & <" + i + ">.txt";
+            dfs.addFileMetadata(path, "dcterms:title", "file " + i);
+            dfs.addFileMetadata(path, "dcterms:identifier", "10.5061/dryad.q447c/" + (i % 10));
+            dfs.addFileMetadata(path, "dcterms:description", i % 7 == 0 ? awkward : "");
+            dfs.addFileMetadata(path, "dcterms:extent", Integer.toString(i));
+            dfs.addFileMetadata(path, "unknown:field", "dropped");
+        }
+        this.checkStreamed(dfs);
+    }
+
+    @Test
+    public void testSpooledFiles()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testspool";
+        this.cleanup.add(workingDir);
+        new File(workingDir).mkdirs();
+
+        // a single spooled file comes out exactly as it would have from memory
+        DANSFiles plain = new DANSFiles();
+        DANSFiles spooled = new DANSFiles();
+        File spoolFile = new File(workingDir, "single.spool");
+        spooled.spoolTo(spoolFile);
+        for (DANSFiles dfs : new DANSFiles[] { plain, spooled })
+        {
+            dfs.addFileMetadata("data/a & b.txt", "dcterms:title", "a & b.txt");
+            dfs.addFileMetadata("data/a & b.txt", "dcterms:identifier", "10.1234/a");
+            dfs.addFileMetadata("data/a & b.txt", "dcterms:extent", "10");
+        }
+        spooled.spool("data/a & b.txt");
+        assert spooled.toXML().equals(plain.toXML());
+        spooled.close();
+        assert !spoolFile.exists();
+
+        // spooled files come first, in the order they were spooled, followed by those still in memory
+        DANSFiles many = new DANSFiles();
+        many.spoolTo(new File(workingDir, "many.spool"));
+        List<String> spoolOrder = new ArrayList<String>();
+        for (int i = 0; i < 500; i++)
+        {
+            String path = "data/file" + ((i * 7919) % 500) + ".txt";
+            many.addFileMetadata(path, "dcterms:title", "file " + i);
+            many.addFileMetadata(path, "dcterms:format", "text/plain");
+            if (i < 490)
+            {
+                many.spool(path);
+                spoolOrder.add(path);
+            }
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        many.writeTo(baos);
+        many.close();
+
+        nu.xom.Element root = new nu.xom.Builder().build(new ByteArrayInputStream(baos.toByteArray())).getRootElement();
+        nu.xom.Elements files = root.getChildElements("file");
+        assert files.size() == 500;
+        for (int i = 0; i < spoolOrder.size(); i++)
+        {
+            assert files.get(i).getAttributeValue("filepath").equals(spoolOrder.get(i));
+        }
+        assert new String(baos.toByteArray(), "UTF-8").startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n<files ");
+    }
+
+    private void checkStreamed(XMLFile xml)
+            throws Exception
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        xml.writeTo(baos);
+        assert Arrays.equals(baos.toByteArray(), xml.toXML().getBytes("UTF-8"));
+    }
+
     @Test
     public void testDIM()
             throws Exception
@@ -438,6 +1675,656 @@ public class BagItTest
 
     ////////////////////////////////////////////////////////////
 
+    @Test
+    public void testDIMLookup()
+            throws Exception
+    {
+        DIM dim = new DIM();
+        for (int i = 0; i < 10000; i++)
+        {
+            dim.addDSpaceField("dc.subject", "subject " + i);
+            dim.addDSpaceField("dc.subject.other", "other " + i);
+        }
+        dim.addDSpaceField("dc.date.lastModified", "2016-04-28");
+
+        // a field without a qualifier only finds values without a qualifier, in the order they were added
+        List<String> subjects = dim.getDSpaceFieldValues("dc.subject");
+        assert subjects.size() == 10000;
+        assert subjects.get(0).equals("subject 0");
+        assert subjects.get(9999).equals("subject 9999");
+        assert dim.getDSpaceFieldValues("dc.subject.other").size() == 10000;
+        assert dim.getDSpaceFieldValues("dc.subject.").size() == 10000;
+        assert dim.getDSpaceFieldValues("dc.date.lastModified").get(0).equals("2016-04-28");
+        assert dim.getDSpaceFieldValues("dc.date").isEmpty();
+        assert dim.getDSpaceFieldValues("dc.nothing").isEmpty();
+
+        // the values returned belong to the caller
+        subjects.clear();
+        assert dim.getDSpaceFieldValues("dc.subject").size() == 10000;
+
+        assert dim.listDSpaceFields().size() == 3;
+
+        // the XML keeps the fields in the order they were added
+        String xml = dim.toXML();
+        assert xml.indexOf(">subject 0<") < xml.indexOf(">other 0<");
+        assert xml.indexOf(">other 0<") < xml.indexOf(">subject 1<");
+    }
+
+    @Test
+    public void testDIMParse()
+            throws Exception
+    {
+        // awkward content: entities, character references, CDATA, comments and nested markup inside values
+        String doc = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<dim:dim xmlns:dim=\"http://www.dspace.org/xmlns/dspace/dim\" dspaceType=\"ITEM\">\n" +
+                "  <!-- a comment -->\n" +
+                "  <dim:field mdschema=\"dc\" element=\"title\">Fish &amp; chips &#233; <![CDATA[<raw>]]></dim:field>\n" +
+                "  <dim:field mdschema=\"dc\" element=\"description\" qualifier=\"abstract\" xml:lang=\"en\">one <b>two</b><!-- no --> three</dim:field>\n" +
+                "  <dim:field mdschema=\"dc\" element=\"subject\"/>\n" +
+                "  <dim:field element=\"orphan\">  spaced\n  out  </dim:field>\n" +
+                "</dim:dim>";
+        DIM dim = DIM.parse(new ByteArrayInputStream(doc.getBytes("UTF-8")));
+        assert dim.getDSpaceFieldValues("dc.title").get(0).equals("Fish & chips \u00e9 <raw>");
+        assert dim.getDSpaceFieldValues("dc.description.abstract").get(0).equals("one two three");
+        assert dim.getDSpaceFieldValues("dc.subject").get(0).equals("");
+        assert dim.toXML().equals(this.parseWithXOM(doc.getBytes("UTF-8")).toXML());
+
+        // a large document parses to the same DIM as through a XOM tree
+        DIM large = new DIM();
+        for (int i = 0; i < 50000; i++)
+        {
+            large.addDSpaceField("dc.subject" + (i % 3 == 0 ? ".other" : ""), "subject & <" + i + ">");
+        }
+        byte[] xml = large.toXML().getBytes("UTF-8");
+
+        DIM parsed = DIM.parse(new ByteArrayInputStream(xml));
+        DIM viaTree = this.parseWithXOM(xml);
+        assert parsed.toXML().equals(viaTree.toXML());
+        assert parsed.getDSpaceFieldValues("dc.subject.other").size() == 16667;
+    }
+
+    /**
+     * Parse a DIM by building a XOM document and walking it, as a reference for DIM.parse
+     */
+    private DIM parseWithXOM(byte[] xml)
+            throws Exception
+    {
+        nu.xom.Element root = new nu.xom.Builder().build(new ByteArrayInputStream(xml)).getRootElement();
+        DIM dim = new DIM();
+        nu.xom.Elements fields = root.getChildElements();
+        for (int i = 0; i < fields.size(); i++)
+        {
+            nu.xom.Element field = fields.get(i);
+            dim.addField(field.getAttributeValue("mdschema"), field.getAttributeValue("element"),
+                    field.getAttributeValue("qualifier"), field.getValue());
+        }
+        return dim;
+    }
+
+    @Test
+    public void testSchemaValidation()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testschema";
+        this.cleanup.add(workingDir);
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testschema.zip";
+        this.cleanup.add(zipPath);
+        String badZipPath = System.getProperty("user.dir") + "/src/test/resources/working/testschema-bad.zip";
+        this.cleanup.add(badZipPath);
+
+        Map<String, String> doi = new HashMap<String, String>();
+        doi.put("xsi:type", "id-type:DOI");
+
+        // documents as the library writes them are valid
+        DDM ddm = new DDM();
+        ddm.addProfileField("dc:title", "The Title");
+        ddm.addProfileField("dc:creator", "Creator 1");
+        ddm.addProfileField("ddm:created", "2016-05-01");
+        ddm.addProfileField("ddm:audience", "D20000");
+        ddm.addProfileField("ddm:accessRights", "OPEN_ACCESS");
+        ddm.addDCMIField("dcterms:identifier", "10.4321/main", doi);
+        assert ddm.validate().isEmpty();
+
+        DANSFiles dfs = new DANSFiles();
+        dfs.addFileMetadata("data/file1.txt", "dcterms:title", "file1.txt");
+        dfs.addFileMetadata("data/file1.txt", "dcterms:format", "text/plain");
+        assert dfs.validate().isEmpty();
+        assert new DANSFiles().validate().isEmpty();
+
+        // each problem is reported, with where it was found
+        DDM bad = new DDM();
+        bad.addProfileField("dc:title", "The Title");
+        bad.addProfileField("ddm:audience", "Humanities");
+        bad.addProfileField("ddm:accessRights", "EVERYONE");
+        bad.addDCMIField("dcterms:identifier", "not a doi", doi);
+        List<String> errors = bad.validate();
+        assert errors.size() >= 3;
+        assert errors.toString().contains("DOI");
+        assert errors.get(0).matches("\\d+:\\d+: .*");
+
+        // the bag can check its documents as it writes them, and afterwards
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir + "/good");
+        db.setValidateMetadata(true);
+        db.addBitstream(new ByteArrayInputStream("content".getBytes()), "file1.txt", "text/plain", "file 1", "10.whatever/ident/1", "ORIGINAL");
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.setDDM(ddm);
+        db.writeToFile();
+        ValidationReport report = db.validateMetadata();
+        assert report.isValid();
+        assert report.getResults().size() == 2;
+
+        DANSBag badBag = new DANSBag("testbag", badZipPath, workingDir + "/bad");
+        badBag.setValidateMetadata(true);
+        badBag.setDatasetDIM(dim);
+        badBag.setDDM(bad);
+        try
+        {
+            badBag.writeToFile();
+            assert false;
+        }
+        catch (RuntimeException e)
+        {
+            assert e.getCause() instanceof SchemaValidationException;
+            assert ((SchemaValidationException) e.getCause()).getPath().endsWith("metadata/dataset.xml");
+            assert ((SchemaValidationException) e.getCause()).getErrors().size() == errors.size();
+        }
+
+        // the failed write leaves neither a partial zip nor the spooled files.xml behind
+        assert !new File(badZipPath).exists();
+        String[] left = new File(workingDir + "/bad").list();
+        for (String name : left == null ? new String[0] : left)
+        {
+            assert !(name.startsWith("files") && name.endsWith(".xml"));
+        }
+
+        // a bag written without checking can still be checked afterwards
+        badBag = new DANSBag("testbag", badZipPath, workingDir + "/bad2");
+        badBag.setDatasetDIM(dim);
+        badBag.setDDM(bad);
+        badBag.writeToFile();
+        report = badBag.validateMetadata();
+        assert !report.isValid();
+        assert report.getFailures().size() == 1;
+        assert report.getFailures().get(0).getStatus() == ValidationReport.Status.SCHEMA_INVALID;
+    }
+
+    @Test
+    public void testBagBatch()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testbatch";
+        this.cleanup.add(workingDir);
+
+        // room for two builds of 1000 bytes at a time, with a giant second in the queue
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(4);
+        final BagBatch batch = new BagBatch(executor, 2, 2000, 4000);
+        batch.setMaxBypass(2);
+
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        final int[] peakRunning = { 0 };
+        final long[] peakStaging = { 0 };
+        List<java.util.concurrent.Future<DANSBag>> futures = new ArrayList<java.util.concurrent.Future<DANSBag>>();
+        String[] names = { "small0", "giant", "small1", "small2", "small3", "small4", "small5" };
+        for (final String name : names)
+        {
+            final int size = name.equals("giant") ? 5000 : 1000;
+            DANSBag bag = new DANSBag(name, workingDir + "/" + name + ".zip", workingDir + "/" + name);
+            futures.add(batch.submit(bag, size, new BagBatch.Builder()
+            {
+                public void build(DANSBag bag)
+                        throws Exception
+                {
+                    started.add(name);
+                    synchronized (peakRunning)
+                    {
+                        peakRunning[0] = Math.max(peakRunning[0], batch.getRunning());
+                        if (name.equals("giant"))
+                        {
+                            // the giant is larger than the budget, so runs on its own
+                            assert batch.getRunning() == 1;
+                        }
+                        else
+                        {
+                            peakStaging[0] = Math.max(peakStaging[0], batch.getStagingBytes());
+                        }
+                    }
+                    bag.addBitstream(new ByteArrayInputStream(new byte[size]), "file.bin", "application/octet-stream",
+                            "file", "10.whatever/ident/1", "ORIGINAL");
+                    DIM dim = new DIM();
+                    dim.addDSpaceField("dc.identifier", "10.1234/" + name);
+                    bag.setDatasetDIM(dim);
+                    Thread.sleep(20);
+                }
+            }));
+        }
+
+        // a build which fails is cleaned up and does not hold on to its share
+        DANSBag broken = new DANSBag("broken", workingDir + "/broken.zip", workingDir + "/broken");
+        java.util.concurrent.Future<DANSBag> brokenFuture = batch.submit(broken, 100, new BagBatch.Builder()
+        {
+            public void build(DANSBag bag)
+                    throws Exception
+            {
+                throw new IOException("source unavailable");
+            }
+        });
+
+        for (java.util.concurrent.Future<DANSBag> future : futures)
+        {
+            DANSBag bag = future.get();
+            assert new File(bag.getZipPath()).exists();
+            assert !new File(bag.getWorkingDir()).exists();
+        }
+        try
+        {
+            brokenFuture.get();
+            assert false;
+        }
+        catch (java.util.concurrent.ExecutionException e)
+        {
+            assert e.getCause() instanceof IOException;
+        }
+        assert !new File(workingDir + "/broken.zip").exists();
+        executor.shutdown();
+
+        // the giant waited for room, but was passed over no more than twice
+        assert started.indexOf("giant") >= 1 && started.indexOf("giant") <= 3;
+        assert peakRunning[0] <= 2;
+        assert peakStaging[0] <= 2000;
+        assert batch.getCompleted() == names.length;
+        assert batch.getFailed() == 1;
+        assert batch.getRunning() == 0 && batch.getQueued() == 0;
+        assert batch.getStagingBytes() == 0 && batch.getDiskBytes() == 0;
+
+        // builds which stage more than they declared wait for each other's room rather than exceeding the budget
+        executor = java.util.concurrent.Executors.newFixedThreadPool(2);
+        final BagBatch under = new BagBatch(executor, 2, 2000, 4000);
+        futures.clear();
+        for (int i = 0; i < 2; i++)
+        {
+            DANSBag bag = new DANSBag("under" + i, workingDir + "/under" + i + ".zip", workingDir + "/under" + i);
+            futures.add(under.submit(bag, 0, new BagBatch.Builder()
+            {
+                public void build(DANSBag bag)
+                        throws Exception
+                {
+                    bag.addBitstream(new ByteArrayInputStream(new byte[1500]), "file.bin", "application/octet-stream",
+                            "file", "10.whatever/ident/1", "ORIGINAL");
+                    assert under.getStagingBytes() <= 2000;
+                    DIM dim = new DIM();
+                    dim.addDSpaceField("dc.identifier", "10.1234/under");
+                    bag.setDatasetDIM(dim);
+                    Thread.sleep(20);
+                }
+            }));
+        }
+        for (java.util.concurrent.Future<DANSBag> future : futures)
+        {
+            future.get(30, java.util.concurrent.TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assert under.getCompleted() == 2 && under.getStagingBytes() == 0;
+
+        // bitstreams of unknown size are accounted for as they are copied, not once they are already on disk
+        executor = java.util.concurrent.Executors.newFixedThreadPool(2);
+        final BagBatch streamed = new BagBatch(executor, 2, 64 * 1024, 128 * 1024);
+        final java.util.concurrent.atomic.AtomicLong read = new java.util.concurrent.atomic.AtomicLong();
+        futures.clear();
+        for (int i = 0; i < 4; i++)
+        {
+            DANSBag bag = new DANSBag("streamed" + i, workingDir + "/streamed" + i + ".zip", workingDir + "/streamed" + i);
+            futures.add(streamed.submit(bag, 0, new BagBatch.Builder()
+            {
+                public void build(DANSBag bag)
+                        throws Exception
+                {
+                    InputStream is = new InputStream()
+                    {
+                        private int remaining = 32 * 1024;
+
+                        public int read()
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+
+                        public int read(byte[] b, int off, int len)
+                        {
+                            synchronized (streamed)
+                            {
+                                // everything read so far is staged, bar the one chunk each build may be holding
+                                assert streamed.getStagingBytes() <= 64 * 1024;
+                                assert read.get() <= streamed.getStagingBytes() + 2 * 8192;
+                            }
+                            if (this.remaining == 0)
+                            {
+                                return -1;
+                            }
+                            int n = Math.min(Math.min(len, 8192), this.remaining);
+                            this.remaining -= n;
+                            read.addAndGet(n);
+                            return n;
+                        }
+                    };
+                    bag.addBitstream(is, "file.bin", "application/octet-stream", "file", "10.whatever/ident/1", "ORIGINAL");
+                    read.addAndGet(-32 * 1024);
+                    DIM dim = new DIM();
+                    dim.addDSpaceField("dc.identifier", "10.1234/streamed");
+                    bag.setDatasetDIM(dim);
+                }
+            }));
+        }
+        for (java.util.concurrent.Future<DANSBag> future : futures)
+        {
+            future.get(30, java.util.concurrent.TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assert streamed.getCompleted() == 4 && streamed.getStagingBytes() == 0;
+
+        // a build cancelled while it waits in a busy executor's queue gives its share back
+        executor = java.util.concurrent.Executors.newSingleThreadExecutor();
+        final java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(1);
+        executor.submit(new java.util.concurrent.Callable<Object>()
+        {
+            public Object call()
+                    throws Exception
+            {
+                latch.await();
+                return null;
+            }
+        });
+        BagBatch cancelling = new BagBatch(executor, 1, 2000, 4000);
+        DANSBag queued = new DANSBag("queued", workingDir + "/queued.zip", workingDir + "/queued");
+        java.util.concurrent.Future<DANSBag> queuedFuture = cancelling.submit(queued, 1000, new BagBatch.Builder()
+        {
+            public void build(DANSBag bag)
+                    throws Exception
+            {
+                assert false;
+            }
+        });
+        assert cancelling.getRunning() == 1 && cancelling.getStagingBytes() == 1000;
+        assert queuedFuture.cancel(false);
+        assert cancelling.getRunning() == 0 && cancelling.getQueued() == 0;
+        assert cancelling.getStagingBytes() == 0 && cancelling.getDiskBytes() == 0;
+        assert cancelling.getFailed() == 1;
+        assert !new File(workingDir + "/queued").exists();
+
+        // and the batch carries on starting builds
+        DANSBag next = new DANSBag("next", workingDir + "/next.zip", workingDir + "/next");
+        java.util.concurrent.Future<DANSBag> nextFuture = cancelling.submit(next, 1000, new BagBatch.Builder()
+        {
+            public void build(DANSBag bag)
+                    throws Exception
+            {
+                DIM dim = new DIM();
+                dim.addDSpaceField("dc.identifier", "10.1234/next");
+                bag.setDatasetDIM(dim);
+            }
+        });
+        assert cancelling.getRunning() == 1;
+        latch.countDown();
+        nextFuture.get(30, java.util.concurrent.TimeUnit.SECONDS);
+        executor.shutdown();
+        assert cancelling.getCompleted() == 1 && cancelling.getRunning() == 0 && cancelling.getStagingBytes() == 0;
+    }
+
+    @Test
+    public void testStagingSpace()
+            throws Exception
+    {
+        String workingDir = System.getProperty("user.dir") + "/src/test/resources/working/testspace";
+        this.cleanup.add(workingDir);
+        String overflowDir = System.getProperty("user.dir") + "/src/test/resources/working/testspace-overflow";
+        this.cleanup.add(overflowDir);
+        String zipPath = System.getProperty("user.dir") + "/src/test/resources/working/testspace.zip";
+        this.cleanup.add(zipPath);
+
+        // no volume has this much space to spare, so everything goes to the overflow directory
+        long unreachable = Long.MAX_VALUE / 4;
+        final byte[] content = "some content".getBytes();
+        DANSBag db = new DANSBag("testbag", zipPath, workingDir + "/bag");
+        db.setStagingWatermark(unreachable);
+        db.setOverflowDir(new File(overflowDir), 0);
+        db.addBitstream(new ByteArrayInputStream(content), "file1.txt", "text/plain", "file 1", "10.whatever/ident/1", "ORIGINAL");
+        db.addBitstream(new BaggedBitstream.StreamSource()
+        {
+            public InputStream open()
+            {
+                return new ByteArrayInputStream(content);
+            }
+        }, content.length, Files.md5Hex(new ByteArrayInputStream(content)), "file2.txt", "text/plain", "file 2", "10.whatever/ident/1", "ORIGINAL");
+        assert db.getOverflowCount() == 2;
+        assert db.getSpaceWaitMillis() == 0;
+        assert !new File(workingDir + "/bag/data/10.whatever_ident_1/ORIGINAL/file1.txt").exists();
+        assert new File(overflowDir + "/bag/data/10.whatever_ident_1/ORIGINAL/file1.txt").exists();
+
+        // the bag is written from wherever its bitstreams were staged
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(zipPath);
+        java.util.zip.ZipEntry entry = zf.getEntry("testbag/data/10.whatever_ident_1/ORIGINAL/file2.txt");
+        assert Arrays.equals(this.readInput(zf.getInputStream(entry), 1000), content);
+        zf.close();
+        db.cleanupWorkingDir();
+        assert !new File(overflowDir + "/bag").exists();
+
+        // with nowhere to go, staging waits for space and then gives up
+        DANSBag full = new DANSBag("testbag", zipPath + ".full", workingDir + "/full");
+        full.setStagingWatermark(unreachable);
+        full.setSpaceWaitTimeout(200);
+        try
+        {
+            full.addBitstream(new ByteArrayInputStream(content), "file1.txt", "text/plain", "file 1", "10.whatever/ident/1", "ORIGINAL");
+            assert false;
+        }
+        catch (IOException e)
+        {
+            assert e.getMessage().startsWith("Not enough space");
+        }
+        assert full.getSpaceWaitMillis() >= 200;
+        assert full.getOverflowCount() == 0;
+        assert !new File(workingDir + "/full/data/10.whatever_ident_1/ORIGINAL/file1.txt").exists();
+    }
+
+    @Test
+    public void testStagingRoots()
+            throws Exception
+    {
+        String base = System.getProperty("user.dir") + "/src/test/resources/working/testroots";
+        this.cleanup.add(base);
+        String zipPath = base + ".zip";
+        this.cleanup.add(zipPath);
+
+        // bitstreams go to each root in turn, the large one being read back in two parts
+        DANSBag db = new DANSBag("testbag", zipPath, base + "/working/bag");
+        db.setStagingRoots(Arrays.asList(new File(base + "/disk1"), new File(base + "/disk2")), DANSBag.StagingPolicy.ROUND_ROBIN);
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        for (int i = 0; i < 6; i++)
+        {
+            byte[] content = i == 4 ? new byte[5 * 1024 * 1024 + 3] : ("content " + i).getBytes();
+            Arrays.fill(content, 0, Math.min(content.length, 100), (byte) ('a' + i));
+            contents.put("file" + i + ".txt", content);
+            db.addBitstream(new ByteArrayInputStream(content), "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/1", "ORIGINAL");
+        }
+        String dir = "/data/10.whatever_ident_1/ORIGINAL/";
+        String[] roots = { base + "/working/bag", base + "/disk1/bag", base + "/disk2/bag" };
+
+        // the staged bitstreams record their roots, so the roots cannot change under them
+        try
+        {
+            db.setStagingRoots(Arrays.asList(new File(base + "/disk2")), DANSBag.StagingPolicy.ROUND_ROBIN);
+            assert false;
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        for (int i = 0; i < 6; i++)
+        {
+            assert new File(roots[i % 3] + dir + "file" + i + ".txt").exists();
+            assert !new File(roots[(i + 1) % 3] + dir + "file" + i + ".txt").exists();
+        }
+
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(zipPath);
+        for (String filename : contents.keySet())
+        {
+            java.util.zip.ZipEntry entry = zf.getEntry("testbag" + dir + filename);
+            assert Arrays.equals(this.readInput(zf.getInputStream(entry), 8192), contents.get(filename));
+        }
+        zf.close();
+        db.cleanupWorkingDir();
+        assert !new File(roots[1]).exists() && !new File(roots[2]).exists();
+
+        // the root with the most space is used; here they share a volume, so this only checks the bag comes out whole
+        new File(zipPath).delete();
+        DANSBag free = new DANSBag("testbag", zipPath, base + "/working/free");
+        free.setStagingRoots(Arrays.asList(new File(base + "/disk1")), DANSBag.StagingPolicy.MOST_FREE);
+        free.addBitstream(new ByteArrayInputStream("content".getBytes()), "file.txt", "text/plain", "file", "10.whatever/ident/1", "ORIGINAL");
+        free.setDatasetDIM(dim);
+        free.writeToFile();
+        assert free.validate().isValid();
+    }
+
+    @Test
+    public void testMemoryStaging()
+            throws Exception
+    {
+        String base = System.getProperty("user.dir") + "/src/test/resources/working/testmemory";
+        this.cleanup.add(base);
+        String zipPath = base + ".zip";
+        this.cleanup.add(zipPath);
+
+        // small bitstreams are held in memory until 4000 bytes are held; the large one goes to disk regardless
+        DANSBag db = new DANSBag("testbag", zipPath, base + "/working/bag");
+        db.setMemoryStaging(1024, 4000);
+        db.setStagingRoots(Arrays.asList(new File(base + "/disk1")), DANSBag.StagingPolicy.ROUND_ROBIN);
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        for (int i = 0; i < 50; i++)
+        {
+            byte[] content = new byte[i == 7 ? 2000 : 100];
+            Arrays.fill(content, (byte) i);
+            contents.put("file" + i + ".txt", content);
+            if (i % 2 == 0)
+            {
+                db.addBitstream(new ByteArrayInputStream(content), "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/1", "ORIGINAL");
+            }
+            else
+            {
+                final byte[] source = content;
+                db.addBitstream(new BaggedBitstream.StreamSource()
+                {
+                    public InputStream open()
+                    {
+                        return new ByteArrayInputStream(source);
+                    }
+                }, content.length, Files.md5Hex(new ByteArrayInputStream(content)), "file" + i + ".txt", "text/plain",
+                        "file " + i, "10.whatever/ident/1", "ORIGINAL");
+            }
+        }
+        assert db.getMemoryStagedCount() == 40;
+        assert db.getMemoryStagedBytes() == 4000;
+        String dir = "/data/10.whatever_ident_1/ORIGINAL/";
+        assert !new File(base + "/working/bag" + dir + "file0.txt").exists();
+        assert !new File(base + "/disk1/bag" + dir + "file0.txt").exists();
+        assert new File(base + "/working/bag" + dir + "file7.txt").exists() || new File(base + "/disk1/bag" + dir + "file7.txt").exists();
+
+        // bitstreams in memory can be read back before the zip is written
+        byte[] part = this.readInput(db.getBitstreamRange("10.whatever/ident/1", "ORIGINAL", "file3.txt", 10, 20), 100);
+        assert part.length == 20 && part[0] == 3;
+
+        // the buffer holding them cannot be replaced
+        try
+        {
+            db.setMemoryStaging(2048, 8000);
+            assert false;
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+
+        // beyond the spill threshold the buffer moves to a memory-mapped file, and is still read from there
+        assert !this.hasSpillFile(new File(base + "/working/bag"), "staged");
+        db.setSpillThreshold(1000);
+        assert this.hasSpillFile(new File(base + "/working/bag"), "staged");
+        part = this.readInput(db.getBitstreamRange("10.whatever/ident/1", "ORIGINAL", "file3.txt", 10, 20), 100);
+        assert part.length == 20 && part[0] == 3;
+
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+        db.writeToFile();
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(zipPath);
+        for (String filename : contents.keySet())
+        {
+            java.util.zip.ZipEntry entry = zf.getEntry("testbag" + dir + filename);
+            assert Arrays.equals(this.readInput(zf.getInputStream(entry), 8192), contents.get(filename));
+        }
+        zf.close();
+        assert db.validate().isValid();
+        db.cleanupWorkingDir();
+        assert db.getMemoryStagedCount() == 0;
+    }
+
+    @Test
+    public void testWriteToStream()
+            throws Exception
+    {
+        String base = System.getProperty("user.dir") + "/src/test/resources/working/teststream";
+        this.cleanup.add(base);
+        String zipPath = base + ".zip";
+        this.cleanup.add(zipPath);
+
+        DANSBag db = new DANSBag("testbag", zipPath, base + "/working/bag");
+        db.setMemoryStaging(1024, 4000);
+        for (int i = 0; i < 5; i++)
+        {
+            byte[] content = new byte[i * 1000];
+            Arrays.fill(content, (byte) i);
+            db.addBitstream(new ByteArrayInputStream(content), "file" + i + ".txt", "text/plain", "file " + i, "10.whatever/ident/1", "ORIGINAL");
+        }
+        DIM dim = new DIM();
+        dim.addDSpaceField("dc.identifier", "10.1234/ident/a");
+        db.setDatasetDIM(dim);
+
+        // the same zip goes to every sink, none of which is closed, and no zip file is written
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        File copy = new File(base + "/copy.zip");
+        FileOutputStream local = new FileOutputStream(copy);
+        ByteArrayOutputStream channelled = new ByteArrayOutputStream();
+        String md5 = db.writeTo(memory, local, java.nio.channels.Channels.newOutputStream(
+                java.nio.channels.Channels.newChannel(channelled)));
+        local.write(new byte[0]);
+        local.close();
+        assert !new File(zipPath).exists();
+        assert Arrays.equals(memory.toByteArray(), FileUtils.readFileToByteArray(copy));
+        assert Arrays.equals(memory.toByteArray(), channelled.toByteArray());
+        assert md5.equals(Files.md5Hex(new ByteArrayInputStream(memory.toByteArray())));
+
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(copy);
+        java.util.zip.ZipEntry entry = zf.getEntry("testbag/data/10.whatever_ident_1/ORIGINAL/file3.txt");
+        byte[] content = this.readInput(zf.getInputStream(entry), 8192);
+        assert content.length == 3000 && content[0] == 3;
+        assert zf.getEntry("testbag/bagit.txt") != null;
+        zf.close();
+
+        // a channel works on its own, and the bag can still be written to its file afterwards
+        ByteArrayOutputStream again = new ByteArrayOutputStream();
+        assert db.writeTo(java.nio.channels.Channels.newChannel(again)).length() == 32;
+        assert again.size() > 0;
+        db.writeToFile();
+        assert db.validate().isValid();
+        db.cleanupWorkingDir();
+    }
+
     private byte[] readInput(InputStream is, int bufferSize)
             throws Exception
     {
@@ -450,6 +2337,60 @@ public class BagItTest
         return result.toByteArray();
     }
 
+    private boolean hasSpillFile(File dir, String prefix)
+    {
+        String[] names = dir.list();
+        for (String name : names == null ? new String[0] : names)
+        {
+            if (name.startsWith(prefix) && name.endsWith(".spill"))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy a zip, replacing the content of any entries whose names end with one of the keys of the map
+     * (or dropping them, if the value is null)
+     */
+    private void rewriteZip(String from, String to, Map<String, String> replace)
+            throws Exception
+    {
+        java.util.zip.ZipFile zf = new java.util.zip.ZipFile(from);
+        java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(new FileOutputStream(to));
+        Enumeration<? extends java.util.zip.ZipEntry> entries = zf.entries();
+        while (entries.hasMoreElements())
+        {
+            java.util.zip.ZipEntry entry = entries.nextElement();
+            String replacement = null;
+            boolean replaced = false;
+            for (String suffix : replace.keySet())
+            {
+                if (entry.getName().endsWith(suffix))
+                {
+                    replacement = replace.get(suffix);
+                    replaced = true;
+                }
+            }
+            if (replaced && replacement == null)
+            {
+                continue;
+            }
+            zos.putNextEntry(new java.util.zip.ZipEntry(entry.getName()));
+            if (replaced)
+            {
+                zos.write(replacement.getBytes());
+            }
+            else
+            {
+                zos.write(this.readInput(zf.getInputStream(entry), 1000));
+            }
+        }
+        zos.close();
+        zf.close();
+    }
+
     public byte[] combine(byte[] a, byte[] b){
         int length = a.length + b.length;
         byte[] result = new byte[length];
@@ -0,0 +1,69 @@
+package org.datadryad.dansbagit.test;
+
+import nu.xom.Builder;
+import nu.xom.Element;
+import nu.xom.Elements;
+import org.datadryad.dansbagit.DIM;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Compares the time DIM.parse (a StAX pull parser) takes to read a large DIM document with building a XOM tree
+ * and walking it.  This is not part of the unit tests; run it by hand with the test classpath:
+ *
+ *     java -cp target/classes:target/test-classes:... org.datadryad.dansbagit.test.DIMParseBenchmark [fields] [rounds]
+ */
+public class DIMParseBenchmark
+{
+    public static void main(String[] args)
+            throws Exception
+    {
+        int fields = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        DIM large = new DIM();
+        for (int i = 0; i < fields; i++)
+        {
+            large.addDSpaceField("dc.subject" + (i % 3 == 0 ? ".other" : ""), "subject & <" + i + ">");
+        }
+        byte[] xml = large.toXML().getBytes("UTF-8");
+        System.out.println(fields + " fields, " + xml.length + " bytes, " + rounds + " rounds");
+
+        // let the JIT settle before timing anything
+        for (int i = 0; i < 3; i++)
+        {
+            DIM.parse(new ByteArrayInputStream(xml));
+            parseWithXOM(xml);
+        }
+
+        long stax = 0;
+        long xom = 0;
+        for (int i = 0; i < rounds; i++)
+        {
+            long start = System.nanoTime();
+            DIM.parse(new ByteArrayInputStream(xml));
+            stax += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            parseWithXOM(xml);
+            xom += System.nanoTime() - start;
+        }
+        System.out.println("StAX: " + (stax / rounds / 1000000) + "ms per parse");
+        System.out.println("XOM:  " + (xom / rounds / 1000000) + "ms per parse");
+    }
+
+    private static DIM parseWithXOM(byte[] xml)
+            throws Exception
+    {
+        Element root = new Builder().build(new ByteArrayInputStream(xml)).getRootElement();
+        DIM dim = new DIM();
+        Elements fields = root.getChildElements();
+        for (int i = 0; i < fields.size(); i++)
+        {
+            Element field = fields.get(i);
+            dim.addField(field.getAttributeValue("mdschema"), field.getAttributeValue("element"),
+                    field.getAttributeValue("qualifier"), field.getValue());
+        }
+        return dim;
+    }
+}